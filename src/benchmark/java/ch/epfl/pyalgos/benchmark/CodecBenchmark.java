@@ -0,0 +1,144 @@
+package ch.epfl.pyalgos.benchmark;
+
+import ch.epfl.pyalgos.client.RawImageCodec;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the encodings of the images exchanged with the server, without the network: TIFF serialization and
+ * deserialization, Base64 of the serialized TIFF, Gson parsing of the JSON result bodies carrying it, and the raw
+ * pixels codec. The inputs of each encoding are only built for the benchmarks using them, the largest images taking
+ * more than 1 GB each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class CodecBenchmark {
+
+    /**
+     * Image to encode, of each size and bit depth
+     */
+    @State(Scope.Benchmark)
+    public static class Input {
+
+        @Param({"256", "1024", "4096", "16384"})
+        public int size;
+
+        @Param({"8", "16", "24", "32"})
+        public int bitDepth;
+
+        ImagePlus image;
+
+        @Setup
+        public void setup() {
+            image = IJ.createImage("Benchmark", size, size, 1, bitDepth);
+            image.getProcessor().noise(50);
+        }
+    }
+
+    /**
+     * Image serialized as TIFF
+     */
+    @State(Scope.Benchmark)
+    public static class Tiff {
+
+        byte[] bytes;
+
+        @Setup
+        public void setup(Input input) {
+            bytes = new FileSaver(input.image).serialize();
+        }
+    }
+
+    /**
+     * Serialized TIFF encoded in Base64, and the JSON result body carrying it as returned by the older servers
+     */
+    @State(Scope.Benchmark)
+    public static class Json {
+
+        String base64;
+        String body;
+
+        @Setup
+        public void setup(Tiff tiff) {
+            base64 = Base64.getEncoder().encodeToString(tiff.bytes);
+            body = "{\"output_endpoints\":[\"image\"],\"image\":\"" + base64 + "\"}";
+        }
+    }
+
+    /**
+     * Image encoded as raw pixels, with its JSON header
+     */
+    @State(Scope.Benchmark)
+    public static class Raw {
+
+        byte[] bytes;
+
+        @Setup
+        public void setup(Input input) throws IOException {
+            Buffer buffer = new Buffer();
+            RawImageCodec.requestBody(input.image).writeTo(buffer);
+            bytes = buffer.readByteArray();
+        }
+    }
+
+    @Benchmark
+    public byte[] tiffSerialize(Input input) {
+        return new FileSaver(input.image).serialize();
+    }
+
+    @Benchmark
+    public ImagePlus tiffDeserialize(Tiff tiff) {
+        return new Opener().deserialize(tiff.bytes);
+    }
+
+    @Benchmark
+    public String base64Encode(Tiff tiff) {
+        return Base64.getEncoder().encodeToString(tiff.bytes);
+    }
+
+    @Benchmark
+    public byte[] base64Decode(Json json) {
+        return Base64.getDecoder().decode(json.base64);
+    }
+
+    @Benchmark
+    public JsonObject gsonParse(Json json) {
+        return JsonParser.parseReader(new StringReader(json.body)).getAsJsonObject();
+    }
+
+    /**
+     * Decode the JSON result body as the client does: parse, decode the Base64 and deserialize the TIFF
+     */
+    @Benchmark
+    public ImagePlus jsonResultDecode(Json json) {
+        JsonObject object = JsonParser.parseReader(new StringReader(json.body)).getAsJsonObject();
+        byte[] bytes = Base64.getDecoder().decode(object.get("image").getAsString());
+        return new Opener().deserialize(bytes);
+    }
+
+    @Benchmark
+    public Buffer rawEncode(Input input) throws IOException {
+        Buffer buffer = new Buffer();
+        RawImageCodec.requestBody(input.image).writeTo(buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public ImagePlus rawDecode(Raw raw) throws IOException {
+        return RawImageCodec.read(new Buffer().write(raw.bytes), "Benchmark");
+    }
+}
@@ -0,0 +1,77 @@
+package ch.epfl.pyalgos.benchmark;
+
+import ch.epfl.pyalgos.client.HttpClientConfig;
+import ch.epfl.pyalgos.client.PyAlgosClient;
+import ch.epfl.pyalgos.client.ServerCapabilities;
+import ij.IJ;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the configurations of the HTTP client with concurrent runs in sessions of the mock server: without any
+ * connection reuse (a new connection per request), with the defaults of OkHttp (5 idle connections, Nagle's
+ * algorithm enabled), and with the defaults of {@link HttpClientConfig}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ConnectionBenchmark {
+
+    @Param({"noReuse", "okhttpDefaults", "tuned"})
+    public String config;
+
+    @Param({"0", "5"})
+    public long latency;
+
+    @Param({"256"})
+    public int size;
+
+    private MockPyAlgosServer server;
+    private PyAlgosClient client;
+    private HttpClientConfig previousConfig;
+    private ImagePlus image;
+    private final Map<String, Object> parameters = Collections.singletonMap("sigma", (Object) 2.0);
+
+    @Setup
+    public void setup() throws IOException {
+        server = new MockPyAlgosServer(latency, ServerCapabilities.RAW_IMAGE, ServerCapabilities.PROCESS,
+                ServerCapabilities.SESSIONS);
+        client = PyAlgosClient.getInstance();
+        client.getResultCache().setEnabled(false);
+        previousConfig = client.getHttpConfig();
+        HttpClientConfig httpConfig = new HttpClientConfig();
+        if (config.equals("noReuse")) {
+            httpConfig.setMaxIdleConnections(0);
+        } else if (config.equals("okhttpDefaults")) {
+            httpConfig.setMaxIdleConnections(5);
+            httpConfig.setMaxRequestsPerHost(5);
+            httpConfig.setTcpNoDelay(false);
+        }
+        client.setHttpConfig(httpConfig);
+        client.setServerURL(server.getUrl());
+        image = IJ.createImage("Benchmark", size, size, 1, 16);
+        image.getProcessor().noise(50);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.getConnectionMonitor().stop();
+        client.closeSessions();
+        client.setHttpConfig(previousConfig);
+        server.close();
+    }
+
+    @Benchmark
+    public ImagePlus process() throws IOException {
+        return client.process(image, "gaussian", parameters);
+    }
+}
@@ -0,0 +1,229 @@
+package ch.epfl.pyalgos.benchmark;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process mock of the Python server for the round-trip benchmarks: the "algorithm" returns the image it received,
+ * so that only the protocol and the transfers are measured. A fixed latency can be added to every response to
+ * simulate the network and the processing time on the server. The images can also be exchanged through files of the
+ * shared memory ("shared_memory" capability). Each session ("sessions" capability) has its own image.
+ */
+public class MockPyAlgosServer extends Dispatcher implements AutoCloseable {
+
+    private final MockWebServer server = new MockWebServer();
+    private final String capabilities;
+    private final long latency;
+
+    // Image and its content type of each session, "" for the global state
+    private final Map<String, byte[]> images = new HashMap<>();
+    private final Map<String, String> imageTypes = new HashMap<>();
+    private int sessionCount = 0;
+
+    /**
+     * @param capabilities capabilities advertised by the server, e.g. "process", "raw_image"
+     * @param latency      delay before every response (milliseconds)
+     */
+    public MockPyAlgosServer(long latency, String... capabilities) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (String capability : capabilities) {
+            json.append(json.length() > 1 ? "," : "").append('"').append(capability).append('"');
+        }
+        this.capabilities = json.append(']').toString();
+        this.latency = latency;
+        // MockWebServer does not disable Nagle's algorithm, which would add the delayed ACK to every response
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(this);
+        server.start(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    public String getUrl() {
+        return server.url("/").toString();
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        String path = request.getPath();
+        String method = request.getMethod();
+        // Requests to a session: /sessions/{id}/...
+        String session = "";
+        if (path.startsWith("/sessions/")) {
+            int end = path.indexOf('/', "/sessions/".length());
+            session = path.substring("/sessions/".length(), (end < 0) ? path.length() : end);
+            path = (end < 0) ? "" : path.substring(end);
+        }
+        MockResponse response;
+        if (method.equals("HEAD")) {
+            response = new MockResponse().setResponseCode(405);
+        } else if (path.equals("/")) {
+            response = json("{\"message\":\"hello\",\"capabilities\":" + capabilities + "}");
+        } else if (method.equals("POST") && path.equals("/sessions")) {
+            synchronized (this) {
+                response = json("{\"session_id\":\"" + ++sessionCount + "\"}");
+            }
+        } else if (method.equals("POST") && (path.equals("/image_bytes") || path.equals("/image_raw"))) {
+            synchronized (this) {
+                images.put(session, request.getBody().readByteArray());
+                imageTypes.put(session, path.equals("/image_raw") ? "application/x-pyalgos-raw" : "image/tiff");
+            }
+            response = json("{}");
+        } else if (method.equals("POST") && path.equals("/image_shm")) {
+            response = readSharedImage(session, request);
+        } else if (method.equals("POST") && path.endsWith("/parameters")) {
+            response = json("{}");
+        } else if (method.equals("POST") && path.endsWith("/result")) {
+            response = json("{\"output_endpoints\":[\"image\"]}");
+        } else if (path.endsWith("/result/image")) {
+            synchronized (this) {
+                String accept = request.getHeader("Accept");
+                if (accept != null && accept.contains("application/x-pyalgos-shm") &&
+                        "application/x-pyalgos-raw".equals(imageTypes.get(session))) {
+                    response = writeSharedImage(images.get(session));
+                } else {
+                    response = image(imageTypes.get(session), images.get(session));
+                }
+            }
+        } else if (method.equals("POST") && path.endsWith("/process")) {
+            response = process(request);
+        } else if (method.equals("DELETE")) {
+            // The image of the session, or the session itself
+            synchronized (this) {
+                images.remove(session);
+            }
+            response = json("{}");
+        } else {
+            response = new MockResponse().setResponseCode(404).setBody("{\"detail\":\"Not Found\"}");
+        }
+        return response.setHeadersDelay(latency, TimeUnit.MILLISECONDS);
+    }
+
+    // Return the "image" part of the multipart request. The client sends it as the last part: it is cut out of the
+    // body directly, since okhttp3.MultipartReader is too slow for large images and would dominate the measurements.
+    private MockResponse process(RecordedRequest request) {
+        String contentType = request.getHeader("Content-Type");
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        try {
+            Buffer body = request.getBody();
+            long partStart = body.indexOf(ByteString.encodeUtf8("name=\"image\""));
+            long headersEnd = (partStart < 0) ? -1 : body.indexOf(ByteString.encodeUtf8("\r\n\r\n"), partStart);
+            if (headersEnd < 0) {
+                return new MockResponse().setResponseCode(422).setBody("{\"detail\":\"Missing image\"}");
+            }
+            String headers = body.readUtf8(headersEnd);
+            String type = "application/octet-stream";
+            for (String header : headers.split("\r\n")) {
+                if (header.startsWith("Content-Type: ")) {
+                    type = header.substring("Content-Type: ".length());
+                }
+            }
+            body.skip(4);
+            long closing = ("\r\n--" + boundary + "--\r\n").length();
+            return image(type, body.readByteArray(body.size() - closing));
+        } catch (IOException e) {
+            return new MockResponse().setResponseCode(400).setBody("{\"detail\":\"" + e.getMessage() + "\"}");
+        }
+    }
+
+    // Read the raw image from the file of the shared memory referred to by the body
+    private MockResponse readSharedImage(String session, RecordedRequest request) {
+        String reference = request.getBody().readUtf8();
+        int start = reference.indexOf("\"path\":\"") + "\"path\":\"".length();
+        try {
+            byte[] bytes = Files.readAllBytes(Paths.get(reference.substring(start, reference.indexOf('"', start))));
+            synchronized (this) {
+                images.put(session, bytes);
+                imageTypes.put(session, "application/x-pyalgos-raw");
+            }
+            return json("{}");
+        } catch (IOException | RuntimeException e) {
+            return new MockResponse().setResponseCode(400).setBody("{\"detail\":\"" + e.getMessage() + "\"}");
+        }
+    }
+
+    // Write the raw image to a new file of the shared memory, deleted by the client once read
+    private static MockResponse writeSharedImage(byte[] bytes) {
+        if (bytes == null) {
+            return new MockResponse().setResponseCode(404).setBody("{\"detail\":\"No image\"}");
+        }
+        try {
+            Path file = Files.createTempFile(Paths.get("/dev/shm"), "pyalgos-", ".raw");
+            Files.write(file, bytes);
+            return new MockResponse().setHeader("Content-Type", "application/x-pyalgos-shm")
+                    .setBody("{\"path\":\"" + file + "\"}");
+        } catch (IOException e) {
+            return new MockResponse().setResponseCode(500).setBody("{\"detail\":\"" + e.getMessage() + "\"}");
+        }
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+
+    private static MockResponse image(String type, byte[] bytes) {
+        if (bytes == null) {
+            return new MockResponse().setResponseCode(404).setBody("{\"detail\":\"No image\"}");
+        }
+        return new MockResponse().setHeader("Content-Type", type).setBody(new Buffer().write(bytes));
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private static class NoDelayServerSocketFactory extends ServerSocketFactory {
+
+        private static class NoDelayServerSocket extends ServerSocket {
+            NoDelayServerSocket() throws IOException {
+                super();
+            }
+
+            @Override
+            public Socket accept() throws IOException {
+                Socket socket = new Socket();
+                implAccept(socket);
+                socket.setTcpNoDelay(true);
+                return socket;
+            }
+        }
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new NoDelayServerSocket();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 50, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            ServerSocket socket = new NoDelayServerSocket();
+            socket.bind(new InetSocketAddress(address, port), backlog);
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ch.epfl.pyalgos.benchmark;
+
+import ch.epfl.pyalgos.client.PyAlgosClient;
+import ch.epfl.pyalgos.client.ServerCapabilities;
+import ij.IJ;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the latency of the processing of an image with the sequence of requests of the original protocol
+ * (parameters, image, result, result image, delete), with the same sequence when the image is kept on the server
+ * in a session between the runs (parameters, result, result image), and with the single multipart request to
+ * /process, against a mock server adding a fixed latency to every response
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"stepByStep", "resident", "oneRequest"})
+    public String protocol;
+
+    @Param({"0", "5", "20"})
+    public long latency;
+
+    @Param({"64", "1024"})
+    public int size;
+
+    private MockPyAlgosServer server;
+    private PyAlgosClient client;
+    private ImagePlus image;
+    private final Map<String, Object> parameters = Collections.singletonMap("sigma", (Object) 2.0);
+
+    @Setup
+    public void setup() throws IOException {
+        if (protocol.equals("oneRequest")) {
+            server = new MockPyAlgosServer(latency, ServerCapabilities.RAW_IMAGE, ServerCapabilities.PROCESS);
+        } else if (protocol.equals("resident")) {
+            // Only the sessions keep the image
+            server = new MockPyAlgosServer(latency, ServerCapabilities.RAW_IMAGE, ServerCapabilities.SESSIONS);
+        } else {
+            server = new MockPyAlgosServer(latency, ServerCapabilities.RAW_IMAGE);
+        }
+        client = PyAlgosClient.getInstance();
+        client.getResultCache().setEnabled(false);
+        client.setResidentImageTimeout(protocol.equals("resident") ? TimeUnit.MINUTES.toMillis(5) : 0);
+        client.setServerURL(server.getUrl());
+        image = IJ.createImage("Benchmark", size, size, 1, 16);
+        image.getProcessor().noise(50);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.getConnectionMonitor().stop();
+        server.close();
+    }
+
+    @Benchmark
+    public ImagePlus process() throws IOException {
+        return client.process(image, "gaussian", parameters);
+    }
+}
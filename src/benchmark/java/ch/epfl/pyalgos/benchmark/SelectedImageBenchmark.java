@@ -0,0 +1,69 @@
+package ch.epfl.pyalgos.benchmark;
+
+import ch.epfl.pyalgos.client.ImageUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the per-pixel copy of the selected image (getPixel/putPixel) with the bulk row copy of {@link ImageUtils}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class SelectedImageBenchmark {
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int size;
+
+    @Param({"8", "16", "32", "24"})
+    public int bitDepth;
+
+    @Param({"none", "rectangle", "oval"})
+    public String selection;
+
+    private ImagePlus image;
+
+    @Setup
+    public void setup() {
+        image = IJ.createImage("Benchmark", size, size, 1, bitDepth);
+        image.getProcessor().noise(50);
+        int margin = size / 8;
+        if (selection.equals("rectangle")) {
+            image.setRoi(new Roi(margin, margin, size - 2 * margin, size - 2 * margin));
+        } else if (selection.equals("oval")) {
+            image.setRoi(new OvalRoi(margin, margin, size - 2 * margin, size - 2 * margin));
+        }
+    }
+
+    @Benchmark
+    public ImagePlus perPixel() {
+        Roi roi = image.getRoi();
+        int x0 = roi != null ? (int) roi.getXBase() : 0;
+        int y0 = roi != null ? (int) roi.getYBase() : 0;
+        int width = roi != null ? (int) roi.getFloatWidth() : image.getWidth();
+        int height = roi != null ? (int) roi.getFloatHeight() : image.getHeight();
+        ImagePlus selectedImg = IJ.createImage("Selected", width, height, 1, image.getBitDepth());
+        ImageProcessor imageProcessor = selectedImg.getProcessor();
+        for (int x = 0; x < width; ++x) {
+            for (int y = 0; y < height; ++y) {
+                int[] pixel = image.getPixel(x + x0, y + y0);
+                imageProcessor.putPixel(x, y, pixel);
+            }
+        }
+        return selectedImg;
+    }
+
+    @Benchmark
+    public ImageProcessor bulk() {
+        return ImageUtils.extract(image.getProcessor(), image.getRoi());
+    }
+}
@@ -0,0 +1,71 @@
+package ch.epfl.pyalgos.benchmark;
+
+import ch.epfl.pyalgos.client.PyAlgosClient;
+import ch.epfl.pyalgos.client.ServerCapabilities;
+import ij.IJ;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the processing of all the planes of a stack spread over a pool of mock servers without sessions, each
+ * processing one plane at a time with a fixed latency
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerPoolBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int servers;
+
+    @Param({"20"})
+    public long latency;
+
+    @Param({"16"})
+    public int planes;
+
+    private final List<MockPyAlgosServer> mockServers = new ArrayList<>();
+    private PyAlgosClient client;
+    private ImagePlus image;
+    private final Map<String, Object> parameters = Collections.singletonMap("sigma", (Object) 2.0);
+
+    @Setup
+    public void setup() throws IOException {
+        for (int i = 0; i < servers; i++) {
+            mockServers.add(new MockPyAlgosServer(latency, ServerCapabilities.RAW_IMAGE, ServerCapabilities.PROCESS));
+        }
+        client = PyAlgosClient.getInstance();
+        client.getResultCache().setEnabled(false);
+        client.setServerURL(mockServers.get(0).getUrl());
+        for (int i = 1; i < servers; i++) {
+            client.getServerPool().addServer(mockServers.get(i).getUrl(), 1);
+        }
+        image = IJ.createImage("Benchmark", 256, 256, planes, 16);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.getConnectionMonitor().stop();
+        for (int i = 1; i < servers; i++) {
+            client.getServerPool().removeServer(mockServers.get(i).getUrl());
+        }
+        for (MockPyAlgosServer server : mockServers) {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public ImagePlus process() throws IOException {
+        return client.process(image, "gaussian", parameters, true);
+    }
+}
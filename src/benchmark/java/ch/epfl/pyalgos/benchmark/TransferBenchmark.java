@@ -0,0 +1,75 @@
+package ch.epfl.pyalgos.benchmark;
+
+import ch.epfl.pyalgos.client.PyAlgosClient;
+import ch.epfl.pyalgos.client.ServerCapabilities;
+import ij.IJ;
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the full round trip of images of each size and bit depth against an in-process mock server without added
+ * latency, so that the encoding, the transfers and the decoding dominate: the raw pixels or the TIFF are sent, and
+ * the same image is returned as the result. With the "sharedMemory" protocol, the images are exchanged through files
+ * of /dev/shm, whatever the format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx12g")
+public class TransferBenchmark {
+
+    @Param({"raw", "tiff"})
+    public String format;
+
+    @Param({"stepByStep", "oneRequest", "sharedMemory"})
+    public String protocol;
+
+    @Param({"256", "1024", "4096", "16384"})
+    public int size;
+
+    @Param({"8", "16", "24", "32"})
+    public int bitDepth;
+
+    private MockPyAlgosServer server;
+    private PyAlgosClient client;
+    private ImagePlus image;
+    private final Map<String, Object> parameters = Collections.singletonMap("sigma", (Object) 2.0);
+
+    @Setup
+    public void setup() throws IOException {
+        if (protocol.equals("oneRequest")) {
+            server = new MockPyAlgosServer(0, ServerCapabilities.RAW_IMAGE, ServerCapabilities.PROCESS);
+        } else if (protocol.equals("sharedMemory")) {
+            server = new MockPyAlgosServer(0, ServerCapabilities.RAW_IMAGE, ServerCapabilities.SHARED_MEMORY);
+        } else {
+            server = new MockPyAlgosServer(0, ServerCapabilities.RAW_IMAGE);
+        }
+        client = PyAlgosClient.getInstance();
+        client.getResultCache().setEnabled(false);
+        // The whole images are transferred, the largest ones without tiling
+        client.getTiledProcessor().setMemoryBudget(0);
+        client.setRawTransferEnabled(format.equals("raw"));
+        client.setServerURL(server.getUrl());
+        image = IJ.createImage("Benchmark", size, size, 1, bitDepth);
+        image.getProcessor().noise(50);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.getConnectionMonitor().stop();
+        client.setRawTransferEnabled(true);
+        server.close();
+    }
+
+    @Benchmark
+    public ImagePlus process() throws IOException {
+        return client.process(image, "gaussian", parameters);
+    }
+}
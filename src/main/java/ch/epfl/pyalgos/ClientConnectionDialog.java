@@ -1,16 +1,19 @@
 package ch.epfl.pyalgos;
 
+import ch.epfl.pyalgos.client.ConnectionMonitor;
 import ch.epfl.pyalgos.client.PyAlgosClient;
 import ch.epfl.pyalgos.gui.ConnectionDialog;
 import com.google.gson.JsonObject;
 
+import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.net.URL;
 import java.util.List;
 
 
-public class ClientConnectionDialog extends ConnectionDialog implements ActionListener {
+public class ClientConnectionDialog extends ConnectionDialog implements ActionListener, ConnectionMonitor.Listener {
 
     protected ClientParametersDialog parametersDialog;
 
@@ -21,6 +24,30 @@ public class ClientConnectionDialog extends ConnectionDialog implements ActionLi
         btnConnect.addActionListener(this);
         btnSelect.addActionListener(this);
         btnClose.addActionListener(this);
+        PyAlgosClient.getInstance().getConnectionMonitor().addListener(this);
+    }
+
+    @Override
+    public void dispose() {
+        PyAlgosClient.getInstance().getConnectionMonitor().removeListener(this);
+        super.dispose();
+    }
+
+    /**
+     * Update the status when the {@link ConnectionMonitor} detects a change of connection state
+     *
+     * @param serverURL
+     * @param state
+     */
+    @Override
+    public void stateChanged(URL serverURL, ConnectionMonitor.State state) {
+        SwingUtilities.invokeLater(() -> {
+            if (state == ConnectionMonitor.State.CONNECTED) {
+                labelStatusDetails.setText("Connected to " + serverURL);
+            } else if (state == ConnectionMonitor.State.DISCONNECTED) {
+                labelStatusDetails.setText("Connection lost to " + serverURL);
+            }
+        });
     }
 
     private void updateAlgos(String[] algos) {
@@ -77,8 +104,10 @@ public class ClientConnectionDialog extends ConnectionDialog implements ActionLi
 
         } else if (e.getSource() == btnSelect) {
             PyAlgosClient client = PyAlgosClient.getInstance();
-            if (!client.isConnected()) {
+            // Connection state from the background monitor, without any request
+            if (client.getConnectionMonitor().getState() == ConnectionMonitor.State.DISCONNECTED) {
                 displayDisconnected(client.getServerURL().toString());
+                return;
             }
             String algoName = algosComboBox.getSelectedItem().toString();
 
@@ -93,6 +122,13 @@ public class ClientConnectionDialog extends ConnectionDialog implements ActionLi
         } else if (e.getSource() == btnClose) {
             dispose();
             if (parametersDialog != null) parametersDialog.dispose();
+            // Delete the images kept on the server and the sessions in the background, in case it does not answer
+            Thread cleanup = new Thread(() -> {
+                PyAlgosClient.getInstance().deleteResidentImages();
+                PyAlgosClient.getInstance().closeSessions();
+            }, PyAlgosClient.name + " sessions cleanup");
+            cleanup.setDaemon(true);
+            cleanup.start();
         }
     }
 
@@ -1,42 +1,148 @@
 package ch.epfl.pyalgos;
 
+import ch.epfl.pyalgos.client.Job;
+import ch.epfl.pyalgos.client.ParameterSweep;
 import ch.epfl.pyalgos.client.PyAlgosClient;
 import ch.epfl.pyalgos.gui.ParametersDialog;
 import com.google.gson.JsonObject;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.measure.ResultsTable;
 
 import javax.swing.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
 
 public class ClientParametersDialog extends ParametersDialog implements ActionListener {
 
+    // Runs started from this dialog and not completed yet (only accessed on the Event Dispatch Thread)
+    private final List<Job> runningJobs = new ArrayList<>();
+
+    // Refreshes the progress bar while runs are in progress
+    private final Timer progressTimer = new Timer(200, e -> updateProgress());
+
     public ClientParametersDialog(String algoName, List<JsonObject> parametersList) {
         super(algoName, parametersList);
         btnRun.addActionListener(this);
         btnCancel.addActionListener(this);
+        btnStop.addActionListener(this);
+    }
+
+    @Override
+    public void dispose() {
+        // The runs in progress go on, and their results are displayed
+        progressTimer.stop();
+        super.dispose();
     }
 
     @Override
     public void actionPerformed(ActionEvent e) {
         if (e.getSource() == btnRun) {
-            btnRun.setEnabled(false);
-            SwingUtilities.invokeLater(() -> {
-                Map<String, Object> parametersValues = readValues();
-                PyAlgosClient client = PyAlgosClient.getInstance();
+            PyAlgosClient client = PyAlgosClient.getInstance();
+            ImagePlus image = WindowManager.getCurrentImage();
+            if (image == null) {
+                client.displayError("No open image");
+                return;
+            }
+            Job job;
+            if (checkBoxSweep.isSelected()) {
+                Map<String, List<Object>> sweepValues;
+                try {
+                    sweepValues = readSweepValues();
+                } catch (NumberFormatException nfe) {
+                    client.displayError("Invalid parameter values: " + nfe.getMessage());
+                    return;
+                }
+                job = client.submitSweep(image, algoName, sweepValues, checkBoxMontage.isSelected());
+            } else {
+                Map<String, Object> parametersValues;
                 try {
-                    client.run(algoName, parametersValues);
-                } catch (IOException runIOE) {
-                    client.displayError("Processing with " + algoName + " failed!");
-                } finally {
-                    btnRun.setEnabled(true);
+                    parametersValues = readValues();
+                } catch (NumberFormatException nfe) {
+                    client.displayError("Invalid parameter value: " + nfe.getMessage());
+                    return;
+                }
+                // The processing runs in the background, several runs can be in progress at the same time, each
+                // one with its own options
+                job = client.submit(image, algoName, parametersValues, checkBoxAllPlanes.isSelected(),
+                        checkBoxOutputs.isSelected());
+            }
+            runningJobs.add(job);
+            job.getFuture().whenComplete((result, failure) -> SwingUtilities.invokeLater(() -> {
+                runningJobs.remove(job);
+                updateProgress();
+                client.logMetrics(job, image, algoName, failure);
+                if (failure == null) {
+                    // No resulting image if the algorithm only returned other outputs
+                    if (result != null) {
+                        result.show();
+                        ResultsTable timings = ParameterSweep.getTimings(result);
+                        if (timings != null) {
+                            timings.show(result.getTitle() + " - timings");
+                        }
+                    }
+                    if (job.getOutputs() != null) {
+                        job.getOutputs().show();
+                    }
+                } else if (!(failure instanceof CancellationException) && !job.isCancelled()) {
+                    client.displayError("Processing with " + algoName + " failed!\n" + failure.getMessage());
                 }
-            });
+            }));
+            updateProgress();
+            progressTimer.start();
+
+        } else if (e.getSource() == btnStop) {
+            for (Job job : new ArrayList<>(runningJobs)) {
+                job.cancel();
+            }
 
         } else if (e.getSource() == btnCancel) {
             dispose();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Read the values of the parameters for a sweep: a range or a list for the numeric parameters, a single value
+     * for the others
+     *
+     * @return values of each parameter, by name
+     */
+    private Map<String, List<Object>> readSweepValues() {
+        Map<String, List<Object>> values = new TreeMap<>();
+        for (Map.Entry<String, JComponent> entry : parameterComponentMap.entrySet()) {
+            String type = parameterTypeMap.get(entry.getKey());
+            if (entry.getValue() instanceof JTextField && (type.equals("int") || type.equals("float"))) {
+                values.put(entry.getKey(), ParameterSweep.parseValues(((JTextField) entry.getValue()).getText(), type));
+            } else {
+                values.put(entry.getKey(), Collections.singletonList(readValue(entry.getKey())));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Show the mean progress of the runs in progress
+     */
+    private void updateProgress() {
+        if (runningJobs.isEmpty()) {
+            progressTimer.stop();
+            progressBar.setValue(0);
+            progressBar.setString("");
+            btnStop.setEnabled(false);
+            return;
+        }
+        double progress = 0;
+        for (Job job : runningJobs) {
+            progress += job.getProgress();
+        }
+        progressBar.setValue((int) Math.round(100 * progress / runningJobs.size()));
+        progressBar.setString(runningJobs.size() == 1 ? "1 run in progress" : runningJobs.size() + " runs in progress");
+        btnStop.setEnabled(true);
+    }
+}
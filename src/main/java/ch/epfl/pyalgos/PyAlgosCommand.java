@@ -0,0 +1,68 @@
+package ch.epfl.pyalgos;
+
+import ch.epfl.pyalgos.client.Job;
+import ch.epfl.pyalgos.client.PyAlgosClient;
+import ij.ImagePlus;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.ContextCommand;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Command running a Python algorithm on an image without the PyAlgos dialogs. It can be recorded with the macro
+ * recorder, called from scripts, and used in headless mode. The parameters of the algorithm are given as a JSON
+ * object, e.g. {"sigma": 2, "invert": false}.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>PyAlgos (headless)", headless = true)
+public class PyAlgosCommand extends ContextCommand {
+
+    @Parameter(label = "Input image")
+    private ImagePlus image;
+
+    @Parameter(label = "Server URL", persist = false)
+    private String serverUrl = PyAlgosClient.defaultUrl;
+
+    @Parameter(label = "Algorithm")
+    private String algorithm;
+
+    @Parameter(label = "Parameters (JSON)", required = false)
+    private String parameters = "{}";
+
+    @Parameter(label = "Process all planes", required = false)
+    private boolean allPlanes = false;
+
+    @Parameter(label = "Fetch all outputs (features, mask, tables)", required = false)
+    private boolean allOutputs = false;
+
+    // Recorded by the macros of the previous versions, same as allOutputs
+    @Parameter(label = "Import features to the ROI Manager", required = false)
+    private boolean importFeatures = false;
+
+    @Parameter(type = ItemIO.OUTPUT)
+    private ImagePlus result;
+
+    @Override
+    public void run() {
+        PyAlgosClient client = PyAlgosClient.getInstance();
+        try {
+            // Only check the connection when the server changes
+            String url = PyAlgosClient.normalizeServerURL(serverUrl);
+            if (client.getServerURL() == null || !client.getServerURL().toString().equals(url)) {
+                client.setServerURL(serverUrl);
+            }
+            Map<String, Object> parametersValues = PyAlgosClient.parseParameters(parameters);
+            Job job = client.submit(image, algorithm, parametersValues, allPlanes, allOutputs || importFeatures);
+            result = job.getResult();
+            // The command is the macro counterpart of the dialog: the other outputs are shown, except in headless mode
+            if (job.getOutputs() != null) {
+                job.getOutputs().show();
+            }
+        } catch (IOException e) {
+            cancel("Processing with " + algorithm + " failed: " + e.getMessage());
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package ch.epfl.pyalgos;
 
+import ch.epfl.pyalgos.client.MetadataCache;
+import ch.epfl.pyalgos.client.PyAlgosClient;
 import ij.IJ;
 import ij.ImageJ;
+import ij.Prefs;
 import ij.plugin.PlugIn;
 
+import java.io.File;
+
 public class PyAlgosIJ implements PlugIn {
 
+    // File where the algorithms names and required parameters are cached between restarts
+    private static final String METADATA_CACHE_FILE = "PyAlgos-metadata.json";
+
     @Override
     public void run(String s) {
         try {
+            MetadataCache metadataCache = PyAlgosClient.getInstance().getMetadataCache();
+            if (metadataCache.getFile() == null && Prefs.getPrefsDir() != null) {
+                metadataCache.setFile(new File(Prefs.getPrefsDir(), METADATA_CACHE_FILE));
+            }
             ClientConnectionDialog connectionDialog = new ClientConnectionDialog();
             connectionDialog.setVisible(true);
         } catch (Exception e) {
@@ -0,0 +1,148 @@
+package ch.epfl.pyalgos.client;
+
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Monitor the connection to the server in the background, with a cheap HEAD probe on a schedule, so that the user
+ * interface and the scripts can check the connection state without any blocking request. When the server cannot be
+ * reached, the probes are retried with an exponential backoff. The changes of state are published to the listeners
+ * (on the monitor thread).
+ */
+public class ConnectionMonitor {
+
+    public enum State {
+        UNKNOWN, CONNECTED, DISCONNECTED
+    }
+
+    /**
+     * Listener of the changes of connection state
+     */
+    public interface Listener {
+        void stateChanged(URL serverURL, State state);
+    }
+
+    static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(60);
+
+    private final PyAlgosHttpClient httpClient;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Interval between the probes while connected (milliseconds)
+    private long interval = DEFAULT_INTERVAL;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> nextProbe;
+    private volatile State state = State.UNKNOWN;
+    private long backoff = MIN_BACKOFF;
+    // Incremented on each (re)start, to ignore the probes of a previous server
+    private int generation = 0;
+
+    public ConnectionMonitor(PyAlgosHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Set the interval between the probes while connected
+     *
+     * @param interval (milliseconds)
+     */
+    public void setInterval(long interval) {
+        this.interval = Math.max(MIN_BACKOFF, interval);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start monitoring the server of the HTTP client, from a known state (e.g. after a successful connection)
+     *
+     * @param initialState
+     */
+    public synchronized void start(State initialState) {
+        stop();
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, PyAlgosClient.name + " connection monitor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        ++generation;
+        backoff = MIN_BACKOFF;
+        setState(initialState);
+        schedule(initialState == State.CONNECTED ? interval : 0);
+    }
+
+    /**
+     * Stop the probes. The last known state is kept.
+     */
+    public synchronized void stop() {
+        if (nextProbe != null) {
+            nextProbe.cancel(false);
+            nextProbe = null;
+        }
+    }
+
+    /**
+     * Probe the server as soon as possible, e.g. after a request failed
+     */
+    public synchronized void checkNow() {
+        if (nextProbe != null && nextProbe.cancel(false)) {
+            schedule(0);
+        }
+    }
+
+    private synchronized void schedule(long delay) {
+        final int probeGeneration = generation;
+        nextProbe = scheduler.schedule(() -> probe(probeGeneration), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(int probeGeneration) {
+        boolean reachable = httpClient.ping();
+        synchronized (this) {
+            if (probeGeneration != generation) {
+                return;
+            }
+            if (reachable) {
+                backoff = MIN_BACKOFF;
+                setState(State.CONNECTED);
+                schedule(interval);
+            } else {
+                setState(State.DISCONNECTED);
+                schedule(backoff);
+                backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            }
+        }
+    }
+
+    private void setState(State newState) {
+        if (newState == state) {
+            return;
+        }
+        state = newState;
+        URL serverURL = httpClient.getApiUrl();
+        for (Listener listener : listeners) {
+            listener.stateChanged(serverURL, newState);
+        }
+    }
+}
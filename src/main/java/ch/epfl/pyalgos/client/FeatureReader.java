@@ -0,0 +1,319 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Streaming reader of the GeoJSON features of a result, converting them to ROIs delivered in batches. The body is
+ * read token by token with a Gson {@link JsonReader}: neither the body nor a tree of its features is kept in memory,
+ * only the coordinates of the current feature and the current batch of ROIs.
+ * <p>
+ * The features are read from the "features" array of a FeatureCollection, at the top level or nested in the
+ * response object, or from a top-level array of features. Their coordinates are in pixels of the processed image.
+ * Polygons become polygon ROIs (shape ROIs if they have holes or several parts), lines become polyline ROIs, and
+ * points become point ROIs. The ROIs are named from the "name", "label" or "classification" property, or from the
+ * "id" of the feature.
+ */
+public class FeatureReader {
+
+    static final int DEFAULT_BATCH_SIZE = 5000;
+
+    // Offset of the processed image in the image the ROIs are added to (pixels)
+    private final double offsetX;
+    private final double offsetY;
+
+    private final int batchSize;
+    private final Consumer<Roi[]> consumer;
+
+    private final List<Roi> batch = new ArrayList<>();
+    private int count = 0;
+    private int skipped = 0;
+
+    // Coordinates of the current geometry: rings (or lines) with the index of the part (polygon) of each ring
+    private final List<float[]> ringsX = new ArrayList<>();
+    private final List<float[]> ringsY = new ArrayList<>();
+    private final List<Integer> ringParts = new ArrayList<>();
+    private int part = 0;
+    // Nesting level of the positions in the coordinates (0 for a Point, 3 for a MultiPolygon)
+    private int positionLevel = -1;
+    // Positions of the current ring, grown as needed
+    private float[] x = new float[1024];
+    private float[] y = new float[1024];
+    private int length = 0;
+
+    /**
+     * @param offsetX   offset of the processed image in the image the ROIs are added to (pixels)
+     * @param offsetY
+     * @param batchSize number of ROIs delivered at once
+     * @param consumer  receives the batches of ROIs
+     */
+    public FeatureReader(double offsetX, double offsetY, int batchSize, Consumer<Roi[]> consumer) {
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.batchSize = Math.max(1, batchSize);
+        this.consumer = consumer;
+    }
+
+    /**
+     * Read the features and deliver their ROIs, the last batch being delivered once the features are read
+     *
+     * @param reader JSON body of the features endpoint
+     * @return number of ROIs delivered
+     * @throws IOException if the body cannot be read or is not valid JSON
+     */
+    public int read(JsonReader reader) throws IOException {
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readFeatures(reader);
+            } else {
+                readContainer(reader);
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid GeoJSON features: " + e.getMessage(), e);
+        }
+        flush();
+        return count;
+    }
+
+    /**
+     * Get the number of features skipped, without geometry or with an unsupported one (e.g. GeometryCollection)
+     *
+     * @return
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    // Object containing the "features" array, possibly nested in other objects
+    private void readContainer(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (name.equals("features") && token == JsonToken.BEGIN_ARRAY) {
+                readFeatures(reader);
+            } else if (token == JsonToken.BEGIN_OBJECT) {
+                readContainer(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readFeatures(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                readFeature(reader);
+            } else {
+                reader.skipValue();
+                skipped++;
+            }
+        }
+        reader.endArray();
+    }
+
+    private void readFeature(JsonReader reader) throws IOException {
+        String type = null;
+        String name = null;
+        String id = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            JsonToken token = reader.peek();
+            if (key.equals("geometry") && token == JsonToken.BEGIN_OBJECT) {
+                type = readGeometry(reader);
+            } else if (key.equals("properties") && token == JsonToken.BEGIN_OBJECT) {
+                name = readName(reader);
+            } else if (key.equals("id") && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                id = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        addRois(type, (name != null) ? name : id);
+    }
+
+    // Type of the geometry, its coordinates being read in the rings
+    private String readGeometry(JsonReader reader) throws IOException {
+        String type = null;
+        ringsX.clear();
+        ringsY.clear();
+        ringParts.clear();
+        part = 0;
+        positionLevel = -1;
+        length = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            JsonToken token = reader.peek();
+            if (key.equals("type") && token == JsonToken.STRING) {
+                type = reader.nextString();
+            } else if (key.equals("coordinates") && token == JsonToken.BEGIN_ARRAY) {
+                readCoordinates(reader, 0);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return type;
+    }
+
+    private void readCoordinates(JsonReader reader, int level) throws IOException {
+        reader.beginArray();
+        if (reader.peek() == JsonToken.NUMBER) {
+            // Position [x, y], possibly with other coordinates (e.g. z) which are ignored
+            addPosition((float) (reader.nextDouble() + offsetX), (float) (reader.nextDouble() + offsetY));
+            while (reader.hasNext()) {
+                reader.skipValue();
+            }
+            reader.endArray();
+            positionLevel = level;
+            if (level == 0) {
+                endRing();
+            }
+            return;
+        }
+        while (reader.hasNext()) {
+            readCoordinates(reader, level + 1);
+        }
+        reader.endArray();
+        if (positionLevel == level + 1) {
+            // Array of positions: line, ring, or points
+            endRing();
+        } else if (positionLevel == level + 2) {
+            // Array of rings: polygon
+            part++;
+        }
+    }
+
+    private void addPosition(float px, float py) {
+        if (length == x.length) {
+            x = Arrays.copyOf(x, 2 * length);
+            y = Arrays.copyOf(y, 2 * length);
+        }
+        x[length] = px;
+        y[length] = py;
+        length++;
+    }
+
+    private void endRing() {
+        ringsX.add(Arrays.copyOf(x, length));
+        ringsY.add(Arrays.copyOf(y, length));
+        ringParts.add(part);
+        length = 0;
+    }
+
+    // Name of the feature in its properties
+    private static String readName(JsonReader reader) throws IOException {
+        String name = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            JsonToken token = reader.peek();
+            if ((key.equals("name") || key.equals("label")) &&
+                    (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                name = reader.nextString();
+            } else if (key.equals("classification") && name == null && token == JsonToken.STRING) {
+                name = reader.nextString();
+            } else if (key.equals("classification") && name == null && token == JsonToken.BEGIN_OBJECT) {
+                // QuPath classification: {"name": ..., "color": ...}
+                name = readName(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return name;
+    }
+
+    private void addRois(String type, String name) {
+        if (type == null || ringsX.isEmpty()) {
+            skipped++;
+            return;
+        }
+        switch (type) {
+            case "Point":
+            case "MultiPoint":
+                add(new PointRoi(ringsX.get(0), ringsY.get(0), ringsX.get(0).length), name);
+                break;
+            case "LineString":
+            case "MultiLineString":
+                for (int i = 0; i < ringsX.size(); i++) {
+                    add(new PolygonRoi(ringsX.get(i), ringsY.get(i), Roi.POLYLINE), name);
+                }
+                break;
+            case "Polygon":
+            case "MultiPolygon":
+                add(polygon(), name);
+                break;
+            default:
+                skipped++;
+        }
+    }
+
+    /**
+     * Build the ROI of the polygons of the geometry: a polygon ROI for a single ring, otherwise a shape ROI made of
+     * the exterior rings (first ring of each part) minus the holes
+     *
+     * @return
+     */
+    private Roi polygon() {
+        if (ringsX.size() == 1) {
+            return ring(0);
+        }
+        ShapeRoi shape = null;
+        ShapeRoi holes = null;
+        for (int i = 0; i < ringsX.size(); i++) {
+            boolean exterior = (i == 0) || !ringParts.get(i).equals(ringParts.get(i - 1));
+            ShapeRoi ring = new ShapeRoi(ring(i));
+            if (exterior) {
+                shape = (shape == null) ? ring : shape.or(ring);
+            } else {
+                holes = (holes == null) ? ring : holes.or(ring);
+            }
+        }
+        return (holes == null) ? shape : shape.not(holes);
+    }
+
+    // Polygon ROI of a ring, without the closing position repeating the first one
+    private PolygonRoi ring(int index) {
+        float[] rx = ringsX.get(index);
+        float[] ry = ringsY.get(index);
+        int n = rx.length;
+        if (n > 1 && rx[0] == rx[n - 1] && ry[0] == ry[n - 1]) {
+            n--;
+        }
+        return new PolygonRoi(rx, ry, n, Roi.POLYGON);
+    }
+
+    private void add(Roi roi, String name) {
+        if (name != null) {
+            roi.setName(name);
+        }
+        batch.add(roi);
+        count++;
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (!batch.isEmpty()) {
+            consumer.accept(batch.toArray(new Roi[0]));
+            batch.clear();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package ch.epfl.pyalgos.client;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the connections of the {@link PyAlgosHttpClient}: connection pool, dispatcher, protocol, timeouts
+ * of each phase of a request, and size of the buffers of the response bodies.
+ * <p>
+ * The configuration is applied with {@link PyAlgosClient#setHttpConfig(HttpClientConfig)}, which rebuilds the HTTP
+ * client; the calls in flight complete with the previous configuration.
+ */
+public class HttpClientConfig {
+
+    static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    static final long DEFAULT_KEEP_ALIVE = TimeUnit.MINUTES.toSeconds(5);
+    static final int DEFAULT_MAX_REQUESTS = 64;
+    static final int DEFAULT_MAX_REQUESTS_PER_HOST = 16;
+    static final long DEFAULT_CONNECT_TIMEOUT = 10;
+    static final long DEFAULT_READ_TIMEOUT = TimeUnit.MINUTES.toSeconds(10);
+    static final long DEFAULT_WRITE_TIMEOUT = TimeUnit.MINUTES.toSeconds(10);
+    static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+
+    // Idle connections kept in the pool, and how long they are kept alive (seconds)
+    private int maxIdleConnections = DEFAULT_MAX_IDLE_CONNECTIONS;
+    private long keepAlive = DEFAULT_KEEP_ALIVE;
+
+    // Maximal number of asynchronous calls in flight, in total and to each host
+    private int maxRequests = DEFAULT_MAX_REQUESTS;
+    private int maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST;
+
+    // Use HTTP/2 without TLS from the first request (h2c with prior knowledge), to multiplex the requests on one
+    // connection
+    private boolean http2PriorKnowledge = false;
+
+    // Disable Nagle's algorithm, which delays the small writes (e.g. the end of a request body) until the previous
+    // segment is acknowledged
+    private boolean tcpNoDelay = true;
+
+    // Timeouts of each phase (seconds), 0 for no timeout
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long readTimeout = DEFAULT_READ_TIMEOUT;
+    private long writeTimeout = DEFAULT_WRITE_TIMEOUT;
+    private long callTimeout = 0;
+
+    // Size of the buffers in which the response bodies are read (bytes)
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    public HttpClientConfig() {
+    }
+
+    /**
+     * Initialize a copy of the given configuration
+     *
+     * @param config
+     */
+    public HttpClientConfig(HttpClientConfig config) {
+        this.maxIdleConnections = config.maxIdleConnections;
+        this.keepAlive = config.keepAlive;
+        this.maxRequests = config.maxRequests;
+        this.maxRequestsPerHost = config.maxRequestsPerHost;
+        this.http2PriorKnowledge = config.http2PriorKnowledge;
+        this.tcpNoDelay = config.tcpNoDelay;
+        this.connectTimeout = config.connectTimeout;
+        this.readTimeout = config.readTimeout;
+        this.writeTimeout = config.writeTimeout;
+        this.callTimeout = config.callTimeout;
+        this.bufferSize = config.bufferSize;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Set the number of idle connections kept in the pool, to be reused by the next requests instead of opening new
+     * connections. It should be at least the number of work units processed at the same time.
+     *
+     * @param maxIdleConnections
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = Math.max(0, maxIdleConnections);
+    }
+
+    public long getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Set how long the idle connections are kept in the pool
+     *
+     * @param keepAlive (seconds)
+     */
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = Math.max(1, keepAlive);
+    }
+
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    /**
+     * Set the maximal number of asynchronous calls in flight (the requests of the work units are synchronous calls,
+     * bounded by {@link PyAlgosClient#setMaxInFlight(int)})
+     *
+     * @param maxRequests (at least 1)
+     */
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = Math.max(1, maxRequests);
+    }
+
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    /**
+     * Set the maximal number of asynchronous calls in flight to each host
+     *
+     * @param maxRequestsPerHost (at least 1)
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+    }
+
+    public boolean isHttp2PriorKnowledge() {
+        return http2PriorKnowledge;
+    }
+
+    /**
+     * Send the requests with HTTP/2 without TLS from the start (h2c with prior knowledge), so that the requests in
+     * flight are multiplexed on a single connection. Only for http:// servers that accept HTTP/2 (e.g. hypercorn),
+     * the requests to other servers fail.
+     *
+     * @param http2PriorKnowledge
+     */
+    public void setHttp2PriorKnowledge(boolean http2PriorKnowledge) {
+        this.http2PriorKnowledge = http2PriorKnowledge;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Disable Nagle's algorithm on the connections, so that the last segment of a request is sent without waiting
+     * for the acknowledgement of the previous one (up to 40 ms per request with delayed acknowledgements)
+     *
+     * @param tcpNoDelay
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set the timeout to open a connection
+     *
+     * @param connectTimeout (seconds), 0 for no timeout
+     */
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    public long getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Set the maximal time without receiving any data of a response, e.g. while the server computes the result
+     *
+     * @param readTimeout (seconds), 0 for no timeout
+     */
+    public void setReadTimeout(long readTimeout) {
+        this.readTimeout = Math.max(0, readTimeout);
+    }
+
+    public long getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    /**
+     * Set the maximal time without sending any data of a request
+     *
+     * @param writeTimeout (seconds), 0 for no timeout
+     */
+    public void setWriteTimeout(long writeTimeout) {
+        this.writeTimeout = Math.max(0, writeTimeout);
+    }
+
+    public long getCallTimeout() {
+        return callTimeout;
+    }
+
+    /**
+     * Set the maximal duration of a whole call, from the connection to the end of the response body
+     *
+     * @param callTimeout (seconds), 0 for no timeout
+     */
+    public void setCallTimeout(long callTimeout) {
+        this.callTimeout = Math.max(0, callTimeout);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the size of the buffers in which the response bodies (TIFF or JSON result images) are read
+     *
+     * @param bufferSize (bytes)
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(8192, bufferSize);
+    }
+
+    @Override
+    public String toString() {
+        return "HTTP client: " + maxIdleConnections + " idle connections kept " + keepAlive + " s, " +
+                maxRequests + " requests (" + maxRequestsPerHost + " per host), " +
+                (http2PriorKnowledge ? "h2c" : "HTTP/1.1") + (tcpNoDelay ? ", TCP_NODELAY" : "") +
+                ", timeouts " + connectTimeout + " s (connect), " + readTimeout + " s (read), " +
+                writeTimeout + " s (write), " + callTimeout + " s (call), buffers of " + (bufferSize >> 10) + " KB";
+    }
+
+    /**
+     * Socket factory disabling Nagle's algorithm on the sockets it creates
+     */
+    static class NoDelaySocketFactory extends SocketFactory {
+
+        private final SocketFactory delegate = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return noDelay(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return noDelay(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return noDelay(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return noDelay(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return noDelay(delegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        private static Socket noDelay(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package ch.epfl.pyalgos.client;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+/**
+ * Record the phases of the HTTP calls in the {@link Metrics}: DNS lookup, connection, TLS handshake, upload of the
+ * request, time to the first byte of the response (i.e. the time spent by the server), download of the response
+ * body, with the bytes sent and received on the wire. The calls tagged with a {@link Job} are recorded in the metrics
+ * of the run, the others in the global metrics.
+ */
+class HttpMetricsListener extends EventListener {
+
+    /**
+     * Factory of the listeners, one per call
+     */
+    static class Factory implements EventListener.Factory {
+
+        private final Metrics metrics;
+
+        Factory(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            Object tag = call.request().tag();
+            return new HttpMetricsListener((tag instanceof Job) ? ((Job) tag).getMetrics() : metrics);
+        }
+    }
+
+    private final Metrics metrics;
+
+    private long callStart;
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+    private long requestStart;
+    private long requestEnd;
+    private long responseBodyStart;
+
+    private HttpMetricsListener(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        metrics.recordSince("http.dns", dnsStart);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        metrics.recordSince("http.tls", secureConnectStart);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        metrics.recordSince("http.connect", connectStart);
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol,
+                              IOException ioe) {
+        metrics.increment("http.connect_failures", 1);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        requestStart = System.nanoTime();
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, okhttp3.Request request) {
+        // End of the request if it has no body
+        requestEnd = System.nanoTime();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestEnd = metrics.recordSince("http.request_body", requestStart);
+        metrics.increment("bytes.sent", byteCount);
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        metrics.recordSince("http.ttfb", requestEnd);
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        responseBodyStart = System.nanoTime();
+        if (response.code() >= 400) {
+            metrics.increment("http.errors." + response.code(), 1);
+        }
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        metrics.recordSince("http.response_body", responseBodyStart);
+        metrics.increment("bytes.received", byteCount);
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        metrics.recordSince("http.call", callStart);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        metrics.increment("http.failures", 1);
+    }
+}
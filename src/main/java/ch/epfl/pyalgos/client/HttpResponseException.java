@@ -0,0 +1,35 @@
+package ch.epfl.pyalgos.client;
+
+import java.io.IOException;
+
+/**
+ * Error response of the server to a request, with its HTTP code
+ */
+public class HttpResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    /**
+     * @param code    HTTP code of the response
+     * @param message message detailing the request and the error
+     */
+    public HttpResponseException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Check whether the error comes from the server itself (5xx), rather than from the request
+     *
+     * @return
+     */
+    public boolean isServerError() {
+        return code >= 500;
+    }
+}
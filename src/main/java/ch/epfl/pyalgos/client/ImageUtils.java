@@ -0,0 +1,157 @@
+package ch.epfl.pyalgos.client;
+
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+
+/**
+ * Bulk pixel operations on {@link ImageProcessor}s, working directly on the primitive pixel arrays
+ */
+public final class ImageUtils {
+
+    private ImageUtils() {
+    }
+
+    /**
+     * Get the ROI selecting a region of the image. The line and point ROIs, whose bounds may be empty, select the
+     * full image, like no ROI.
+     *
+     * @param roi {@link Roi} of the selection, can be null
+     * @return the ROI if it is an area, null otherwise
+     */
+    public static Roi getAreaRoi(Roi roi) {
+        return (roi != null && roi.isArea() && !roi.getBounds().isEmpty()) ? roi : null;
+    }
+
+    /**
+     * Extract the pixels of the processor inside the bounding box of the ROI (or the full processor if the ROI is
+     * null or not an area). The pixels outside of the ROI's mask are set to 0 for non-rectangular ROIs.
+     *
+     * @param ip  {@link ImageProcessor} of the selected slice/channel
+     * @param roi {@link Roi} of the selection, can be null
+     * @return new {@link ImageProcessor} of the same type as ip
+     */
+    public static ImageProcessor extract(ImageProcessor ip, Roi roi) {
+        Roi areaRoi = getAreaRoi(roi);
+        Rectangle bounds = (areaRoi == null) ? new Rectangle(0, 0, ip.getWidth(), ip.getHeight()) :
+                areaRoi.getBounds();
+        return extract(ip, areaRoi, bounds);
+    }
+
+    /**
+     * Extract the pixels of the processor inside the given rectangle. The pixels outside of the ROI's mask are set
+     * to 0 for non-rectangular ROIs.
+     *
+     * @param ip   {@link ImageProcessor} of the selected slice/channel
+     * @param roi  {@link Roi} of the selection, can be null, ignored if not an area
+     * @param rect region to extract, in the coordinates of ip
+     * @return new {@link ImageProcessor} of the same type as ip, with the size of rect
+     */
+    public static ImageProcessor extract(ImageProcessor ip, Roi roi, Rectangle rect) {
+        ImageProcessor cropped = crop(ip, rect);
+        roi = getAreaRoi(roi);
+        if (roi == null) {
+            return cropped;
+        }
+        ImageProcessor mask = roi.getMask();
+        Rectangle bounds = roi.getBounds();
+        if (mask != null && mask.getWidth() == bounds.width && mask.getHeight() == bounds.height) {
+            Rectangle maskRect = new Rectangle(rect.x - bounds.x, rect.y - bounds.y, rect.width, rect.height);
+            clearOutside(cropped, crop(mask, maskRect));
+        }
+        return cropped;
+    }
+
+    /**
+     * Copy the pixels of the processor inside the given rectangle, row by row. The parts of the rectangle lying
+     * outside the processor are filled with 0.
+     *
+     * @param ip   source {@link ImageProcessor} (8, 16, 32-bit or RGB)
+     * @param rect region to copy, in the coordinates of ip
+     * @return new {@link ImageProcessor} of the same type as ip, with the size of rect
+     */
+    public static ImageProcessor crop(ImageProcessor ip, Rectangle rect) {
+        ImageProcessor cropped = ip.createProcessor(rect.width, rect.height);
+        Rectangle src = rect.intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        if (src.isEmpty()) {
+            return cropped;
+        }
+        Object srcPixels = ip.getPixels();
+        Object dstPixels = cropped.getPixels();
+        int srcWidth = ip.getWidth();
+        for (int y = src.y; y < src.y + src.height; ++y) {
+            System.arraycopy(srcPixels, y * srcWidth + src.x,
+                    dstPixels, (y - rect.y) * rect.width + (src.x - rect.x), src.width);
+        }
+        return cropped;
+    }
+
+    /**
+     * Get the calibration of the pixels inside the given rectangle, whose origin is shifted by the location of the
+     * rectangle, so that the calibrated coordinates of the pixels are kept
+     *
+     * @param calibration {@link Calibration} of the image
+     * @param rect        region of the image
+     * @return new {@link Calibration}
+     */
+    public static Calibration crop(Calibration calibration, Rectangle rect) {
+        Calibration cropped = calibration.copy();
+        cropped.xOrigin -= rect.x;
+        cropped.yOrigin -= rect.y;
+        return cropped;
+    }
+
+    /**
+     * Copy a rectangle of the source processor into the destination processor at the given location, row by row
+     *
+     * @param src     source {@link ImageProcessor}
+     * @param srcRect region of src to copy, must lie inside src
+     * @param dst     destination {@link ImageProcessor} of the same type as src
+     * @param x       location of the region in dst
+     * @param y       location of the region in dst
+     */
+    public static void insert(ImageProcessor src, Rectangle srcRect, ImageProcessor dst, int x, int y) {
+        Object srcPixels = src.getPixels();
+        Object dstPixels = dst.getPixels();
+        int srcWidth = src.getWidth();
+        int dstWidth = dst.getWidth();
+        for (int row = 0; row < srcRect.height; ++row) {
+            System.arraycopy(srcPixels, (srcRect.y + row) * srcWidth + srcRect.x,
+                    dstPixels, (y + row) * dstWidth + x, srcRect.width);
+        }
+    }
+
+    /**
+     * Set to 0 the pixels of the processor where the mask is 0
+     *
+     * @param ip   {@link ImageProcessor} to modify in place
+     * @param mask 8-bit mask with the same size as ip (non-zero = inside)
+     */
+    public static void clearOutside(ImageProcessor ip, ImageProcessor mask) {
+        byte[] maskPixels = (byte[]) mask.getPixels();
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0; i < maskPixels.length; ++i) {
+                if (maskPixels[i] == 0) p[i] = 0;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = 0; i < maskPixels.length; ++i) {
+                if (maskPixels[i] == 0) p[i] = 0;
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = 0; i < maskPixels.length; ++i) {
+                if (maskPixels[i] == 0) p[i] = 0;
+            }
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            for (int i = 0; i < maskPixels.length; ++i) {
+                if (maskPixels[i] == 0) p[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package ch.epfl.pyalgos.client;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Handle of a run submitted with {@link PyAlgosClient#submit(ImagePlus, String, Map, boolean, boolean)}: the future
+ * result, the outputs, the progress of the run over all its work units (tiles, planes), and its cancellation.
+ * <p>
+ * Cancelling the run stops the units not started yet, aborts the requests in flight, and cancels the jobs running on
+ * the server (DELETE /jobs/{id}) so that the server-side work is freed.
+ */
+public class Job {
+
+    private final CompletableFuture<ImagePlus> future = new CompletableFuture<>();
+
+    // Client of the server, whose requests are tagged with the job
+    private final PyAlgosHttpClient httpClient;
+
+    private volatile boolean cancelled = false;
+
+    // Number of work units of the run, their progress is reported by unit
+    private int units = 1;
+    private double unitsDone = 0;
+    private final Map<Object, Double> unitsRunning = new ConcurrentHashMap<>();
+
+    // Jobs running on the server, with the client of their server or session
+    private final Map<String, PyAlgosHttpClient> serverJobs = new ConcurrentHashMap<>();
+
+    // Timings of the phases of the run, also recorded in the global metrics
+    private final Metrics metrics;
+
+    // Window of the work units of the run (planes, tiles, combinations, outputs), shared by all its levels
+    private volatile PipelinedExecutor executor;
+
+    // Routes all the outputs of the result to their ImageJ sinks, null if the run only fetches the image
+    private volatile ResultOutputs outputs;
+    // Sinks of the outputs if the result has no image while the run only fetches the image, null for the runs on
+    // several planes or tiles
+    private volatile ResultOutputs fallbackOutputs;
+
+    Job(PyAlgosHttpClient httpClient) {
+        this.httpClient = httpClient;
+        this.metrics = new Metrics(httpClient.getMetrics());
+        // Cancelling the future, e.g. from a script, cancels the run
+        future.whenComplete((result, failure) -> {
+            if (future.isCancelled()) {
+                cancel();
+            }
+        });
+    }
+
+    /**
+     * Get the future result of the run
+     *
+     * @return
+     */
+    public CompletableFuture<ImagePlus> getFuture() {
+        return future;
+    }
+
+    /**
+     * Wait for the result of the run
+     *
+     * @return resulting {@link ImagePlus}, null if the result has no image but other outputs ({@link #getOutputs()})
+     * @throws IOException if the run failed, or {@link InterruptedIOException} if it was cancelled or the wait was
+     *                     interrupted
+     */
+    public ImagePlus getResult() throws IOException {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Processing cancelled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the result");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Get the metrics of the run: timings of its phases and of its HTTP calls, bytes transferred, errors
+     *
+     * @return
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the outputs of the result besides its image: features, mask, other images and tables
+     *
+     * @return null if the run only fetches the image
+     */
+    public ResultOutputs getOutputs() {
+        return outputs;
+    }
+
+    void setOutputs(ResultOutputs outputs) {
+        this.outputs = outputs;
+    }
+
+    /**
+     * Get the sinks of the outputs of a result without image, used if the run only fetches the image
+     *
+     * @return null if the run cannot route the outputs (e.g. tiles, planes of a stack)
+     */
+    ResultOutputs getFallbackOutputs() {
+        return fallbackOutputs;
+    }
+
+    void setFallbackOutputs(ResultOutputs fallbackOutputs) {
+        this.fallbackOutputs = fallbackOutputs;
+    }
+
+    /**
+     * Route the outputs of a result without image to their sinks, although the run only fetches the image
+     *
+     * @return the sinks of the outputs, null if the run cannot route them
+     */
+    synchronized ResultOutputs useFallbackOutputs() {
+        if (outputs == null) {
+            outputs = fallbackOutputs;
+        }
+        return outputs;
+    }
+
+    /**
+     * Get the window in which all the work units of the run are submitted, so that at most the concurrency of the
+     * client is in flight whatever the levels of the run (e.g. the tiles of the planes of a stack). The units do not
+     * submit other units to it nor wait for it, which could exhaust the window.
+     *
+     * @return
+     */
+    PipelinedExecutor getExecutor() {
+        return executor;
+    }
+
+    void setExecutor(PipelinedExecutor executor) {
+        this.executor = executor;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Get the progress of the run over all its work units
+     *
+     * @return between 0 and 1
+     */
+    public synchronized double getProgress() {
+        double progress = unitsDone;
+        for (double fraction : unitsRunning.values()) {
+            progress += fraction;
+        }
+        return Math.min(1.0, progress / units);
+    }
+
+    /**
+     * Cancel the run: the units not started yet are not run, the requests in flight are aborted, and the jobs running
+     * on the server are cancelled (in the background, in case the server does not answer)
+     *
+     * @return false if the run was already completed or cancelled
+     */
+    public boolean cancel() {
+        synchronized (this) {
+            if (cancelled || (future.isDone() && !future.isCancelled())) {
+                return false;
+            }
+            cancelled = true;
+        }
+        future.cancel(false);
+        httpClient.cancelCalls(this);
+        if (!serverJobs.isEmpty()) {
+            Thread thread = new Thread(this::cancelServerJobs, PyAlgosClient.name + " job cancellation");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return true;
+    }
+
+    /**
+     * Add work units to the run, e.g. when an image is split into n tiles (n - 1 units are added, the image itself
+     * being already counted)
+     *
+     * @param count
+     */
+    synchronized void addUnits(int count) {
+        units += count;
+    }
+
+    /**
+     * Report the progress of a work unit, and show the progress of the run in the ImageJ progress bar
+     *
+     * @param unit     the work unit (e.g. the image processed)
+     * @param fraction progress of the unit, 1 when completed
+     */
+    void reportProgress(Object unit, double fraction) {
+        synchronized (this) {
+            if (fraction >= 1.0) {
+                unitsRunning.remove(unit);
+                unitsDone += 1.0;
+            } else {
+                unitsRunning.put(unit, Math.max(0.0, fraction));
+            }
+        }
+        IJ.showProgress(getProgress());
+    }
+
+    /**
+     * Throw an exception if the run was cancelled, to stop a work unit
+     *
+     * @throws InterruptedIOException if the run was cancelled
+     */
+    void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Processing cancelled");
+        }
+    }
+
+    void addServerJob(String jobId, PyAlgosHttpClient httpClient) throws InterruptedIOException {
+        serverJobs.put(jobId, httpClient);
+        // The run may have been cancelled while the job was submitted
+        if (cancelled) {
+            cancelServerJobs();
+            checkCancelled();
+        }
+    }
+
+    void removeServerJob(String jobId) {
+        serverJobs.remove(jobId);
+    }
+
+    private void cancelServerJobs() {
+        for (Map.Entry<String, PyAlgosHttpClient> serverJob : serverJobs.entrySet()) {
+            if (serverJobs.remove(serverJob.getKey()) == null) {
+                continue;
+            }
+            try {
+                serverJob.getValue().cancelJob(serverJob.getKey()).close();
+            } catch (IOException ignored) {
+                // The job will complete on the server, its result is not fetched
+            }
+        }
+    }
+}
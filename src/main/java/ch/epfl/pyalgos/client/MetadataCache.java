@@ -0,0 +1,132 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import okhttp3.Response;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the metadata fetched from the servers (algorithms names, required parameters), by server URL and path.
+ * An entry younger than the time-to-live is returned without any request; an older entry is revalidated with a
+ * conditional GET (If-None-Match with the entry's ETag), which costs an empty 304 response if it did not change.
+ * The entries can be persisted to a file to be reused between restarts.
+ */
+public class MetadataCache {
+
+    static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private static class Entry {
+        String etag;
+        String body;
+        long fetchedAt;
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Time-to-live of the entries (milliseconds)
+    private long ttl = DEFAULT_TTL;
+
+    // File where the entries are persisted, null to keep them in memory only
+    private File file;
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Set the time-to-live of the entries, after which they are revalidated with the server
+     *
+     * @param ttl (milliseconds), 0 to revalidate on every access
+     */
+    public void setTtl(long ttl) {
+        this.ttl = Math.max(0, ttl);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Persist the entries to the given file, and load the entries already stored in it
+     *
+     * @param file null to keep the entries in memory only
+     */
+    public void setFile(File file) {
+        this.file = file;
+        if (file != null && file.isFile()) {
+            load(file);
+        }
+    }
+
+    /**
+     * Remove all the entries
+     */
+    public void clear() {
+        entries.clear();
+        save();
+    }
+
+    /**
+     * Get the body of the GET request at the path, from the cache if the entry is fresh or still valid
+     *
+     * @param httpClient {@link PyAlgosHttpClient} of the server
+     * @param path       path of the request (e.g. "/algos_names/")
+     * @return body of the response
+     * @throws IOException if the request failed
+     */
+    public String get(PyAlgosHttpClient httpClient, String path) throws IOException {
+        String key = httpClient.getApiUrl() + path;
+        Entry entry = entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.fetchedAt < ttl) {
+            return entry.body;
+        }
+
+        try (Response response = httpClient.getConditional(path, (entry == null) ? null : entry.etag)) {
+            if (response.code() == 304 && entry != null) {
+                entry.fetchedAt = now;
+                save();
+                return entry.body;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("HTTP response " + response.code() + " for " + path);
+            }
+            Entry fetched = new Entry();
+            fetched.etag = response.header("ETag");
+            fetched.body = response.body().string();
+            fetched.fetchedAt = now;
+            entries.put(key, fetched);
+            save();
+            return fetched.body;
+        }
+    }
+
+    private void load(File file) {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            Map<String, Entry> loaded = new Gson().fromJson(reader, new TypeToken<Map<String, Entry>>() {
+            }.getType());
+            if (loaded != null) {
+                entries.putAll(loaded);
+            }
+        } catch (IOException | JsonParseException ignored) {
+            // Invalid cache file: start with an empty cache
+        }
+    }
+
+    private synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            new Gson().toJson(entries, writer);
+        } catch (IOException ignored) {
+            // The cache still works in memory
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.GsonBuilder;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings of the phases of the processing (selection, encoding, upload, computation, download, decoding, and the
+ * phases of the HTTP calls: DNS, connection, time to first byte), sizes of the transfers and error counts.
+ * <p>
+ * The client has global metrics, exposed with JMX ({@link #registerMBean()}) and forwarded to the registered
+ * {@link Registry} (e.g. an adapter to Micrometer); each run has its own metrics ({@link Job#getMetrics()}), also
+ * recorded in the global metrics, which can be logged as a summary or dumped as JSON.
+ */
+public class Metrics {
+
+    /**
+     * Registry receiving the timings and counters as they are recorded
+     */
+    public interface Registry {
+        void recordTime(String name, long nanos);
+
+        void increment(String name, long delta);
+    }
+
+    static final String MBEAN_NAME = "ch.epfl.pyalgos:type=Metrics";
+
+    /**
+     * Histogram of durations, with 4 buckets per power of 2 (quantiles within 19%)
+     */
+    public static class Histogram {
+
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(1, nanos);
+            buckets.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long current;
+            while (nanos < (current = min.get()) && !min.compareAndSet(current, nanos)) {
+                // Retry
+            }
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // Retry
+            }
+        }
+
+        private static int bucket(long nanos) {
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int fraction = (exponent < 2) ? 0 : (int) ((nanos >> (exponent - 2)) & (SUB_BUCKETS - 1));
+            return exponent * SUB_BUCKETS + fraction;
+        }
+
+        // Upper bound of the bucket
+        private static long bound(int bucket) {
+            int exponent = bucket / SUB_BUCKETS;
+            int fraction = bucket % SUB_BUCKETS;
+            return (exponent < 2) ? (1L << exponent) : (1L << exponent) + ((fraction + 1L) << (exponent - 2));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return total duration (nanoseconds)
+         */
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getMin() {
+            return (count.get() == 0) ? 0 : min.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return (n == 0) ? 0 : (double) total.get() / n;
+        }
+
+        /**
+         * Get the given quantile of the durations
+         *
+         * @param quantile between 0 and 1 (e.g. 0.95)
+         * @return upper bound of the bucket of the quantile, within the minimum and the maximum (nanoseconds)
+         */
+        public long getQuantile(double quantile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.max(getMin(), Math.min(getMax(), bound(i)));
+                }
+            }
+            return getMax();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", getCount());
+            map.put("total_ms", millis(getTotal()));
+            map.put("mean_ms", millis(getMean()));
+            map.put("min_ms", millis(getMin()));
+            map.put("p50_ms", millis(getQuantile(0.5)));
+            map.put("p95_ms", millis(getQuantile(0.95)));
+            map.put("p99_ms", millis(getQuantile(0.99)));
+            map.put("max_ms", millis(getMax()));
+            return map;
+        }
+    }
+
+    // Metrics in which the records are also made, null for the global metrics
+    private final Metrics parent;
+
+    private final Map<String, Histogram> timings = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final List<Registry> registries = new CopyOnWriteArrayList<>();
+
+    public Metrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent metrics in which the records are also made (e.g. the global metrics of the client)
+     */
+    public Metrics(Metrics parent) {
+        this.parent = parent;
+    }
+
+    public void addRegistry(Registry registry) {
+        registries.add(registry);
+    }
+
+    public void removeRegistry(Registry registry) {
+        registries.remove(registry);
+    }
+
+    /**
+     * Record the duration of a phase
+     *
+     * @param name  name of the phase (e.g. "upload")
+     * @param nanos duration (nanoseconds)
+     */
+    public void recordTime(String name, long nanos) {
+        Histogram histogram = timings.get(name);
+        if (histogram == null) {
+            histogram = timings.computeIfAbsent(name, key -> new Histogram());
+        }
+        histogram.record(nanos);
+        for (Registry registry : registries) {
+            registry.recordTime(name, nanos);
+        }
+        if (parent != null) {
+            parent.recordTime(name, nanos);
+        }
+    }
+
+    /**
+     * Record the duration of a phase started at the given time
+     *
+     * @param name  name of the phase
+     * @param start start of the phase, from {@link System#nanoTime()}
+     * @return end of the phase, i.e. the start of the next phase
+     */
+    public long recordSince(String name, long start) {
+        long end = System.nanoTime();
+        recordTime(name, end - start);
+        return end;
+    }
+
+    /**
+     * Increment a counter (e.g. the bytes sent, the errors)
+     *
+     * @param name
+     * @param delta
+     */
+    public void increment(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, key -> new AtomicLong());
+        }
+        counter.addAndGet(delta);
+        for (Registry registry : registries) {
+            registry.increment(name, delta);
+        }
+        if (parent != null) {
+            parent.increment(name, delta);
+        }
+    }
+
+    /**
+     * Get the histogram of the durations of a phase
+     *
+     * @param name
+     * @return null if the phase was never recorded
+     */
+    public Histogram getTiming(String name) {
+        return timings.get(name);
+    }
+
+    /**
+     * Get the value of a counter
+     *
+     * @param name
+     * @return 0 if the counter was never incremented
+     */
+    public long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return (counter == null) ? 0 : counter.get();
+    }
+
+    public void reset() {
+        timings.clear();
+        counters.clear();
+    }
+
+    /**
+     * Get a snapshot of the timings (count, total, mean, quantiles in milliseconds) and counters
+     *
+     * @return
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> timingsMap = new TreeMap<>();
+        for (Map.Entry<String, Histogram> timing : timings.entrySet()) {
+            timingsMap.put(timing.getKey(), timing.getValue().toMap());
+        }
+        Map<String, Object> countersMap = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+            countersMap.put(counter.getKey(), counter.getValue().get());
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("timings", timingsMap);
+        map.put("counters", countersMap);
+        return map;
+    }
+
+    /**
+     * Get a snapshot of the metrics as JSON
+     *
+     * @return
+     */
+    public String toJson() {
+        return new GsonBuilder().setPrettyPrinting().create().toJson(toMap());
+    }
+
+    /**
+     * Get a summary of the metrics, one line per phase and counter
+     *
+     * @return
+     */
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        for (String name : new TreeSet<>(timings.keySet())) {
+            Histogram histogram = timings.get(name);
+            builder.append(String.format("%-22s %6d x %9.1f ms (p50 %.1f, p95 %.1f, max %.1f ms), total %.1f ms%n",
+                    name, histogram.getCount(), millis(histogram.getMean()), millis(histogram.getQuantile(0.5)),
+                    millis(histogram.getQuantile(0.95)), millis(histogram.getMax()),
+                    millis(histogram.getTotal())));
+        }
+        for (String name : new TreeSet<>(counters.keySet())) {
+            builder.append(String.format("%-22s %d%n", name, counters.get(name).get()));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics:\n" + summary();
+    }
+
+    /**
+     * Expose the metrics with JMX, as the MBean "ch.epfl.pyalgos:type=Metrics" of the platform MBean server: an
+     * attribute per counter and per statistic of each phase (e.g. "upload.p95_ms"), and a "reset" operation
+     *
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MBEAN_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new MetricsMBean(), name);
+    }
+
+    private static double millis(double nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    /**
+     * Attributes of the metrics, read from their current snapshot
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        private Map<String, Object> attributes() {
+            Map<String, Object> attributes = new TreeMap<>();
+            for (Map.Entry<String, Histogram> timing : timings.entrySet()) {
+                for (Map.Entry<String, Object> statistic : timing.getValue().toMap().entrySet()) {
+                    attributes.put(timing.getKey() + "." + statistic.getKey(),
+                            ((Number) statistic.getValue()).doubleValue());
+                }
+            }
+            for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+                attributes.put(counter.getKey(), (double) counter.getValue().get());
+            }
+            return attributes;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> attributes = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (actionName.equals("reset")) {
+                reset();
+                return null;
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (String name : attributes().keySet()) {
+                infos.add(new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false));
+            }
+            MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Reset the metrics",
+                    new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+            return new MBeanInfo(Metrics.class.getName(), "Metrics of the " + PyAlgosClient.name + " client",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[]{reset}, null);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ch.epfl.pyalgos.client;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.plugin.MontageMaker;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process the selected ROI of the current plane with every combination of the values of the swept parameters (grid
+ * search), e.g. to pick a threshold or a sigma. Each combination is a work unit dispatched to the server, concurrently
+ * within the in-flight window of the run; on the servers with sessions, the image is kept in the sessions between the
+ * combinations (see {@link PyAlgosClient#setResidentImageTimeout(long)}), so that it is only sent once per session.
+ * <p>
+ * The results are assembled in a stack whose slices are labeled with the values of the combination and its
+ * processing time, or in a montage of the slices. The processing time of each combination is also available in a
+ * {@link ResultsTable} ({@link #getTimings(ImagePlus)}).
+ */
+public class ParameterSweep {
+
+    /**
+     * Property of the result holding the {@link ResultsTable} of the processing times of the combinations
+     */
+    public static final String TIMINGS_PROPERTY = "PyAlgos sweep timings";
+
+    // Maximal number of combinations of a sweep
+    static final int MAX_COMBINATIONS = 10000;
+
+    /**
+     * Parse the values of a numeric parameter: a range "start:stop:step" (stop included, step 1 by default, e.g.
+     * "0.5:2:0.5"), a list "a, b, c", or a single value
+     *
+     * @param text
+     * @param type type of the parameter in the schema of the algorithm ("int" or "float")
+     * @return the values, as Integer for "int" and Float for "float"
+     * @throws IllegalArgumentException (NumberFormatException) if the values cannot be parsed, or if the range is
+     *                                  empty or too large
+     */
+    public static List<Object> parseValues(String text, String type) {
+        List<Object> values = new ArrayList<>();
+        String[] range = text.split(":");
+        if (range.length == 2 || range.length == 3) {
+            // Decimal arithmetic, so that 0.1:0.3:0.1 does not miss 0.3 by a rounding error
+            BigDecimal start = new BigDecimal(range[0].trim());
+            BigDecimal stop = new BigDecimal(range[1].trim());
+            BigDecimal step = (range.length == 3) ? new BigDecimal(range[2].trim()) : BigDecimal.ONE;
+            if (step.signum() <= 0 || stop.compareTo(start) < 0) {
+                throw new NumberFormatException("Invalid range: " + text);
+            }
+            for (BigDecimal value = start; value.compareTo(stop) <= 0; value = value.add(step)) {
+                if (values.size() >= MAX_COMBINATIONS) {
+                    throw new NumberFormatException("Too many values in the range " + text);
+                }
+                values.add(toNumber(value.toPlainString(), type));
+            }
+        } else if (range.length == 1) {
+            for (String value : text.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    values.add(toNumber(value.trim(), type));
+                }
+            }
+        }
+        if (values.isEmpty()) {
+            throw new NumberFormatException("Invalid values: " + text);
+        }
+        return values;
+    }
+
+    private static Object toNumber(String value, String type) {
+        return type.equals("int") ? (Object) Integer.parseInt(value) : (Object) Float.parseFloat(value);
+    }
+
+    /**
+     * Get all the combinations of the values of the parameters, the first parameter varying the slowest
+     *
+     * @param values values of each parameter, a single value for the parameters not swept
+     * @return
+     * @throws IOException if there are more than {@value #MAX_COMBINATIONS} combinations, or no values for a
+     *                     parameter
+     */
+    public static List<Map<String, Object>> getCombinations(Map<String, List<Object>> values) throws IOException {
+        List<Map<String, Object>> combinations = new ArrayList<>();
+        combinations.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<Object>> parameter : values.entrySet()) {
+            if (parameter.getValue().isEmpty()) {
+                throw new IOException("No value for the parameter " + parameter.getKey());
+            }
+            if ((long) combinations.size() * parameter.getValue().size() > MAX_COMBINATIONS) {
+                throw new IOException("Too many combinations of parameters (at most " + MAX_COMBINATIONS + ")");
+            }
+            List<Map<String, Object>> next = new ArrayList<>();
+            for (Map<String, Object> combination : combinations) {
+                for (Object value : parameter.getValue()) {
+                    Map<String, Object> extended = new LinkedHashMap<>(combination);
+                    extended.put(parameter.getKey(), value);
+                    next.add(extended);
+                }
+            }
+            combinations = next;
+        }
+        return combinations;
+    }
+
+    /**
+     * Get the processing times of the combinations of a sweep
+     *
+     * @param result result of {@link PyAlgosClient#sweep(ImagePlus, String, Map)}
+     * @return a row by combination, with the values of the swept parameters and the time (ms); null if the image is
+     * not the result of a sweep
+     */
+    public static ResultsTable getTimings(ImagePlus result) {
+        Object timings = result.getProperty(TIMINGS_PROPERTY);
+        return (timings instanceof ResultsTable) ? (ResultsTable) timings : null;
+    }
+
+    /**
+     * Process the selected ROI of the current plane with every combination of the values, and assemble the results
+     *
+     * @param client   {@link PyAlgosClient} connected to the server
+     * @param image    {@link ImagePlus} to process (current plane and ROI)
+     * @param algoName Name of the algorithm
+     * @param values   values of each parameter, a single value for the parameters not swept
+     * @param title    Title of the resulting image
+     * @param montage  assemble the results in a montage, instead of a stack
+     * @param job      {@link Job} of the sweep, for the progress and cancellation
+     * @return labeled stack, or montage, of the results
+     * @throws IOException if the processing of a combination failed, or if the results do not match
+     */
+    public ImagePlus process(final PyAlgosClient client, ImagePlus image, final String algoName,
+                             Map<String, List<Object>> values, String title, boolean montage, final Job job)
+            throws IOException {
+        final List<Map<String, Object>> combinations = getCombinations(values);
+        // Parameters with several values, by name, for the labels and timings
+        List<String> swept = new ArrayList<>();
+        for (Map.Entry<String, List<Object>> parameter : new TreeMap<>(values).entrySet()) {
+            if (parameter.getValue().size() > 1) {
+                swept.add(parameter.getKey());
+            }
+        }
+
+        final ImageProcessor ip = image.getProcessor();
+        final Roi roi = image.getRoi();
+        final Calibration calibration = image.getCalibration();
+        final int n = combinations.size();
+        final ImageProcessor[] results = new ImageProcessor[n];
+        final long[] durations = new long[n];
+        // The image counts as one unit of the job already
+        job.addUnits(n - 1);
+
+        // The combinations, and their tiles if the region is tiled, share the window of the run
+        for (int i = 0; i < n; ++i) {
+            final int index = i;
+            client.submitPlane(ip, roi, calibration, algoName, combinations.get(index), title, job,
+                    (result, duration) -> {
+                        durations[index] = duration;
+                        job.getMetrics().recordTime("combination", duration);
+                        if (result == null) {
+                            throw new IOException("The parameter sweep requires an image result from " + algoName);
+                        }
+                        results[index] = result.getProcessor();
+                    });
+        }
+        job.getExecutor().await();
+
+        ImageStack stack = new ImageStack(results[0].getWidth(), results[0].getHeight());
+        ResultsTable timings = new ResultsTable();
+        for (int i = 0; i < n; ++i) {
+            if (results[i].getWidth() != stack.getWidth() || results[i].getHeight() != stack.getHeight() ||
+                    results[i].getBitDepth() != results[0].getBitDepth()) {
+                throw new IOException("The results of the combinations have different sizes or bit depths");
+            }
+            double millis = durations[i] / 1e6;
+            StringBuilder label = new StringBuilder();
+            timings.incrementCounter();
+            for (String name : swept) {
+                Object value = combinations.get(i).get(name);
+                label.append(label.length() > 0 ? ", " : "").append(name).append("=").append(value);
+                if (value instanceof Number) {
+                    timings.addValue(name, ((Number) value).doubleValue());
+                } else {
+                    timings.addValue(name, String.valueOf(value));
+                }
+            }
+            timings.addValue("Time (ms)", millis);
+            stack.addSlice(label + String.format(" (%.0f ms)", millis), results[i]);
+        }
+        stack.setColorModel(results[0].getColorModel());
+
+        ImagePlus result = new ImagePlus(title, stack);
+        result.setCalibration(ImageUtils.crop(calibration, TiledProcessor.getRegion(ip, roi)));
+        if (montage && n > 1) {
+            int columns = (int) Math.ceil(Math.sqrt(n));
+            int rows = (n + columns - 1) / columns;
+            result = new MontageMaker().makeMontage2(result, columns, rows, 1.0, 1, n, 1, 0, true);
+            result.setTitle(title);
+        }
+        result.setProperty(TIMINGS_PROPERTY, timings);
+        return result;
+    }
+}
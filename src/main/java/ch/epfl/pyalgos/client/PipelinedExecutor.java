@@ -0,0 +1,121 @@
+package ch.epfl.pyalgos.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run independent work units (tiles, slices, ...) concurrently, with at most a fixed number of units in flight.
+ * {@link #submit(WorkUnit)} blocks while the window is full, which bounds the memory used by the pending units and
+ * lets the upload of a unit overlap with the computation of the previous ones on the server.
+ * <p>
+ * The first failure is kept and rethrown by {@link #await()}; the units submitted after a failure are not run.
+ */
+public class PipelinedExecutor implements AutoCloseable {
+
+    /**
+     * A unit of work, typically processing one tile or plane on the server
+     */
+    public interface WorkUnit {
+        void run() throws IOException;
+    }
+
+    private final int maxInFlight;
+    private final Semaphore window;
+    private final ExecutorService executor;
+    private volatile IOException failure;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * @param maxInFlight maximal number of units running at the same time (at least 1)
+     */
+    public PipelinedExecutor(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.window = new Semaphore(this.maxInFlight);
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, PyAlgosClient.name + " worker " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.executor = Executors.newFixedThreadPool(this.maxInFlight, threadFactory);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Submit a unit, waiting for a free slot in the window if needed
+     *
+     * @param unit
+     * @throws IOException if a previous unit failed, or if interrupted while waiting
+     */
+    public void submit(WorkUnit unit) throws IOException {
+        checkFailure();
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a unit to complete");
+        }
+        if (failure != null) {
+            window.release();
+            checkFailure();
+        }
+        executor.execute(() -> {
+            try {
+                if (failure == null) {
+                    unit.run();
+                }
+            } catch (IOException e) {
+                setFailure(e);
+            } catch (RuntimeException e) {
+                setFailure(new IOException(e.getMessage(), e));
+            } finally {
+                window.release();
+            }
+        });
+    }
+
+    /**
+     * Wait for all the submitted units to complete
+     *
+     * @throws IOException the first failure of a unit, or if interrupted while waiting
+     */
+    public void await() throws IOException {
+        try {
+            window.acquire(maxInFlight);
+            window.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the units to complete");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stop the worker threads. The units still running are not interrupted.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private synchronized void setFailure(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ch.epfl.pyalgos.client;
+
+import ij.process.ImageProcessor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast non-cryptographic 64-bit hash of pixel arrays, used to identify identical images without comparing them
+ */
+public final class PixelHash {
+
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    private PixelHash() {
+    }
+
+    /**
+     * Hash the size, bit depth and pixels of the processor
+     *
+     * @param ip
+     * @return
+     */
+    public static long hash(ImageProcessor ip) {
+        long h = mix(ip.getWidth() * 31L + ip.getHeight()) ^ ip.getBitDepth();
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            int i = 0;
+            // Combine 8 pixels at a time
+            for (; i + 8 <= p.length; i += 8) {
+                long v = (p[i] & 0xffL) | (p[i + 1] & 0xffL) << 8 | (p[i + 2] & 0xffL) << 16 | (p[i + 3] & 0xffL) << 24
+                        | (p[i + 4] & 0xffL) << 32 | (p[i + 5] & 0xffL) << 40 | (p[i + 6] & 0xffL) << 48
+                        | (p[i + 7] & 0xffL) << 56;
+                h = (h ^ v) * PRIME;
+            }
+            for (; i < p.length; ++i) {
+                h = (h ^ p[i]) * PRIME;
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            int i = 0;
+            for (; i + 4 <= p.length; i += 4) {
+                long v = (p[i] & 0xffffL) | (p[i + 1] & 0xffffL) << 16 | (p[i + 2] & 0xffffL) << 32
+                        | (p[i + 3] & 0xffffL) << 48;
+                h = (h ^ v) * PRIME;
+            }
+            for (; i < p.length; ++i) {
+                h = (h ^ p[i]) * PRIME;
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = 0; i < p.length; ++i) {
+                h = (h ^ Float.floatToRawIntBits(p[i])) * PRIME;
+            }
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            for (int i = 0; i < p.length; ++i) {
+                // Ignore the alpha channel of RGB pixels
+                h = (h ^ (p[i] & 0xffffff)) * PRIME;
+            }
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hash a string (e.g. a cache key)
+     *
+     * @param s
+     * @return
+     */
+    public static long hash(String s) {
+        long h = PRIME;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ b) * PRIME;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hexadecimal representation of a hash
+     *
+     * @param hash
+     * @return
+     */
+    public static String toHex(long hash) {
+        String hex = Long.toHexString(hash);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    // Final avalanche step of MurmurHash3
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
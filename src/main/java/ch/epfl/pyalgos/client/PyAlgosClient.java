@@ -1,18 +1,39 @@
 package ch.epfl.pyalgos.client;
 
 import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.io.Opener;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 import ij.process.ImageProcessor;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.awt.Rectangle;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class PyAlgosClient {
@@ -26,6 +47,77 @@ public class PyAlgosClient {
 
     private final PyAlgosHttpClient httpClient = new PyAlgosHttpClient();
 
+    // Servers processing the work units, with their sessions if they support them
+    private final ServerPool serverPool = new ServerPool(httpClient);
+
+    // Probes the connection to the server in the background
+    private final ConnectionMonitor connectionMonitor = new ConnectionMonitor(httpClient);
+
+    // Capabilities advertised by the server when connecting
+    private ServerCapabilities capabilities = ServerCapabilities.NONE;
+
+    // Send the raw pixels instead of a serialized TIFF when the server supports it, and accept raw result images
+    private boolean rawTransferEnabled = true;
+
+    // Cache of the algorithms names and required parameters
+    private final MetadataCache metadataCache = new MetadataCache();
+
+    // Cache of the resulting images by input pixels, algorithm and parameters
+    private final ResultCache resultCache = new ResultCache();
+
+    // Maximal number of independent work units (tiles, slices, ...) processed at the same time
+    private int maxInFlight = 4;
+
+    // Splits the images larger than its memory budget into tiles
+    private final TiledProcessor tiledProcessor = new TiledProcessor();
+
+    // Iterates over the planes of stacks and hyperstacks
+    private final StackProcessor stackProcessor = new StackProcessor();
+    // Processes the image with all the combinations of the values of the swept parameters
+    private final ParameterSweep parameterSweep = new ParameterSweep();
+
+    // Formats accepted for the result image, by order of preference (JSON with a Base64 TIFF for older servers)
+    private static final String IMAGE_ACCEPT = RawImageCodec.RAW + ", image/tiff;q=0.9, application/json;q=0.5";
+    private static final String IMAGE_ACCEPT_NO_RAW = "image/tiff, application/json;q=0.5";
+    // Formats accepted for the other outputs, besides those of the images
+    private static final String TABLE_ACCEPT = "text/csv;q=0.4";
+
+    private static final MediaType TIFF = MediaType.get("image/tiff");
+
+    // Fetch all the outputs of the runs started without this option, as set by the deprecated setFeaturesImported
+    private volatile boolean featuresImported = false;
+
+    // Time the image of the last work unit is kept on the server, so that the next runs on the same image do not send
+    // it again (milliseconds), 0 to delete it after each work unit
+    static final long DEFAULT_RESIDENT_IMAGE_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+    static final long RESIDENT_IMAGE_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    private volatile long residentImageTimeout = DEFAULT_RESIDENT_IMAGE_TIMEOUT;
+    // Deletes the images kept on the servers once idle, started with the first image kept
+    private ScheduledExecutorService residentImageCleaner;
+
+    // Log the summary of the metrics of each run in the ImageJ log
+    private boolean logMetrics = false;
+
+    // Directory in which the metrics of each run are written as JSON, null to not write them
+    private File metricsDirectory = null;
+
+    // Maximal time the server may hold a request for the status of a job (seconds), and minimal interval between
+    // two requests for servers that answer immediately (milliseconds)
+    static int jobPollWait = 10;
+    static long jobPollInterval = 500;
+
+    // Runs the jobs submitted with submit()
+    private final ExecutorService jobExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + " job " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private static PyAlgosClient instance = new PyAlgosClient();
 
     private PyAlgosClient() {
@@ -35,14 +127,44 @@ public class PyAlgosClient {
         return instance;
     }
 
-    public void setServerURL(String URL) throws IOException {
+    /**
+     * Remove the surrounding spaces and the trailing "/" of the server URL
+     *
+     * @param URL
+     * @return
+     */
+    public static String normalizeServerURL(String URL) {
         URL = URL.trim();
         if (URL.endsWith("/")) {
             URL = URL.substring(0, URL.length() - 1);
         }
-        this.apiUrl = new URL(URL);
+        return URL;
+    }
+
+    public void setServerURL(String URL) throws IOException {
+        URL serverURL = new URL(normalizeServerURL(URL));
+        this.apiUrl = serverURL;
         httpClient.setURL(this.apiUrl);
-        if (!httpClient.isConnected()) throw new IOException();
+        // Reset the capabilities first, in case the new server cannot be reached
+        this.capabilities = ServerCapabilities.NONE;
+        // The server may have been updated since its results were stored, unless it advertises its version
+        resultCache.invalidate(serverURL);
+        try {
+            this.capabilities = httpClient.getCapabilities();
+        } catch (IOException e) {
+            connectionMonitor.start(ConnectionMonitor.State.DISCONNECTED);
+            throw e;
+        } finally {
+            // Replace the previous server in the pool, deleting its sessions
+            httpClient.getCompression().setUploadSupported(serverURL,
+                    capabilities.supports(ServerCapabilities.COMPRESSED_UPLOAD));
+            httpClient.getSharedMemory().setSupported(serverURL,
+                    capabilities.supports(ServerCapabilities.SHARED_MEMORY));
+            httpClient.getRetryPolicy().setIdempotencySupported(serverURL,
+                    capabilities.supports(ServerCapabilities.IDEMPOTENCY_KEY));
+            serverPool.setPrimary(serverURL, capabilities);
+        }
+        connectionMonitor.start(ConnectionMonitor.State.CONNECTED);
     }
 
     public URL getServerURL() {
@@ -50,12 +172,280 @@ public class PyAlgosClient {
     }
 
     /**
-     * Check if the Http Client exists and can successfully connect to the server
+     * Get the capabilities advertised by the server when connecting
+     *
+     * @return
+     */
+    public ServerCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Get the {@link TransferCompression} of the uploads and downloads, to configure it (mode, codec, level) and get
+     * its statistics
+     *
+     * @return
+     */
+    public TransferCompression getCompression() {
+        return httpClient.getCompression();
+    }
+
+    /**
+     * Get the {@link SharedMemoryTransport} of the images with the servers on the same host, to configure it (enabled,
+     * directory) and get its statistics
+     *
+     * @return
+     */
+    public SharedMemoryTransport getSharedMemory() {
+        return httpClient.getSharedMemory();
+    }
+
+    /**
+     * Get the {@link ServerPool} processing the work units, to add servers and configure the routing and failover
+     *
+     * @return
+     */
+    public ServerPool getServerPool() {
+        return serverPool;
+    }
+
+    /**
+     * Get the {@link RetryPolicy} of the requests failing because of a transient error, and of the resumable uploads
+     *
+     * @return
+     */
+    public RetryPolicy getRetryPolicy() {
+        return httpClient.getRetryPolicy();
+    }
+
+    /**
+     * Get a copy of the configuration of the HTTP client (connection pool, dispatcher, protocol, timeouts), to modify
+     * it and apply it with {@link #setHttpConfig(HttpClientConfig)}
+     *
+     * @return
+     */
+    public HttpClientConfig getHttpConfig() {
+        return httpClient.getConfig();
+    }
+
+    /**
+     * Apply the configuration of the HTTP client. The idle connections are closed, the runs in progress complete
+     * with the previous configuration.
+     *
+     * @param config
+     */
+    public void setHttpConfig(HttpClientConfig config) {
+        httpClient.configure(config);
+    }
+
+    /**
+     * Get the {@link MetadataCache} of the algorithms names and required parameters, to configure its time-to-live
+     * and persistence
+     *
+     * @return
+     */
+    public MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * Get the {@link ResultCache} of the resulting images, to configure its size and get its statistics
+     *
+     * @return
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Get the {@link TiledProcessor} used by {@link #run(String, Map)}, to configure the tiling of large images
+     *
+     * @return
+     */
+    public TiledProcessor getTiledProcessor() {
+        return tiledProcessor;
+    }
+
+    /**
+     * Get the {@link StackProcessor} used by {@link #run(String, Map, boolean)}, to configure the ranges of planes
+     *
+     * @return
+     */
+    public StackProcessor getStackProcessor() {
+        return stackProcessor;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Set the maximal number of independent work units (tiles, slices, ...) processed at the same time
+     *
+     * @param maxInFlight (at least 1)
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Get the number of work units that can actually be processed at the same time on the servers of the pool. Each
+     * work unit has its own session if the server supports them; otherwise the server keeps a single image and result
+     * for all the clients, so the units sent to it are processed one after the other.
+     *
+     * @return at most the maximal number of work units in flight
+     */
+    public int getConcurrency() {
+        return serverPool.getConcurrency(maxInFlight);
+    }
+
+    /**
+     * Delete the sessions opened on the servers. They are opened again when needed.
+     */
+    public void closeSessions() {
+        serverPool.closeSessions();
+    }
+
+    public long getResidentImageTimeout() {
+        return residentImageTimeout;
+    }
+
+    /**
+     * Set how long the image of a work unit is kept on the server after the run. The runs on the same image (same
+     * pixels and calibration), with other parameters or other algorithms, do not send it again while it is kept: a
+     * run only sets the parameters and computes the result. The image is deleted once it has not been used for this
+     * time, when it is replaced by another image, when the run fails, or with {@link #deleteResidentImages()}.
+     * <p>
+     * Only the sessions keep their image: a server without sessions keeps a single image, shared with the other
+     * clients of the server, which may replace it at any time, so the image is sent to it at each run.
+     *
+     * @param residentImageTimeout (milliseconds), 0 to delete the image at the end of each run
+     */
+    public void setResidentImageTimeout(long residentImageTimeout) {
+        this.residentImageTimeout = Math.max(0, residentImageTimeout);
+        if (this.residentImageTimeout == 0) {
+            deleteResidentImages();
+        }
+    }
+
+    /**
+     * Delete the images kept on the servers since the last runs. The images of the runs in progress may be kept.
+     *
+     * @return number of images deleted
+     */
+    public int deleteResidentImages() {
+        return serverPool.deleteResidentImages(Long.MAX_VALUE);
+    }
+
+    // Delete the idle images in the background, from the first image kept on a server
+    private synchronized void scheduleResidentImageCleanup() {
+        if (residentImageCleaner != null) {
+            return;
+        }
+        residentImageCleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + " resident images cleanup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        residentImageCleaner.scheduleWithFixedDelay(() -> {
+            long timeout = residentImageTimeout;
+            if (timeout > 0) {
+                serverPool.deleteResidentImages(System.currentTimeMillis() - timeout);
+            }
+        }, RESIDENT_IMAGE_CHECK_INTERVAL, RESIDENT_IMAGE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the global metrics of the client: timings of the phases of the runs and of the HTTP calls, bytes
+     * transferred, errors. They can be exposed with JMX ({@link Metrics#registerMBean()}) or forwarded to a
+     * {@link Metrics.Registry}.
+     *
+     * @return
+     */
+    public Metrics getMetrics() {
+        return httpClient.getMetrics();
+    }
+
+    /**
+     * @return
+     * @deprecated the outputs are fetched per run, see {@link #submit(ImagePlus, String, Map, boolean, boolean)}
+     */
+    @Deprecated
+    public boolean isFeaturesImported() {
+        return featuresImported;
+    }
+
+    /**
+     * Import the features of the results into the ROI Manager, now with all their other outputs, for the runs started
+     * without the option (e.g. {@link #submit(ImagePlus, String, Map, boolean)}). The option is read when the run is
+     * started, so that it does not change the runs already in progress.
+     *
+     * @param featuresImported
+     * @deprecated pass the option with each run, see {@link #submit(ImagePlus, String, Map, boolean, boolean)}
+     */
+    @Deprecated
+    public void setFeaturesImported(boolean featuresImported) {
+        this.featuresImported = featuresImported;
+    }
+
+    public boolean isLogMetrics() {
+        return logMetrics;
+    }
+
+    /**
+     * Log the summary of the metrics of each run started from the parameters dialog or with
+     * {@link #run(String, Map, boolean)} (timings of its phases, bytes transferred) in the ImageJ log
+     *
+     * @param logMetrics
+     */
+    public void setLogMetrics(boolean logMetrics) {
+        this.logMetrics = logMetrics;
+    }
+
+    public File getMetricsDirectory() {
+        return metricsDirectory;
+    }
+
+    /**
+     * Write the metrics of each run as JSON in the given directory, one file per run ("run-{date}.json")
+     *
+     * @param metricsDirectory existing directory, null to not write the metrics
+     */
+    public void setMetricsDirectory(File metricsDirectory) {
+        this.metricsDirectory = metricsDirectory;
+    }
+
+    public boolean isRawTransferEnabled() {
+        return rawTransferEnabled;
+    }
+
+    /**
+     * Enable or disable the raw pixel upload. When enabled, the raw pixels are only sent if the server advertises
+     * the {@link ServerCapabilities#RAW_IMAGE} capability, otherwise the image is serialized as TIFF.
+     *
+     * @param rawTransferEnabled
+     */
+    public void setRawTransferEnabled(boolean rawTransferEnabled) {
+        this.rawTransferEnabled = rawTransferEnabled;
+    }
+
+    /**
+     * Check whether the server is connected, according to the last probe of the {@link ConnectionMonitor}. This
+     * method does not send any request.
      *
      * @return
      */
     public boolean isConnected() {
-        return this.httpClient.isConnected();
+        return connectionMonitor.isConnected();
+    }
+
+    /**
+     * Get the {@link ConnectionMonitor} of the server, to listen to the changes of connection state
+     *
+     * @return
+     */
+    public ConnectionMonitor getConnectionMonitor() {
+        return connectionMonitor;
     }
 
     /**
@@ -90,9 +480,20 @@ public class PyAlgosClient {
         return list;
     }
 
+    /**
+     * Get the names of the algorithms available on the server, from the {@link MetadataCache} if still valid
+     *
+     * @return
+     * @throws IOException
+     */
     public String[] getAlgos() throws IOException {
-        Response algoResponse = this.httpClient.getAlgosNames();
-        JsonObject algos = parseResponseToJsonObject(algoResponse);
+        String body = metadataCache.get(this.httpClient, PyAlgosHttpClient.ALGOS_NAMES_PATH);
+        JsonObject algos;
+        try {
+            algos = JsonParser.parseString(body).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Invalid list of algorithms", e);
+        }
         JsonArray algosJsonArray = algos.get("algos_names").getAsJsonArray();
 
         String[] arr = new String[algosJsonArray.size()];
@@ -104,15 +505,128 @@ public class PyAlgosClient {
     }
 
     /**
-     * Send the image as a byte array via HTTP POST request
+     * Send the image via HTTP POST request, either through the shared memory if the server is on the same host and
+     * supports it, as raw pixels streamed from the image's processor if the server supports it, or as a serialized
+     * TIFF byte array
      *
      * @param image {{@link ImagePlus}
      * @return
      * @throws IOException
      */
     public Response sendImage(ImagePlus image) throws IOException {
+        return sendImage(this.httpClient, capabilities, image, httpClient.getMetrics());
+    }
+
+    private Response sendImage(PyAlgosHttpClient httpClient, ServerCapabilities capabilities, ImagePlus image,
+                               Metrics metrics) throws IOException {
+        if (httpClient.getSharedMemory().isAvailable(httpClient.getApiUrl())) {
+            Response response = sendSharedImage(httpClient, image, metrics);
+            if (response != null) {
+                return response;
+            }
+        }
+        boolean raw = rawTransferEnabled && capabilities.supports(ServerCapabilities.RAW_IMAGE);
+        if (isResumableUpload(capabilities, image)) {
+            // Large image sent in chunks, so that a failure does not send it again from the start
+            RetryPolicy retryPolicy = httpClient.getRetryPolicy();
+            if (raw) {
+                // Each chunk is encoded from the processor while it is sent
+                return httpClient.uploadResumable("/image_raw", RawImageCodec.contentLength(image),
+                        RawImageCodec.RAW, (offset, length) -> RawImageCodec.requestBody(image, offset, length),
+                        retryPolicy);
+            }
+            long start = System.nanoTime();
+            byte[] content = new FileSaver(image).serialize();
+            metrics.recordSince("encode", start);
+            return httpClient.uploadResumable("/image_bytes", content, MediaType.get("application/octet-stream"),
+                    retryPolicy);
+        }
+        if (raw) {
+            // The raw pixels are encoded while they are sent
+            return httpClient.sendRawImage(RawImageCodec.requestBody(image));
+        }
+        long start = System.nanoTime();
+        byte[] serializedImage = new FileSaver(image).serialize();
+        metrics.recordSince("encode", start);
+        return httpClient.sendImage(serializedImage);
+    }
+
+    /**
+     * Send the image through a file of the shared memory, deleted once the server has read it. If the file cannot be
+     * written, the image is sent over the network; if the server cannot read it, the server is also marked as not
+     * supporting the shared memory.
+     *
+     * @param httpClient {@link PyAlgosHttpClient} of the server or of the session
+     * @param image
+     * @param metrics    metrics in which the writing of the file is recorded, as "encode"
+     * @return the successful response of the server, null to send the image over the network
+     * @throws IOException if the request failed, or the server answered with a transient error (404, 408, 429,
+     *                     502-504) unrelated to the shared memory
+     */
+    private Response sendSharedImage(PyAlgosHttpClient httpClient, ImagePlus image, Metrics metrics)
+            throws IOException {
+        SharedMemoryTransport sharedMemory = httpClient.getSharedMemory();
+        long start = System.nanoTime();
+        File file;
+        try {
+            file = sharedMemory.write(image);
+        } catch (IOException e) {
+            // E.g. the shared memory is full: only this image is sent over the network
+            metrics.increment("shm.fallbacks", 1);
+            return null;
+        }
+        metrics.recordSince("encode", start);
+        try {
+            Response response = httpClient.sendSharedImage(SharedMemoryTransport.referenceBody(file));
+            if (response.isSuccessful()) {
+                return response;
+            }
+            int code = response.code();
+            String message = getHttpMessage(response,
+                    "The server could not read the image from the shared memory");
+            if (code == 404 || code == 408 || code == 429 || code >= 502) {
+                // Not a failure of the shared memory, e.g. an expired session or an overloaded server
+                throw new HttpResponseException(code, message);
+            }
+            // E.g. a server in a container with its own shared memory
+            sharedMemory.markFailed(httpClient.getApiUrl());
+            metrics.increment("shm.fallbacks", 1);
+            return null;
+        } finally {
+            SharedMemoryTransport.delete(file);
+        }
+    }
+
+    /**
+     * Check whether the image is large enough to be sent in chunks to the server, if it supports it
+     *
+     * @param capabilities capabilities of the server
+     * @param image
+     * @return
+     */
+    private boolean isResumableUpload(ServerCapabilities capabilities, ImagePlus image) {
+        long size = (long) image.getWidth() * image.getHeight() * image.getBytesPerPixel();
+        return capabilities.supports(ServerCapabilities.RESUMABLE_UPLOAD) &&
+                size >= httpClient.getRetryPolicy().getResumableThreshold();
+    }
+
+    /**
+     * Get the body of a request carrying the image: the raw pixels streamed from the image's processor if the server
+     * supports it, or the image serialized as TIFF
+     *
+     * @param capabilities capabilities of the server
+     * @param image
+     * @param metrics      metrics in which the encoding is recorded
+     * @return
+     */
+    private RequestBody getImageRequestBody(ServerCapabilities capabilities, ImagePlus image, Metrics metrics) {
+        if (rawTransferEnabled && capabilities.supports(ServerCapabilities.RAW_IMAGE)) {
+            return RawImageCodec.requestBody(image);
+        }
+        long start = System.nanoTime();
         byte[] serializedImage = new FileSaver(image).serialize();
-        return this.httpClient.sendImage(serializedImage);
+        metrics.recordSince("encode", start);
+        return RequestBody.create(serializedImage, TIFF);
     }
 
     /**
@@ -130,9 +644,25 @@ public class PyAlgosClient {
         return this.httpClient.sendImage(imageJson);
     }
 
+    /**
+     * Get the required parameters of the algorithm, from the {@link MetadataCache} if still valid
+     *
+     * @param algoName
+     * @return
+     * @throws IOException
+     */
     public List<JsonObject> getRequiredParameters(String algoName) throws IOException {
-        Response paramsResponse = this.httpClient.getAlgoRequiredParams(algoName);
-        return parseResponseToJsonObjectList(paramsResponse, "parameters");
+        String body = metadataCache.get(this.httpClient, PyAlgosHttpClient.getAlgoRequiredParamsPath(algoName));
+        List<JsonObject> list = new ArrayList<>();
+        try {
+            JsonArray array = JsonParser.parseString(body).getAsJsonObject().get("parameters").getAsJsonArray();
+            for (JsonElement element : array) {
+                list.add(element.getAsJsonObject());
+            }
+        } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+            throw new IOException("Invalid required parameters for " + algoName, e);
+        }
+        return list;
     }
 
     /**
@@ -143,11 +673,20 @@ public class PyAlgosClient {
      * @return
      * @throws IOException
      */
-    public Response setParameters(String algoName, Map parameters) throws IOException {
+    public Response setParameters(String algoName, Map<String, ?> parameters) throws IOException {
+        return this.httpClient.setAlgoParams(algoName, toParametersJson(parameters));
+    }
+
+    /**
+     * Format the parameters as expected by the server: {"parameters": {name: value, ...}}
+     *
+     * @param parameters
+     * @return
+     */
+    private static String toParametersJson(Map<String, ?> parameters) {
         Map<String, Object> parametersMap = new LinkedHashMap<>();
         parametersMap.put("parameters", parameters);
-        String parametersString = new Gson().toJson(parametersMap);
-        return this.httpClient.setAlgoParams(algoName, parametersString);
+        return new Gson().toJson(parametersMap);
     }
 
     /**
@@ -198,36 +737,135 @@ public class PyAlgosClient {
     }
 
     /**
-     * Get a message detailing the HTTP response code and detail, and close the response
+     * Get the "image" endpoint of the computed result as an {@link ImagePlus}. The format is negotiated with the
+     * server: raw pixels are streamed straight into the pixel array of the result, a TIFF body is decoded from the
+     * response stream, and the JSON body with a Base64-encoded TIFF is used as fallback for older servers.
      *
-     * @param response
-     * @param description
+     * @param algoName
+     * @param title    title of the returned image
      * @return
+     * @throws IOException
      */
-    private String getHttpMessage(Response response, String description) {
-        String detail = null;
+    public ImagePlus getResultImage(String algoName, String title) throws IOException {
+        return getResultImage(this.httpClient, algoName, title, httpClient.getMetrics());
+    }
+
+    private ImagePlus getResultImage(PyAlgosHttpClient httpClient, String algoName, String title, Metrics metrics)
+            throws IOException {
+        long start = System.nanoTime();
+        Response response = httpClient.getComputedResultEndpoint(algoName, "image", getImageAccept(httpClient));
+        metrics.recordSince("download", start);
+        if (!response.isSuccessful()) {
+            throw new HttpResponseException(response.code(),
+                    getHttpMessage(response, "Could not retrieve the resulting image of " + algoName));
+        }
         try {
-            JsonElement jsonResponse = parseResponseToJsonObject(response).get("detail");
-            detail = (jsonResponse == null) ? null : jsonResponse.getAsString();
-        } catch (IOException ignored) {
+            return readResultImage(response, algoName, title, metrics);
+        } catch (SharedMemoryTransport.TransferException e) {
+            // Fetched again over the network, the server being marked as not supporting the shared memory
+            return getResultImage(httpClient, algoName, title, metrics);
         }
-        String message = description + "\n" +
-                "HTTP response " + response.code() + ": " + detail;
-        response.close();
-        return message;
     }
 
     /**
-     * Display the error in a window
+     * Read the resulting image from the body of a successful response, according to its content type (reference to a
+     * file of the shared memory, raw pixels, TIFF, or JSON with a Base64-encoded TIFF in the "image" field), and close
+     * the response
      *
-     * @param description
+     * @param response
+     * @param algoName
+     * @param title    title of the returned image
+     * @param metrics  metrics in which the reading of the body is recorded, as "decode"
+     * @return
+     * @throws SharedMemoryTransport.TransferException if the file of the shared memory could not be read, the server
+     *                                                 being marked as not supporting the shared memory
+     * @throws IOException
      */
-    public void displayError(String description) {
-        IJ.error(PyAlgosClient.name + ": Error", description);
+    private ImagePlus readResultImage(Response response, String algoName, String title, Metrics metrics)
+            throws IOException {
+        long start = System.nanoTime();
+        ImagePlus image;
+        try (ResponseBody body = response.body()) {
+            MediaType contentType = body.contentType();
+            String mediaType = (contentType == null) ? "" : contentType.type() + "/" + contentType.subtype();
+            if (mediaType.equals(SharedMemoryTransport.SHM.toString())) {
+                SharedMemoryTransport sharedMemory = httpClient.getSharedMemory();
+                try {
+                    image = sharedMemory.read(body.string(), title);
+                } catch (SharedMemoryTransport.TransferException e) {
+                    sharedMemory.markFailed(response.request().url().url());
+                    metrics.increment("shm.fallbacks", 1);
+                    throw e;
+                }
+            } else if (mediaType.equals(RawImageCodec.RAW.toString())) {
+                image = RawImageCodec.read(body.source(), title);
+            } else if (mediaType.equals("image/tiff")) {
+                image = new Opener().openTiff(
+                        new BufferedInputStream(body.byteStream(), httpClient.getBufferSize()), title);
+            } else {
+                // Deserialize the Base64-encoded TIFF image
+                JsonObject object = JsonParser.parseReader(
+                        new BufferedReader(body.charStream(), httpClient.getBufferSize())).getAsJsonObject();
+                byte[] bytes = Base64.getDecoder().decode(object.get("image").getAsString());
+                image = new Opener().deserialize(bytes);
+            }
+        } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+            throw new IOException("Could not decode the resulting image of " + algoName, e);
+        }
+        if (image == null) {
+            throw new IOException("Could not decode the resulting image of " + algoName);
+        }
+        metrics.recordSince("decode", start);
+        image.setTitle(title);
+        return image;
     }
 
     /**
-     * Display the HTTP error in a window (and close the response)
+     * Get the formats accepted for the resulting image, by order of preference: first a file of the shared memory,
+     * if the server is on the same host and supports it
+     *
+     * @param httpClient {@link PyAlgosHttpClient} of the server or of the session
+     * @return value of the Accept header
+     */
+    private String getImageAccept(PyAlgosHttpClient httpClient) {
+        String accept = rawTransferEnabled ? IMAGE_ACCEPT : IMAGE_ACCEPT_NO_RAW;
+        if (httpClient.getSharedMemory().isAvailable(httpClient.getApiUrl())) {
+            return SharedMemoryTransport.SHM + ", " + accept;
+        }
+        return accept;
+    }
+
+    /**
+     * Get a message detailing the HTTP response code and detail, and close the response
+     *
+     * @param response
+     * @param description
+     * @return
+     */
+    private String getHttpMessage(Response response, String description) {
+        String detail = null;
+        try {
+            JsonElement jsonResponse = parseResponseToJsonObject(response).get("detail");
+            detail = (jsonResponse == null) ? null : jsonResponse.getAsString();
+        } catch (IOException ignored) {
+        }
+        String message = description + "\n" +
+                "HTTP response " + response.code() + ": " + detail;
+        response.close();
+        return message;
+    }
+
+    /**
+     * Display the error in a window
+     *
+     * @param description
+     */
+    public void displayError(String description) {
+        IJ.error(PyAlgosClient.name + ": Error", description);
+    }
+
+    /**
+     * Display the HTTP error in a window (and close the response)
      *
      * @param response
      * @param description
@@ -237,108 +875,1049 @@ public class PyAlgosClient {
     }
 
     /**
-     * Get an {@link ImagePlus} containing the pixels of the selected slice/channel at the selected ROI
+     * Get an {@link ImagePlus} containing the pixels of the slice/channel at the selected ROI. The pixels are
+     * copied row by row from the bounding box of the ROI, and the pixels outside a non-rectangular ROI are set
+     * to 0.
      *
-     * @param img
+     * @param ip          {@link ImageProcessor} of the slice/channel
+     * @param roi         {@link Roi} of the selection, can be null
+     * @param calibration {@link Calibration} of the image
      * @return
      */
-    private ImagePlus getSelectedImage(ImagePlus img) {
-        ImagePlus selectedImg = null;
-        Roi roi = img.getRoi();
-        if (roi != null) {
-            selectedImg = IJ.createImage("Selected ROI image", (int) roi.getFloatWidth(), (int) roi.getFloatHeight(), 1, img.getBitDepth());
-            ImageProcessor imageProcessor = selectedImg.getProcessor();
-            for (int x = 0; x < roi.getFloatWidth(); ++x) {
-                for (int y = 0; y < roi.getFloatHeight(); ++y) {
-                    int[] pixel = img.getPixel(x + (int) roi.getXBase(), y + (int) roi.getYBase());
-                    imageProcessor.putPixel(x, y, pixel);
-                }
+    private ImagePlus getSelectedImage(ImageProcessor ip, Roi roi, Calibration calibration) {
+        ImageProcessor imageProcessor = ImageUtils.extract(ip, roi);
+        String title = (ImageUtils.getAreaRoi(roi) != null) ? "Selected ROI image" : "Selected Image";
+        ImagePlus selectedImg = new ImagePlus(title, imageProcessor);
+        selectedImg.setCalibration(ImageUtils.crop(calibration, TiledProcessor.getRegion(ip, roi)));
+        return selectedImg;
+    }
+
+    /**
+     * Process the slice/channel at the selected ROI with the algorithm, tile by tile if it is larger than the memory
+     * budget of the {@link TiledProcessor}
+     *
+     * @param ip               {@link ImageProcessor} of the slice/channel
+     * @param roi              {@link Roi} of the selection, can be null
+     * @param calibration      {@link Calibration} of the image
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, for the progress and cancellation
+     * @return resulting {@link ImagePlus}
+     * @throws IOException with a message detailing the error
+     */
+    ImagePlus processPlane(ImageProcessor ip, Roi roi, Calibration calibration, String algoName,
+                           Map<String, Object> parametersValues, String title, Job job) throws IOException {
+        if (tiledProcessor.needsTiling(TiledProcessor.getRegion(ip, roi), ip.getBitDepth())) {
+            return tiledProcessor.process(this, ip, roi, calibration, algoName, parametersValues, title, job);
+        }
+        long start = System.nanoTime();
+        ImagePlus selectedImg = getSelectedImage(ip, roi, calibration);
+        job.getMetrics().recordSince("select", start);
+        return this.processImage(selectedImg, algoName, parametersValues, title, job);
+    }
+
+    /**
+     * Receives the result of a plane processed in the window of the run
+     */
+    interface PlaneConsumer {
+        /**
+         * @param result   resulting {@link ImagePlus}, null if the result has no image
+         * @param duration time from the start of the first work unit of the plane (nanoseconds)
+         * @throws IOException if the result does not match the plane
+         */
+        void accept(ImagePlus result, long duration) throws IOException;
+    }
+
+    /**
+     * Submit the processing of the slice/channel at the selected ROI to the window of the run, in tiles if it is larger
+     * than the memory budget of the {@link TiledProcessor}, so that all the work units of the run share the window
+     *
+     * @param ip               {@link ImageProcessor} of the slice/channel
+     * @param roi              {@link Roi} of the selection, can be null
+     * @param calibration      {@link Calibration} of the image
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, with the window of its work units
+     * @param consumer         receives the result of the plane, from the thread of its last work unit
+     * @throws IOException if a previous unit of the run failed
+     */
+    void submitPlane(final ImageProcessor ip, final Roi roi, final Calibration calibration, final String algoName,
+                     final Map<String, Object> parametersValues, final String title, final Job job,
+                     final PlaneConsumer consumer) throws IOException {
+        if (tiledProcessor.needsTiling(TiledProcessor.getRegion(ip, roi), ip.getBitDepth())) {
+            tiledProcessor.submit(this, ip, roi, calibration, algoName, parametersValues, title, job, consumer);
+            return;
+        }
+        job.getExecutor().submit(() -> {
+            long start = System.nanoTime();
+            ImagePlus selectedImg = getSelectedImage(ip, roi, calibration);
+            job.getMetrics().recordSince("select", start);
+            ImagePlus result = processImage(selectedImg, algoName, parametersValues, title, job);
+            consumer.accept(result, System.nanoTime() - start);
+        });
+    }
+
+    /**
+     * Process the image with the algorithm on the server and get the resulting image. The result is taken from the
+     * {@link ResultCache} if available, otherwise it is computed by a job if the server supports them, in a single
+     * request if the server supports it, or with the sequence of requests of the original protocol.
+     *
+     * @param image            {@link ImagePlus} to process (current processor only)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, for the progress and cancellation
+     * @return resulting {@link ImagePlus}, null if the result has no image but other outputs
+     * @throws IOException with a message detailing the error
+     */
+    ImagePlus processImage(ImagePlus image, String algoName, Map<String, Object> parametersValues, String title,
+                           Job job) throws IOException {
+        job.checkCancelled();
+        long unitStart = System.nanoTime();
+        // Return the stored result if the same image was already processed with the same parameters
+        String cacheKey = null;
+        // Any server of the pool may compute the result: it is only written to disk if they all have the same version
+        String serverVersion = serverPool.getVersion();
+        if (resultCache.isEnabled() && job.getOutputs() == null) {
+            cacheKey = ResultCache.key(apiUrl, serverVersion, algoName, parametersValues, image);
+            ImagePlus cached = resultCache.get(cacheKey, title);
+            if (cached != null) {
+                job.getMetrics().increment("cache.hits", 1);
+                job.reportProgress(image, 1.0);
+                return cached;
             }
-        } else {
-            selectedImg = IJ.createImage("Selected Image", img.getWidth(), img.getHeight(), 1, img.getBitDepth());
-            ImageProcessor imageProcessor = selectedImg.getProcessor();
-            for (int x = 0; x < img.getWidth(); ++x) {
-                for (int y = 0; y < img.getHeight(); ++y) {
-                    int[] pixel = img.getPixel(x, y);
-                    imageProcessor.putPixel(x, y, pixel);
+        }
+
+        // Process the work unit on the server selected by the pool, and on other servers if it fails because of its
+        // server: the whole unit is processed again, each server having its own copy of the image and parameters. The
+        // outputs streamed to their sinks are not taken back, so the unit is not processed again once some were added.
+        ImagePlus result = null;
+        List<ServerPool.Server> tried = new ArrayList<>();
+        IOException lastFailure = null;
+        boolean done = false;
+        while (!done) {
+            ServerPool.Server server;
+            try {
+                server = serverPool.acquire(tried);
+            } catch (IOException e) {
+                throw tried.isEmpty() ? e : lastFailure;
+            }
+            long start = System.nanoTime();
+            try {
+                result = processImageOn(server, image, algoName, parametersValues, title, job);
+                done = true;
+                serverPool.release(server, System.nanoTime() - start, null);
+            } catch (IOException e) {
+                // Neither a cancelled run nor a request rejected by the server counts against the server
+                boolean retry = serverPool.release(server, System.nanoTime() - start,
+                        job.isCancelled() ? new InterruptedIOException("Processing cancelled") : e);
+                tried.add(server);
+                // The outputs already added to their sinks (e.g. the ROI Manager) would be added again by the replay
+                boolean outputsAdded = job.getOutputs() != null && !job.getOutputs().isEmpty();
+                if (!retry || tried.size() >= serverPool.getMaxAttempts() || outputsAdded) {
+                    throw e;
                 }
+                job.getMetrics().increment("failovers", 1);
+                lastFailure = e;
+            } catch (RuntimeException e) {
+                serverPool.release(server, System.nanoTime() - start, new IOException(e));
+                throw e;
             }
         }
-        return selectedImg;
+        if (cacheKey != null && result != null) {
+            resultCache.put(cacheKey, result, serverVersion != null);
+        }
+        job.getMetrics().recordSince("unit", unitStart);
+        job.reportProgress(image, 1.0);
+        return result;
     }
 
     /**
-     * Run the algorithm and display the result
+     * Process the image on a server of the pool, in a session of its own if the server supports them, to run
+     * concurrently with the other work units and runs; otherwise the server keeps a single image and result, and the
+     * work units sent to it are queued
      *
-     * @param algoName
-     * @param parametersValues
+     * @param server           {@link ServerPool.Server} selected by the pool
+     * @param image            {@link ImagePlus} to process (current processor only)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run
+     * @return resulting {@link ImagePlus}
+     * @throws IOException with a message detailing the error
+     */
+    private ImagePlus processImageOn(ServerPool.Server server, ImagePlus image, String algoName,
+                                     Map<String, Object> parametersValues, String title, Job job) throws IOException {
+        ServerCapabilities capabilities = server.readCapabilities();
+        if (capabilities.supports(ServerCapabilities.SESSIONS)) {
+            SessionPool sessionPool = server.getSessionPool();
+            // Identity of the image, to find it in a session if it is still there from a previous run; the image is
+            // only hashed if an idle session keeps an image
+            String imageKey = null;
+            if (residentImageTimeout > 0 && sessionPool.hasResidentImages()) {
+                imageKey = hashImage(image, job);
+            }
+            PyAlgosHttpClient session = sessionPool.acquire(imageKey);
+            ResidentImage residentImage = (residentImageTimeout > 0) ? sessionPool.getResidentImage(session) : null;
+            try {
+                return computeResult(session.withTag(job), capabilities, residentImage, imageKey, image, algoName,
+                        parametersValues, title, job);
+            } finally {
+                sessionPool.release(session);
+            }
+        }
+        // The global image of the server may be replaced by its other clients between two runs: it is always sent
+        synchronized (server.globalStateLock) {
+            job.checkCancelled();
+            return computeResult(server.getHttpClient().withTag(job), capabilities, null, null, image, algoName,
+                    parametersValues, title, job);
+        }
+    }
+
+    /**
+     * Compute the result of the image on the server, with the best protocol supported by the server
+     *
+     * @param httpClient       {@link PyAlgosHttpClient} of the server or of the session
+     * @param capabilities     capabilities of the server
+     * @param residentImage    image kept in the session, null to delete the image after the run
+     * @param imageKey         identity of the image ({@link ResidentImage#key(ImagePlus)}), null if not computed yet
+     * @param image            {@link ImagePlus} to process (current processor only)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run
+     * @return resulting {@link ImagePlus}
+     * @throws IOException with a message detailing the error
+     */
+    private ImagePlus computeResult(PyAlgosHttpClient httpClient, ServerCapabilities capabilities,
+                                    ResidentImage residentImage, String imageKey, ImagePlus image, String algoName,
+                                    Map<String, Object> parametersValues, String title, Job job)
+            throws IOException {
+        boolean resident = residentImage != null && imageKey != null && residentImage.isResident(imageKey);
+        if (capabilities.supports(ServerCapabilities.PROCESS) && !capabilities.supports(ServerCapabilities.JOBS) &&
+                !isResumableUpload(capabilities, image) && job.getOutputs() == null &&
+                job.getFallbackOutputs() == null && !resident &&
+                !httpClient.getSharedMemory().isAvailable(httpClient.getApiUrl())) {
+            // The large images sent in chunks, the runs that can route other outputs than the image (all of them, or
+            // those of a result without image), the images already kept in the session, and the images sent through
+            // the shared memory, are processed with the step-by-step protocol, the single request only answering
+            // with an image. The single request does not replace the image kept in the session.
+            return processImageInOneRequest(httpClient, capabilities, image, algoName, parametersValues, title, job);
+        }
+        if (residentImage != null && imageKey == null) {
+            // The image is kept in the session after the run
+            imageKey = hashImage(image, job);
+        }
+        if (capabilities.supports(ServerCapabilities.JOBS)) {
+            return processImageAsJob(httpClient, capabilities, residentImage, imageKey, image, algoName,
+                    parametersValues, title, job);
+        }
+        return processImageStepByStep(httpClient, capabilities, residentImage, imageKey, image, algoName,
+                parametersValues, title, job);
+    }
+
+    /**
+     * Get the identity of the image, to find it in a session keeping it ({@link ResidentImage#key(ImagePlus)})
+     *
+     * @param image
+     * @param job   {@link Job} of the run, in which the hashing is recorded
      * @return
-     * @throws IOException
      */
-    public void run(String algoName, Map<String, Object> parametersValues) throws IOException {
-        // Send the parameters defined by the user
-        Response parametersResponse = this.setParameters(algoName, parametersValues);
+    private static String hashImage(ImagePlus image, Job job) {
+        long start = System.nanoTime();
+        String imageKey = ResidentImage.key(image);
+        job.getMetrics().recordSince("hash", start);
+        return imageKey;
+    }
+
+    /**
+     * Process the image with a job on the server: set the parameters, send the image unless it is kept on the
+     * server, submit the job and wait for its completion while reporting its progress, get the "image" endpoint of the
+     * result, then keep or delete the image data on the server. The job is cancelled on the server if the run is
+     * cancelled.
+     *
+     * @param httpClient       {@link PyAlgosHttpClient} of the server or of the session
+     * @param capabilities     capabilities of the server
+     * @param residentImage    image kept in the session, null to delete the image after the run
+     * @param imageKey         identity of the image
+     * @param image            {@link ImagePlus} to process (current processor only)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run
+     * @return resulting {@link ImagePlus}
+     * @throws IOException with a message detailing the error
+     */
+    private ImagePlus processImageAsJob(PyAlgosHttpClient httpClient, ServerCapabilities capabilities,
+                                        ResidentImage residentImage, String imageKey, ImagePlus image,
+                                        String algoName, Map<String, Object> parametersValues, String title, Job job)
+            throws IOException {
+        Metrics metrics = job.getMetrics();
+        long start = System.nanoTime();
+        Response parametersResponse = httpClient.setAlgoParams(algoName, toParametersJson(parametersValues));
+        metrics.recordSince("parameters", start);
         if (parametersResponse.isSuccessful()) {
             parametersResponse.close();
         } else {
-            displayHttpError(parametersResponse, "Could not set the user parameters for " + algoName);
-            return;
+            throw new HttpResponseException(parametersResponse.code(),
+                    getHttpMessage(parametersResponse, "Could not set the user parameters for " + algoName));
         }
 
-        // Get the pixels of the selected slice/channel at the selected Roi & send the image
-        ImagePlus img = WindowManager.getCurrentImage();
-        if (img == null) {
-            displayError("No open image");
-            return;
-        }
-        String imgTitle = img.getTitle();
-        ImagePlus selectedImg = getSelectedImage(img);
-        Response imgSentResponse = this.sendImage(selectedImg);
-        if (imgSentResponse.isSuccessful()) {
-            imgSentResponse.close();
-        } else {
-            displayHttpError(imgSentResponse, "Could not send image to server");
-            return;
+        uploadImage(httpClient, capabilities, residentImage, imageKey, image, metrics);
+
+        boolean succeeded = false;
+        try {
+            start = System.nanoTime();
+            Response submitResponse = httpClient.submitJob(algoName);
+            start = metrics.recordSince("submit", start);
+            if (!submitResponse.isSuccessful()) {
+                throw new HttpResponseException(submitResponse.code(),
+                        getHttpMessage(submitResponse, "Could not submit the job for " + algoName));
+            }
+            String jobId;
+            try {
+                jobId = parseResponseToJsonObject(submitResponse).get("job_id").getAsString();
+            } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+                throw new IOException("Could not retrieve the ID of the job for " + algoName, e);
+            }
+
+            JsonObject status;
+            job.addServerJob(jobId, httpClient);
+            try {
+                status = waitForJob(httpClient, jobId, algoName, image, job);
+            } finally {
+                job.removeServerJob(jobId);
+            }
+            metrics.recordSince("compute", start);
+            ImagePlus result = getResultOutputs(httpClient, getOutputEndpoints(status, algoName), algoName, title,
+                    job);
+            succeeded = true;
+            return result;
+        } finally {
+            releaseImage(httpClient, residentImage, imageKey, succeeded, metrics);
         }
+    }
 
-        // Run the algo
-        Response processingResponse = this.computeResult(algoName);
-        // Leave the response open if successful to check the available endpoints
-        if (!processingResponse.isSuccessful()) {
-            displayHttpError(processingResponse, "Processing with " + algoName + " failed");
-            return;
+    /**
+     * Poll the status of the job until it is done, reporting its progress as the progress of the image's work unit.
+     * The server may hold each request until the status changes (long polling); otherwise the requests are spaced
+     * by the minimal poll interval.
+     *
+     * @param httpClient {@link PyAlgosHttpClient} of the server or of the session
+     * @param jobId      ID of the job on the server
+     * @param algoName   Name of the algorithm
+     * @param image      image processed by the job, i.e. the work unit
+     * @param job        {@link Job} of the run
+     * @return the last status of the job, with its output endpoints
+     * @throws IOException if the job failed or was cancelled
+     */
+    private JsonObject waitForJob(PyAlgosHttpClient httpClient, String jobId, String algoName, ImagePlus image,
+                                  Job job) throws IOException {
+        while (true) {
+            job.checkCancelled();
+            long start = System.currentTimeMillis();
+            Response response = httpClient.getJobStatus(jobId, jobPollWait);
+            if (!response.isSuccessful()) {
+                throw new HttpResponseException(response.code(),
+                        getHttpMessage(response, "Could not retrieve the status of the job for " + algoName));
+            }
+            JsonObject status;
+            String state;
+            try {
+                status = parseResponseToJsonObject(response);
+                state = status.get("status").getAsString();
+            } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+                throw new IOException("Invalid status of the job for " + algoName, e);
+            }
+            switch (state) {
+                case "done":
+                    return status;
+                case "failed":
+                    String detail = status.has("detail") ? status.get("detail").getAsString() : "unknown error";
+                    throw new IOException("Processing with " + algoName + " failed: " + detail);
+                case "cancelled":
+                    throw new InterruptedIOException("The job for " + algoName + " was cancelled on the server");
+                default:
+                    // Still pending or running, the completion of the unit is reported once the result is fetched
+                    if (status.has("progress") && !status.get("progress").isJsonNull()) {
+                        job.reportProgress(image, Math.min(status.get("progress").getAsDouble(), 0.99));
+                    }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed < jobPollInterval) {
+                try {
+                    Thread.sleep(jobPollInterval - elapsed);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the job for " + algoName);
+                }
+            }
         }
+    }
 
-        // Check which endpoints are available for this algo and then display the result accordingly
+    /**
+     * Get the output endpoints of the result
+     *
+     * @param result   JSON object with the "output_endpoints" of the result
+     * @param algoName Name of the algorithm
+     * @return
+     * @throws IOException if the output endpoints are not available
+     */
+    private static List<String> getOutputEndpoints(JsonObject result, String algoName) throws IOException {
         List<String> endpoints = new ArrayList<>();
         try {
-            JsonObject endpointsJson = parseResponseToJsonObject(processingResponse);
-            JsonArray endpointsArray = endpointsJson.get("output_endpoints").getAsJsonArray();
+            JsonArray endpointsArray = result.get("output_endpoints").getAsJsonArray();
             for (JsonElement element : endpointsArray) {
                 endpoints.add(element.getAsString());
             }
         } catch (Exception e) {
-            displayError("Could not retrieve the output endpoints for " + algoName + " - cannot display result\n" +
+            throw new IOException("Could not retrieve the output endpoints for " + algoName + " - cannot display result\n" +
                     "Please check the algorithm implementation on the Python server");
+        }
+        return endpoints;
+    }
+
+    /**
+     * Get the outputs of the result that can be displayed. If the run fetches all the outputs, the endpoints are
+     * fetched and decoded concurrently, each one being routed to its sink, so that the outputs take the time of the
+     * slowest endpoint rather than the sum of all; otherwise only the "image" endpoint is fetched.
+     *
+     * @param httpClient {@link PyAlgosHttpClient} of the server or of the session
+     * @param endpoints  output endpoints of the result
+     * @param algoName   Name of the algorithm
+     * @param title      Title of the resulting image
+     * @param job        {@link Job} of the run
+     * @return resulting {@link ImagePlus}, null if the result has no "image" endpoint
+     * @throws IOException if no endpoint can be displayed, or if an endpoint cannot be fetched
+     */
+    private ImagePlus getResultOutputs(PyAlgosHttpClient httpClient, List<String> endpoints, String algoName,
+                                       String title, Job job) throws IOException {
+        // Without image (e.g. a mask or a table only), the other outputs of the result are fetched instead
+        final ResultOutputs outputs = endpoints.contains("image") ? job.getOutputs() : job.useFallbackOutputs();
+        if ((outputs == null || endpoints.isEmpty()) && !endpoints.contains("image")) {
+            throw new IOException("Unknown display for result with endpoints: " + Arrays.toString(endpoints.toArray()) + "\n" +
+                    "Only the following endpoints can be displayed in ImageJ/Fiji: [image]");
+        }
+        if (outputs == null || endpoints.equals(Collections.singletonList("image"))) {
+            return this.getResultImage(httpClient, algoName, title, job.getMetrics());
+        }
+        Metrics metrics = job.getMetrics();
+        long start = System.nanoTime();
+        final ImagePlus[] image = new ImagePlus[1];
+        // One unit by endpoint in the window of the run. The outputs are only fetched by the runs on a single plane
+        // that is not tiled, whose work unit is processed by the thread of the run, outside of the window.
+        PipelinedExecutor executor = job.getExecutor();
+        for (final String endpoint : endpoints) {
+            executor.submit(() -> {
+                long endpointStart = System.nanoTime();
+                if (endpoint.equals("image")) {
+                    image[0] = getResultImage(httpClient, algoName, title, metrics);
+                } else if (endpoint.equals("features")) {
+                    importFeatures(httpClient, algoName, outputs.getRoiImporter(), metrics);
+                } else {
+                    getResultOutput(httpClient, algoName, endpoint, title, outputs, metrics);
+                }
+                metrics.recordSince("output." + endpoint, endpointStart);
+            });
+        }
+        executor.await();
+        metrics.recordSince("outputs", start);
+        return image[0];
+    }
+
+    /**
+     * Fetch an output endpoint other than "image" and "features", and route it according to its content type: the
+     * images (raw pixels or TIFF) to the overlay of the processed image for the "mask", to their own window
+     * otherwise, and the tables (JSON or CSV) to results tables
+     *
+     * @param httpClient {@link PyAlgosHttpClient} of the server or of the session
+     * @param algoName   Name of the algorithm
+     * @param endpoint   output endpoint
+     * @param title      Title of the resulting image
+     * @param outputs    sinks of the outputs of the run
+     * @param metrics    metrics in which the fetch is recorded
+     * @throws IOException with a message detailing the error
+     */
+    private void getResultOutput(PyAlgosHttpClient httpClient, String algoName, String endpoint, String title,
+                                 ResultOutputs outputs, Metrics metrics) throws IOException {
+        Response response = httpClient.getComputedResultEndpoint(algoName, endpoint,
+                getImageAccept(httpClient) + ", " + TABLE_ACCEPT);
+        if (!response.isSuccessful()) {
+            throw new HttpResponseException(response.code(),
+                    getHttpMessage(response, "Could not retrieve the " + endpoint + " of " + algoName));
+        }
+        MediaType contentType = response.body().contentType();
+        String mediaType = (contentType == null) ? "" : contentType.type() + "/" + contentType.subtype();
+        if (endpoint.equals("mask") || mediaType.equals(SharedMemoryTransport.SHM.toString()) ||
+                mediaType.equals(RawImageCodec.RAW.toString()) || mediaType.equals("image/tiff")) {
+            ImagePlus output;
+            try {
+                output = readResultImage(response, algoName, title + " - " + endpoint, metrics);
+            } catch (SharedMemoryTransport.TransferException e) {
+                // Fetched again over the network
+                getResultOutput(httpClient, algoName, endpoint, title, outputs, metrics);
+                return;
+            }
+            if (endpoint.equals("mask")) {
+                outputs.addMask(output);
+            } else {
+                outputs.addImage(endpoint, output);
+            }
             return;
         }
-        if (endpoints.contains("image")) {
-            String endpoint = "image";
-            Response resultResponse = this.getComputedResultEndpoint(algoName, endpoint);
-            JsonObject object = parseResponseToJsonObject(resultResponse);
-            String encodedImage = object.get(endpoint).getAsString();
+        ResultsTable table;
+        try (ResponseBody body = response.body();
+             BufferedReader reader = new BufferedReader(body.charStream(), httpClient.getBufferSize())) {
+            if (mediaType.equals("text/csv")) {
+                table = TableReader.readCsv(reader);
+            } else {
+                table = TableReader.readJson(new JsonReader(reader));
+            }
+        } catch (IOException e) {
+            throw new IOException("Could not decode the " + endpoint + " of " + algoName + ": " + e.getMessage(), e);
+        }
+        outputs.addTable(endpoint, table);
+    }
 
-            // Deserialized encoded TIFF image and show it
-            byte[] bytes = Base64.getDecoder().decode(encodedImage);
-            ImagePlus dsImage = new Opener().deserialize(bytes);
-            dsImage.setTitle(imgTitle + " - " + algoName);
-            dsImage.show();
+    /**
+     * Stream the "features" endpoint of the result (GeoJSON) into ROIs, added in batches by the importer
+     *
+     * @param httpClient  {@link PyAlgosHttpClient} of the server or of the session
+     * @param algoName    Name of the algorithm
+     * @param roiImporter adds the ROIs to the ROI Manager
+     * @param metrics     metrics in which the import is recorded
+     * @return number of ROIs imported
+     * @throws IOException with a message detailing the error
+     */
+    private int importFeatures(PyAlgosHttpClient httpClient, String algoName, RoiImporter roiImporter,
+                               Metrics metrics) throws IOException {
+        long start = System.nanoTime();
+        Response response = httpClient.getComputedResultFeatures(algoName);
+        if (!response.isSuccessful()) {
+            throw new HttpResponseException(response.code(),
+                    getHttpMessage(response, "Could not retrieve the features of " + algoName));
+        }
+        int count;
+        try (ResponseBody body = response.body();
+             JsonReader reader = new JsonReader(new BufferedReader(body.charStream(), httpClient.getBufferSize()))) {
+            FeatureReader featureReader = new FeatureReader(roiImporter.getOriginX(), roiImporter.getOriginY(),
+                    FeatureReader.DEFAULT_BATCH_SIZE, roiImporter::add);
+            count = featureReader.read(reader);
+            if (featureReader.getSkipped() > 0) {
+                metrics.increment("features.skipped", featureReader.getSkipped());
+            }
+        }
+        metrics.recordSince("features", start);
+        metrics.increment("features.rois", count);
+        return count;
+    }
+
+    /**
+     * Process the image with a single multipart request carrying the parameters and the image, answered with the
+     * resulting image
+     *
+     * @param httpClient       {@link PyAlgosHttpClient} of the server or of the session
+     * @param capabilities     capabilities of the server
+     * @param image            {@link ImagePlus} to process (current processor only)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run
+     * @return resulting {@link ImagePlus}
+     * @throws IOException with a message detailing the error
+     */
+    private ImagePlus processImageInOneRequest(PyAlgosHttpClient httpClient, ServerCapabilities capabilities,
+                                               ImagePlus image, String algoName,
+                                               Map<String, Object> parametersValues, String title, Job job)
+            throws IOException {
+        Metrics metrics = job.getMetrics();
+        RequestBody imageBody = getImageRequestBody(capabilities, image, metrics);
+        // Upload, computation and download until the headers of the result, in a single request
+        long start = System.nanoTime();
+        Response response = httpClient.processImage(algoName, toParametersJson(parametersValues), imageBody,
+                getImageAccept(httpClient));
+        metrics.recordSince("process", start);
+        if (!response.isSuccessful()) {
+            throw new HttpResponseException(response.code(),
+                    getHttpMessage(response, "Processing with " + algoName + " failed"));
+        }
+        return readResultImage(response, algoName, title, metrics);
+    }
+
+    /**
+     * Process the image with the sequence of requests of the original protocol: set the parameters, send the image
+     * unless it is kept on the server, compute the result, get the "image" endpoint of the result, then keep or delete
+     * the image data on the server
+     *
+     * @param httpClient       {@link PyAlgosHttpClient} of the server or of the session
+     * @param capabilities     capabilities of the server
+     * @param residentImage    image kept in the session, null to delete the image after the run
+     * @param imageKey         identity of the image
+     * @param image            {@link ImagePlus} to process (current processor only)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run
+     * @return resulting {@link ImagePlus}
+     * @throws IOException with a message detailing the error
+     */
+    private ImagePlus processImageStepByStep(PyAlgosHttpClient httpClient, ServerCapabilities capabilities,
+                                             ResidentImage residentImage, String imageKey, ImagePlus image,
+                                             String algoName, Map<String, Object> parametersValues, String title,
+                                             Job job)
+            throws IOException {
+        // Send the parameters defined by the user
+        Metrics metrics = job.getMetrics();
+        long start = System.nanoTime();
+        Response parametersResponse = httpClient.setAlgoParams(algoName, toParametersJson(parametersValues));
+        metrics.recordSince("parameters", start);
+        if (parametersResponse.isSuccessful()) {
+            parametersResponse.close();
         } else {
-            displayError("Unknown display for result with endpoints: " + Arrays.toString(endpoints.toArray()) + "\n" +
-                    "Only the following endpoints can be displayed in ImageJ/Fiji: [image]");
+            throw new HttpResponseException(parametersResponse.code(),
+                    getHttpMessage(parametersResponse, "Could not set the user parameters for " + algoName));
         }
 
-        Response deletedResponse = this.httpClient.deleteImageData();
+        // Send the image, unless it is kept on the server
+        uploadImage(httpClient, capabilities, residentImage, imageKey, image, metrics);
+
+        ImagePlus result;
+        boolean succeeded = false;
+        try {
+            // Run the algo
+            start = System.nanoTime();
+            Response processingResponse = httpClient.computeResult(algoName);
+            metrics.recordSince("compute", start);
+            // Leave the response open if successful to check the available endpoints
+            if (!processingResponse.isSuccessful()) {
+                throw new HttpResponseException(processingResponse.code(),
+                        getHttpMessage(processingResponse, "Processing with " + algoName + " failed"));
+            }
+
+            // Check which endpoints are available for this algo and then get the result accordingly
+            JsonObject endpointsJson;
+            try {
+                endpointsJson = parseResponseToJsonObject(processingResponse);
+            } catch (JsonParseException | IllegalStateException e) {
+                endpointsJson = new JsonObject();
+            }
+            result = getResultOutputs(httpClient, getOutputEndpoints(endpointsJson, algoName), algoName, title, job);
+            succeeded = true;
+        } finally {
+            releaseImage(httpClient, residentImage, imageKey, succeeded, metrics);
+        }
+        return result;
+    }
+
+    /**
+     * Send the image to the server or to the session, unless it is kept there from a previous run
+     *
+     * @param httpClient    {@link PyAlgosHttpClient} of the server or of the session
+     * @param capabilities  capabilities of the server
+     * @param residentImage image kept in the session, null if the image is always sent
+     * @param imageKey      identity of the image
+     * @param image         {@link ImagePlus} to send (current processor only)
+     * @param metrics       metrics in which the upload is recorded
+     * @throws IOException with a message detailing the error
+     */
+    private void uploadImage(PyAlgosHttpClient httpClient, ServerCapabilities capabilities,
+                             ResidentImage residentImage, String imageKey, ImagePlus image, Metrics metrics)
+            throws IOException {
+        if (residentImage != null) {
+            if (residentImage.isResident(imageKey)) {
+                metrics.increment("uploads.skipped", 1);
+                return;
+            }
+            // The image kept on the server is replaced
+            residentImage.clear();
+        }
+        long start = System.nanoTime();
+        Response imgSentResponse = this.sendImage(httpClient, capabilities, image, metrics);
+        metrics.recordSince("upload", start);
+        if (imgSentResponse.isSuccessful()) {
+            imgSentResponse.close();
+        } else {
+            throw new HttpResponseException(imgSentResponse.code(),
+                    getHttpMessage(imgSentResponse, "Could not send image to server"));
+        }
+    }
+
+    /**
+     * Keep the image on the server for the next runs if the run succeeded; otherwise, or if the images are not kept,
+     * delete the image data on the server
+     *
+     * @param httpClient    {@link PyAlgosHttpClient} of the server or of the session
+     * @param residentImage image kept in the session, null if the image is always deleted
+     * @param imageKey      identity of the image
+     * @param succeeded     whether the run succeeded
+     * @param metrics       metrics in which the deletion is recorded
+     * @throws IOException if the image data could not be deleted
+     */
+    private void releaseImage(PyAlgosHttpClient httpClient, ResidentImage residentImage, String imageKey,
+                              boolean succeeded, Metrics metrics) throws IOException {
+        if (residentImage != null) {
+            if (succeeded) {
+                residentImage.set(imageKey);
+                scheduleResidentImageCleanup();
+                return;
+            }
+            residentImage.clear();
+        }
+        long start = System.nanoTime();
+        Response deletedResponse = httpClient.deleteImageData();
         deletedResponse.close();
+        metrics.recordSince("cleanup", start);
+    }
+
+    /**
+     * Process the selected slice/channel at the selected ROI of the image with the algorithm, and return the result.
+     * This method does not use any user interface (no window, no error dialog, no log) and can be called from scripts
+     * or in headless mode, once the server URL is set with {@link #setServerURL(String)}.
+     *
+     * @param image            {@link ImagePlus} to process (current plane and ROI)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters, by name
+     * @return resulting {@link ImagePlus}, null if the result has no image but other outputs (see
+     * {@link #submit(ImagePlus, String, Map, boolean, boolean)} to get them)
+     * @throws IOException with a message detailing the error
+     */
+    public ImagePlus process(ImagePlus image, String algoName, Map<String, Object> parametersValues)
+            throws IOException {
+        return process(image, algoName, parametersValues, false);
+    }
+
+    /**
+     * Process the selected ROI of the image with the algorithm, and return the result. This method does not use any
+     * user interface (no window, no error dialog, no log) and can be called from scripts or in headless mode, once the
+     * server URL is set with {@link #setServerURL(String)}.
+     *
+     * @param image            {@link ImagePlus} to process
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters, by name
+     * @param allPlanes        process all the planes in the ranges of the {@link StackProcessor}, instead of the
+     *                         current plane only
+     * @return resulting {@link ImagePlus}, null if the result has no image but other outputs (see
+     * {@link #submit(ImagePlus, String, Map, boolean, boolean)} to get them)
+     * @throws IOException with a message detailing the error
+     */
+    public ImagePlus process(ImagePlus image, String algoName, Map<String, Object> parametersValues,
+                             boolean allPlanes) throws IOException {
+        return process(image, algoName, parametersValues, allPlanes, featuresImported, new Job(httpClient));
+    }
+
+    private ImagePlus process(ImagePlus image, String algoName, Map<String, Object> parametersValues,
+                              boolean allPlanes, boolean allOutputs, Job job) throws IOException {
+        if (apiUrl == null) {
+            throw new IOException("No server URL set");
+        }
+        String title = image.getTitle() + " - " + algoName;
+        if (!(allPlanes && image.getStackSize() > 1)) {
+            Rectangle region = TiledProcessor.getRegion(image.getProcessor(), image.getRoi());
+            if (!tiledProcessor.needsTiling(region, image.getBitDepth())) {
+                // Without the option, the other outputs are only fetched if the result has no image
+                ResultOutputs outputs = new ResultOutputs(image, region.x, region.y);
+                if (allOutputs) {
+                    job.setOutputs(outputs);
+                } else {
+                    job.setFallbackOutputs(outputs);
+                }
+            }
+        }
+        long start = System.nanoTime();
+        Exception failure = null;
+        PipelinedExecutor executor = new PipelinedExecutor(getConcurrency());
+        job.setExecutor(executor);
+        try {
+            if (allPlanes && image.getStackSize() > 1) {
+                return stackProcessor.process(this, image, algoName, parametersValues, title, job);
+            }
+            return processPlane(image.getProcessor(), image.getRoi(), image.getCalibration(), algoName,
+                    parametersValues, title, job);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            job.getMetrics().increment("errors." + e.getClass().getSimpleName(), 1);
+            throw e;
+        } finally {
+            executor.close();
+            if (job.getOutputs() != null) {
+                job.getOutputs().finish();
+            }
+            job.getMetrics().recordSince("run", start);
+            writeMetrics(job, image, algoName, failure);
+        }
+    }
+
+    /**
+     * Write the metrics of the run as JSON in the metrics directory, if set. A failure to write them is counted in the
+     * metrics of the run ("errors.metrics").
+     *
+     * @param job      {@link Job} of the run
+     * @param image    processed image
+     * @param algoName Name of the algorithm
+     * @param failure  failure of the run, null if it succeeded
+     */
+    private void writeMetrics(Job job, ImagePlus image, String algoName, Exception failure) {
+        File directory = metricsDirectory;
+        if (directory == null) {
+            return;
+        }
+        Date date = new Date();
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(date));
+        run.put("server", String.valueOf(apiUrl));
+        run.put("algorithm", algoName);
+        run.put("image", image.getTitle());
+        run.put("width", image.getWidth());
+        run.put("height", image.getHeight());
+        run.put("bit_depth", image.getBitDepth());
+        run.put("status", getStatus(job, failure));
+        if (failure != null) {
+            run.put("error", String.valueOf(failure.getMessage()));
+        }
+        run.putAll(job.getMetrics().toMap());
+        String fileName = "run-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(date) + "-" +
+                Integer.toHexString(System.identityHashCode(job)) + ".json";
+        try {
+            Files.write(new File(directory, fileName).toPath(),
+                    new GsonBuilder().setPrettyPrinting().create().toJson(run).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            job.getMetrics().increment("errors.metrics", 1);
+        }
+    }
+
+    private static String getStatus(Job job, Throwable failure) {
+        return (failure == null) ? "done" : job.isCancelled() ? "cancelled" : "failed";
+    }
+
+    /**
+     * Log the summary of the metrics of a completed run in the ImageJ log if enabled
+     * ({@link #setLogMetrics(boolean)}), and the number of images of the run transferred over the network instead of
+     * the shared memory, if any
+     *
+     * @param job      {@link Job} of the run
+     * @param image    processed image
+     * @param algoName Name of the algorithm
+     * @param failure  failure of the run, null if it succeeded
+     */
+    public void logMetrics(Job job, ImagePlus image, String algoName, Throwable failure) {
+        if (logMetrics) {
+            IJ.log(name + " - " + algoName + " on " + image.getTitle() + " (" + getStatus(job, failure) + "):\n" +
+                    job.getMetrics().summary());
+        }
+        long fallbacks = job.getMetrics().getCounter("shm.fallbacks");
+        if (fallbacks > 0) {
+            IJ.log(name + " - " + algoName + " on " + image.getTitle() + ": " + fallbacks +
+                    " image(s) transferred over the network instead of the shared memory");
+        }
+    }
+
+    /**
+     * Submit the processing of the current plane at the selected ROI of the image, without waiting for the result
+     *
+     * @param image            {@link ImagePlus} to process (current plane and ROI)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters, by name
+     * @return {@link Job} of the run, with the future result
+     */
+    public Job submit(ImagePlus image, String algoName, Map<String, Object> parametersValues) {
+        return submit(image, algoName, parametersValues, false, featuresImported);
+    }
+
+    /**
+     * Submit the processing of the selected ROI of the image, without waiting for the result. The result is
+     * computed in the background, by jobs on the server if it supports them, and the progress is shown in the
+     * ImageJ progress bar. The run can be cancelled with {@link Job#cancel()}.
+     *
+     * @param image            {@link ImagePlus} to process
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters, by name
+     * @param allPlanes        process all the planes in the ranges of the {@link StackProcessor}, instead of the
+     *                         current plane only
+     * @return {@link Job} of the run, with the future result
+     */
+    public Job submit(ImagePlus image, String algoName, Map<String, Object> parametersValues, boolean allPlanes) {
+        return submit(image, algoName, parametersValues, allPlanes, featuresImported);
+    }
+
+    /**
+     * Submit the processing of the selected ROI of the image, without waiting for the result, and fetch all the
+     * outputs of the result if requested. The outputs are fetched concurrently, and each one is routed to its ImageJ
+     * sink: the "features" (GeoJSON) to the ROI Manager, or to the overlay of the image in headless mode, the "mask"
+     * to the overlay of the image, and the other images and the tables (JSON or CSV) to {@link Job#getOutputs()}.
+     * The outputs are only fetched for the runs on a single plane that is not tiled, and these runs are neither taken
+     * from nor stored in the {@link ResultCache}.
+     * <p>
+     * Without the option, the other outputs of a result without "image" endpoint (e.g. a mask or a table only) are
+     * fetched instead, for the runs on a single plane that is not tiled.
+     *
+     * @param image            {@link ImagePlus} to process
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters, by name
+     * @param allPlanes        process all the planes in the ranges of the {@link StackProcessor}, instead of the
+     *                         current plane only
+     * @param allOutputs       fetch all the output endpoints of the result, not only its image
+     * @return {@link Job} of the run, with the future result and the outputs, which are not shown
+     */
+    public Job submit(final ImagePlus image, final String algoName, final Map<String, Object> parametersValues,
+                      final boolean allPlanes, final boolean allOutputs) {
+        final Job job = new Job(httpClient);
+        jobExecutor.execute(() -> {
+            try {
+                job.getFuture().complete(process(image, algoName, parametersValues, allPlanes, allOutputs, job));
+            } catch (IOException | RuntimeException e) {
+                job.getFuture().completeExceptionally(e);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Process the selected ROI of the current plane of the image with every combination of the values of the
+     * parameters, concurrently, and assemble the results in a stack labeled with the values. The image is sent once
+     * and kept on the server for all the combinations. The processing time of each combination is in
+     * {@link ParameterSweep#getTimings(ImagePlus)}.
+     *
+     * @param image    {@link ImagePlus} to process (current plane and ROI)
+     * @param algoName Name of the algorithm
+     * @param values   values of each parameter, by name (e.g. {@link ParameterSweep#parseValues(String, String)}), a
+     *                 single value for the parameters not swept
+     * @return labeled stack of the results
+     * @throws IOException with a message detailing the error
+     */
+    public ImagePlus sweep(ImagePlus image, String algoName, Map<String, List<Object>> values) throws IOException {
+        return sweep(image, algoName, values, false);
+    }
+
+    /**
+     * Process the selected ROI of the current plane of the image with every combination of the values of the
+     * parameters (see {@link #sweep(ImagePlus, String, Map)}), and assemble the results in a stack or a montage
+     *
+     * @param image    {@link ImagePlus} to process (current plane and ROI)
+     * @param algoName Name of the algorithm
+     * @param values   values of each parameter, by name, a single value for the parameters not swept
+     * @param montage  assemble the results in a montage, instead of a stack
+     * @return labeled stack, or montage, of the results
+     * @throws IOException with a message detailing the error
+     */
+    public ImagePlus sweep(ImagePlus image, String algoName, Map<String, List<Object>> values, boolean montage)
+            throws IOException {
+        return sweep(image, algoName, values, montage, new Job(httpClient));
+    }
+
+    /**
+     * Submit a parameter sweep (see {@link #sweep(ImagePlus, String, Map, boolean)}), without waiting for the result
+     *
+     * @param image    {@link ImagePlus} to process (current plane and ROI)
+     * @param algoName Name of the algorithm
+     * @param values   values of each parameter, by name, a single value for the parameters not swept
+     * @param montage  assemble the results in a montage, instead of a stack
+     * @return {@link Job} of the sweep, with the future result
+     */
+    public Job submitSweep(final ImagePlus image, final String algoName, final Map<String, List<Object>> values,
+                           final boolean montage) {
+        final Job job = new Job(httpClient);
+        jobExecutor.execute(() -> {
+            try {
+                job.getFuture().complete(sweep(image, algoName, values, montage, job));
+            } catch (IOException | RuntimeException e) {
+                job.getFuture().completeExceptionally(e);
+            }
+        });
+        return job;
+    }
+
+    private ImagePlus sweep(ImagePlus image, String algoName, Map<String, List<Object>> values, boolean montage,
+                            Job job) throws IOException {
+        if (apiUrl == null) {
+            throw new IOException("No server URL set");
+        }
+        String title = image.getTitle() + " - " + algoName + " sweep";
+        long start = System.nanoTime();
+        Exception failure = null;
+        PipelinedExecutor executor = new PipelinedExecutor(getConcurrency());
+        job.setExecutor(executor);
+        try {
+            return parameterSweep.process(this, image, algoName, values, title, montage, job);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+            job.getMetrics().increment("errors." + e.getClass().getSimpleName(), 1);
+            throw e;
+        } finally {
+            executor.close();
+            job.getMetrics().recordSince("run", start);
+            writeMetrics(job, image, algoName, failure);
+        }
+    }
+
+    /**
+     * Parse the values of the parameters from a JSON object (e.g. {"sigma": 2.5, "invert": true}). The integer
+     * numbers are kept as integers.
+     *
+     * @param parametersJson
+     * @return
+     * @throws IOException if the string is not a JSON object
+     */
+    public static Map<String, Object> parseParameters(String parametersJson) throws IOException {
+        if (parametersJson == null || parametersJson.trim().isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        Gson gson = new GsonBuilder().setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE).create();
+        try {
+            Map<String, Object> parameters = gson.fromJson(parametersJson,
+                    new TypeToken<LinkedHashMap<String, Object>>() {
+                    }.getType());
+            return (parameters == null) ? new LinkedHashMap<>() : parameters;
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid parameters: " + parametersJson, e);
+        }
+    }
+
+    /**
+     * Run the algorithm on the selected slice/channel at the selected ROI of the current image and display the
+     * result. Images larger than the memory budget of the {@link TiledProcessor} are processed tile by tile.
+     *
+     * @param algoName
+     * @param parametersValues
+     * @return
+     * @throws IOException
+     */
+    public void run(String algoName, Map<String, Object> parametersValues) throws IOException {
+        run(algoName, parametersValues, false);
+    }
+
+    /**
+     * Run the algorithm on the selected ROI of the current image and display the result, either for the selected
+     * slice/channel only, or for all the planes in the ranges of the {@link StackProcessor}
+     *
+     * @param algoName
+     * @param parametersValues
+     * @param allPlanes        process all the planes of the stack/hyperstack
+     * @throws IOException
+     */
+    public void run(String algoName, Map<String, Object> parametersValues, boolean allPlanes) throws IOException {
+        ImagePlus img = WindowManager.getCurrentImage();
+        if (img == null) {
+            displayError("No open image");
+            return;
+        }
+        Job job = new Job(httpClient);
+        ImagePlus dsImage;
+        try {
+            dsImage = process(img, algoName, parametersValues, allPlanes, featuresImported, job);
+        } catch (IOException e) {
+            logMetrics(job, img, algoName, e);
+            displayError(e.getMessage());
+            return;
+        }
+        logMetrics(job, img, algoName, null);
+        // No resulting image if the algorithm only returned other outputs
+        if (dsImage != null) {
+            dsImage.show();
+        }
+        if (job.getOutputs() != null) {
+            job.getOutputs().show();
+        }
     }
 }
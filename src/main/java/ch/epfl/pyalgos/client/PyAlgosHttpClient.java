@@ -1,16 +1,17 @@
 package ch.epfl.pyalgos.client;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import okhttp3.*;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Class to handle the client's HTTP requests
@@ -20,41 +21,218 @@ public class PyAlgosHttpClient {
     // Python API URL defined by the hostname or IP address and port of the server
     private URL apiUrl;
 
-    // HttpClient used for all the HTTP requests
-    private final OkHttpClient httpClient;
+    // Client holding the HTTP clients, the same for all the clients of sessions and tagged clients of a server
+    private final PyAlgosHttpClient root;
+
+    // HttpClient used for all the HTTP requests, rebuilt when the configuration changes
+    private volatile OkHttpClient httpClient;
+    // HttpClient sharing the same connections, with a short timeout for the connection probes
+    private volatile OkHttpClient probeClient;
+    static int probeTimeout = 5;
     public static final MediaType JSON = MediaType.get("application/json");
-    // Timeout duration (minutes)
-    private final int timeout;
-    static int defaultTimeout = 10;
+
+    // Configuration of the connection pool, dispatcher, protocol and timeouts
+    private volatile HttpClientConfig config;
+
+    // Dispatcher of the calls, kept when the HTTP client is rebuilt so that the calls in flight can still be cancelled
+    private final Dispatcher dispatcher;
+
+    // Path of the list of available algorithms names
+    public static final String ALGOS_NAMES_PATH = "/algos_names/";
+
+    // Path of the sessions, under which each session has its own image, parameters and result
+    public static final String SESSIONS_PATH = "/sessions";
+
+    // ID of the session to which the requests are sent, null for the global state of the server
+    private final String sessionId;
+
+    // Tag of the requests, to cancel the calls in flight of a run
+    private final Object tag;
+
+    // Compression of the request and response bodies
+    private final TransferCompression compression;
+
+    // Retries of the requests failing because of a transient error
+    private final RetryPolicy retryPolicy;
+
+    // Transfers of the images through the shared memory with the servers on the same host
+    private final SharedMemoryTransport sharedMemory;
+
+    // Timings of the phases of the calls and bytes transferred, of the calls not made for a run
+    private final Metrics metrics;
+
+    // Path of the resumable uploads, each upload having its own path with the offset reached
+    public static final String UPLOADS_PATH = "/uploads";
 
     /**
-     * Initialize by building the HTTP client with the default timeout value
+     * Initialize by building the HTTP client with the default configuration
      */
     public PyAlgosHttpClient() {
-        this(defaultTimeout);
+        this(new HttpClientConfig());
     }
 
     /**
-     * Initialize by building the HTTP client with the given timeout value (in minutes)
+     * Initialize by building the HTTP client with the given timeout value (in minutes) for the reads and writes
+     *
+     * @deprecated use {@link #PyAlgosHttpClient(HttpClientConfig)}, with timeouts in seconds
      */
+    @Deprecated
     public PyAlgosHttpClient(int timeout) {
-        Logger.getLogger(OkHttpClient.class.getName()).setLevel(Level.FINE);
+        this(timeoutConfig(timeout));
+    }
+
+    /**
+     * Initialize by building the HTTP client with the given configuration
+     *
+     * @param config
+     */
+    public PyAlgosHttpClient(HttpClientConfig config) {
+        this.root = this;
+        this.sessionId = null;
+        this.tag = null;
+        this.compression = new TransferCompression();
+        this.retryPolicy = new RetryPolicy();
+        this.sharedMemory = new SharedMemoryTransport();
+        this.metrics = new Metrics();
+        this.dispatcher = new Dispatcher();
+        configure(config);
+    }
+
+    /**
+     * Initialize a client sending its requests to the given URL, with the same connections as the given client
+     *
+     * @param server    client of the server
+     * @param apiUrl    URL of the server or of the session
+     * @param sessionId ID of the session, null for the global state of the server
+     * @param tag       tag of the requests, can be null
+     */
+    private PyAlgosHttpClient(PyAlgosHttpClient server, URL apiUrl, String sessionId, Object tag) {
+        this.root = server.root;
+        this.sessionId = sessionId;
+        this.tag = tag;
+        this.compression = server.compression;
+        this.retryPolicy = server.retryPolicy;
+        this.sharedMemory = server.sharedMemory;
+        this.metrics = server.metrics;
+        this.dispatcher = server.dispatcher;
+        this.apiUrl = apiUrl;
+    }
 
-        this.timeout = timeout;
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
-        builder.connectTimeout(timeout, TimeUnit.MINUTES)
-                .writeTimeout(timeout, TimeUnit.MINUTES)
-                .readTimeout(timeout, TimeUnit.MINUTES);
-        this.httpClient = builder.build();
+    private static HttpClientConfig timeoutConfig(int timeout) {
+        HttpClientConfig config = new HttpClientConfig();
+        config.setReadTimeout(TimeUnit.MINUTES.toSeconds(timeout));
+        config.setWriteTimeout(TimeUnit.MINUTES.toSeconds(timeout));
+        return config;
+    }
+
+    /**
+     * Apply the configuration, by building new HTTP clients. The idle connections of the previous clients are closed,
+     * the calls in flight complete with the previous configuration.
+     *
+     * @param config
+     */
+    public synchronized void configure(HttpClientConfig config) {
+        if (root != this) {
+            root.configure(config);
+            return;
+        }
+        config = new HttpClientConfig(config);
+        dispatcher.setMaxRequests(config.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAlive(),
+                        TimeUnit.SECONDS))
+                .connectTimeout(config.getConnectTimeout(), TimeUnit.SECONDS)
+                .readTimeout(config.getReadTimeout(), TimeUnit.SECONDS)
+                .writeTimeout(config.getWriteTimeout(), TimeUnit.SECONDS)
+                .callTimeout(config.getCallTimeout(), TimeUnit.SECONDS)
+                .addInterceptor(retryPolicy)
+                .addInterceptor(compression)
+                .eventListenerFactory(new HttpMetricsListener.Factory(metrics));
+        if (config.isHttp2PriorKnowledge()) {
+            builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        }
+        if (config.isTcpNoDelay()) {
+            builder.socketFactory(new HttpClientConfig.NoDelaySocketFactory());
+        }
+        OkHttpClient previous = this.httpClient;
+        OkHttpClient client = builder.build();
+        // The probes are not retried, the connection monitor has its own backoff
+        OkHttpClient.Builder probeBuilder = client.newBuilder()
+                .callTimeout(probeTimeout, TimeUnit.SECONDS);
+        probeBuilder.interceptors().remove(retryPolicy);
+        this.probeClient = probeBuilder.build();
+        this.httpClient = client;
+        this.config = config;
+        if (previous != null) {
+            previous.connectionPool().evictAll();
+        }
+    }
+
+    /**
+     * Get a copy of the configuration of the HTTP client
+     *
+     * @return
+     */
+    public HttpClientConfig getConfig() {
+        return new HttpClientConfig(root.config);
+    }
+
+    /**
+     * Get the size of the buffers in which the response bodies are read
+     *
+     * @return (bytes)
+     */
+    public int getBufferSize() {
+        return root.config.getBufferSize();
     }
 
     /**
      * Get the timeout value in minutes
      *
      * @return
+     * @deprecated use {@link #getConfig()}, with timeouts in seconds
      */
+    @Deprecated
     public int getTimeout() {
-        return this.timeout;
+        return (int) TimeUnit.SECONDS.toMinutes(root.config.getReadTimeout());
+    }
+
+    /**
+     * Get the compression of the request and response bodies, to configure it and get its statistics
+     *
+     * @return
+     */
+    public TransferCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * Get the transfers of the images through the shared memory, to configure them and get their statistics
+     *
+     * @return
+     */
+    public SharedMemoryTransport getSharedMemory() {
+        return this.sharedMemory;
+    }
+
+    /**
+     * Get the retry policy of the requests, to configure it and get its statistics
+     *
+     * @return
+     */
+    public RetryPolicy getRetryPolicy() {
+        return this.retryPolicy;
+    }
+
+    /**
+     * Get the global metrics, in which the phases of the calls are recorded (also those of the runs)
+     *
+     * @return
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
     }
 
     /**
@@ -84,6 +262,20 @@ public class PyAlgosHttpClient {
     }
 
 
+    /**
+     * Execute the request, with the tag of this client
+     *
+     * @param request
+     * @return {@link Response} from the server
+     * @throws IOException
+     */
+    private Response execute(Request request) throws IOException {
+        if (tag != null) {
+            request = request.newBuilder().tag(tag).build();
+        }
+        return root.httpClient.newCall(request).execute();
+    }
+
     /**
      * Send an HTTP GET request to the server
      *
@@ -96,7 +288,42 @@ public class PyAlgosHttpClient {
                 .url(new URL(apiUrl + path))
                 .header("Content-Type", "application/json")
                 .build();
-        return httpClient.newCall(request).execute();
+        return execute(request);
+    }
+
+    /**
+     * Send a conditional HTTP GET request to the server, which answers 304 (Not Modified) with an empty body if the
+     * resource still matches the given ETag
+     *
+     * @param path (appended to the apiUrl)
+     * @param etag ETag of the cached resource, or null for a plain GET request
+     * @return {@link Response} from the server
+     * @throws IOException
+     */
+    public Response getConditional(String path, String etag) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(new URL(apiUrl + path))
+                .header("Content-Type", "application/json");
+        if (etag != null) {
+            builder.header("If-None-Match", etag);
+        }
+        return execute(builder.build());
+    }
+
+    /**
+     * Send an HTTP GET request to the server, negotiating the format of the response with an Accept header
+     *
+     * @param path   (appended to the apiUrl)
+     * @param accept value of the Accept header (e.g. "image/tiff, application/json;q=0.5")
+     * @return {@link Response} from the server
+     * @throws IOException
+     */
+    private Response get(String path, String accept) throws IOException {
+        Request request = new Request.Builder()
+                .url(new URL(apiUrl + path))
+                .header("Accept", accept)
+                .build();
+        return execute(request);
     }
 
     /**
@@ -114,7 +341,7 @@ public class PyAlgosHttpClient {
                 .header("Content-Type", "application/json")
                 .post(requestBody)
                 .build();
-        return httpClient.newCall(request).execute();
+        return execute(request);
     }
 
     /**
@@ -132,7 +359,23 @@ public class PyAlgosHttpClient {
                 .header("Content-Type", "application/octet-stream")
                 .post(requestBody)
                 .build();
-        return httpClient.newCall(request).execute();
+        return execute(request);
+    }
+
+    /**
+     * Send an HTTP POST request to the server with the given {@link RequestBody}, which defines its own content type
+     *
+     * @param path        relative path appended to the apiUrl
+     * @param requestBody Content to be sent in the body of the POST request
+     * @return {@link Response} from the server
+     * @throws IOException
+     */
+    private Response post(String path, RequestBody requestBody) throws IOException {
+        Request request = new Request.Builder()
+                .url(new URL(apiUrl + path))
+                .post(requestBody)
+                .build();
+        return execute(request);
     }
 
     /**
@@ -148,7 +391,7 @@ public class PyAlgosHttpClient {
                 .header("Content-Type", "application/json")
                 .delete()
                 .build();
-        return httpClient.newCall(request).execute();
+        return execute(request);
     }
 
 
@@ -158,14 +401,147 @@ public class PyAlgosHttpClient {
      * @return true if successful
      */
     public boolean isConnected() {
-        try (Response httpResponse = this.get("/")) {
-            JsonObject response = JsonParser.parseString(httpResponse.body().string()).getAsJsonObject();
-            return httpResponse.isSuccessful() && response.get("message").getAsString().equals("hello");
+        try {
+            getCapabilities();
+            return true;
         } catch (IOException e) {
             return false;
         }
     }
 
+    /**
+     * Check whether the server can be reached with a HEAD request, without parsing any response body. Any response
+     * other than a server error counts as reachable (the API may not allow HEAD requests).
+     *
+     * @return true if the server answered
+     */
+    public boolean ping() {
+        try {
+            Request request = new Request.Builder()
+                    .url(new URL(apiUrl + "/"))
+                    .head()
+                    .build();
+            try (Response response = root.probeClient.newCall(request).execute()) {
+                return response.code() < 500;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the capabilities advertised by the server in its root response
+     *
+     * @return {@link ServerCapabilities} of the server (empty if none are advertised)
+     * @throws IOException if the server cannot be reached or does not answer as a PyAlgos server
+     */
+    public ServerCapabilities getCapabilities() throws IOException {
+        try (Response httpResponse = this.get("/")) {
+            JsonObject response = JsonParser.parseString(httpResponse.body().string()).getAsJsonObject();
+            JsonElement message = response.get("message");
+            if (!httpResponse.isSuccessful() || message == null || !message.getAsString().equals("hello")) {
+                throw new IOException("Unexpected response from " + apiUrl + ": HTTP " + httpResponse.code());
+            }
+            return ServerCapabilities.fromJson(response);
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Unexpected response from " + apiUrl, e);
+        }
+    }
+
+    /**
+     * Create a session on the server
+     *
+     * @return ID of the session
+     * @throws IOException if the server did not create the session
+     */
+    public String createSession() throws IOException {
+        try (Response response = this.post(SESSIONS_PATH, "{}")) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Could not create a session on " + apiUrl + ": HTTP " + response.code());
+            }
+            JsonElement id = JsonParser.parseString(response.body().string()).getAsJsonObject().get("session_id");
+            if (id == null) {
+                throw new IOException("Could not create a session on " + apiUrl + ": no session_id");
+            }
+            return id.getAsString();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Unexpected response from " + apiUrl, e);
+        }
+    }
+
+    /**
+     * Get a client sending the requests to the given session of the server (image, parameters, result), with the
+     * same connections as this client
+     *
+     * @param sessionId ID returned by {@link #createSession()}
+     * @return
+     * @throws MalformedURLException
+     */
+    public PyAlgosHttpClient forSession(String sessionId) throws MalformedURLException {
+        return new PyAlgosHttpClient(this, new URL(apiUrl + SESSIONS_PATH + "/" + sessionId), sessionId, tag);
+    }
+
+    /**
+     * Get a client sending its requests to another server, with the same connection pool, configuration and
+     * compression as this client
+     *
+     * @param serverURL URL of the server
+     * @return
+     */
+    public PyAlgosHttpClient forServer(URL serverURL) {
+        return new PyAlgosHttpClient(this, serverURL, null, tag);
+    }
+
+    /**
+     * Get a client sending the same requests as this client, tagged so that the calls in flight can be cancelled
+     * with {@link #cancelCalls(Object)}
+     *
+     * @param tag e.g. the {@link Job} of the run
+     * @return
+     */
+    public PyAlgosHttpClient withTag(Object tag) {
+        return new PyAlgosHttpClient(this, apiUrl, sessionId, tag);
+    }
+
+    /**
+     * Cancel the calls in flight with the given tag: their requests fail with an {@link IOException}. The calls
+     * made after the cancellation are not affected.
+     *
+     * @param tag
+     */
+    public void cancelCalls(Object tag) {
+        for (Call call : dispatcher.queuedCalls()) {
+            if (call.request().tag() == tag) {
+                call.cancel();
+            }
+        }
+        for (Call call : dispatcher.runningCalls()) {
+            if (call.request().tag() == tag) {
+                call.cancel();
+            }
+        }
+    }
+
+    /**
+     * Get the ID of the session to which the requests are sent
+     *
+     * @return null for the global state of the server
+     */
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Send a DELETE request for the session and all its data on the server
+     *
+     * @param sessionId
+     * @return {@link Response} from the server
+     * @throws IOException
+     */
+    public Response deleteSession(String sessionId) throws IOException {
+        return this.delete(SESSIONS_PATH + "/" + sessionId);
+    }
+
     /**
      * Get the list of available algorithms names
      *
@@ -173,7 +549,7 @@ public class PyAlgosHttpClient {
      * @throws IOException
      */
     public Response getAlgosNames() throws IOException {
-        return this.get("/algos_names/");
+        return this.get(ALGOS_NAMES_PATH);
     }
 
     /**
@@ -195,7 +571,17 @@ public class PyAlgosHttpClient {
      * @throws IOException
      */
     public Response getAlgoRequiredParams(String algoName) throws IOException {
-        return this.get("/algos/" + algoName + "/required_parameters");
+        return this.get(getAlgoRequiredParamsPath(algoName));
+    }
+
+    /**
+     * Get the path of the required parameters for the selected algorithm
+     *
+     * @param algoName
+     * @return
+     */
+    public static String getAlgoRequiredParamsPath(String algoName) {
+        return "/algos/" + algoName + "/required_parameters";
     }
 
     /**
@@ -223,6 +609,169 @@ public class PyAlgosHttpClient {
         return this.post("/image_bytes", bytes);
     }
 
+    /**
+     * Send a POST request for the image in the raw pixel format (see {@link RawImageCodec}). The pixels are
+     * streamed from the given body, which is not buffered in memory.
+     *
+     * @param rawImage
+     * @return
+     * @throws IOException
+     */
+    public Response sendRawImage(RequestBody rawImage) throws IOException {
+        return this.post("/image_raw", rawImage);
+    }
+
+    /**
+     * Send a POST request for the image written in a file of the shared memory (see {@link SharedMemoryTransport}).
+     * The server reads the file before answering.
+     *
+     * @param reference body referring to the file
+     * @return
+     * @throws IOException
+     */
+    public Response sendSharedImage(RequestBody reference) throws IOException {
+        return this.post("/image_shm", reference);
+    }
+
+    /**
+     * Source of the chunks of a resumable upload, written from their offset in the content without materializing it
+     */
+    public interface ChunkSource {
+        /**
+         * Build the body of a chunk
+         *
+         * @param offset position of the chunk in the content
+         * @param length
+         * @return
+         * @throws IOException
+         */
+        RequestBody chunk(long offset, int length) throws IOException;
+    }
+
+    /**
+     * Upload the content in chunks to the server, see
+     * {@link #uploadResumable(String, long, MediaType, ChunkSource, RetryPolicy)}
+     *
+     * @param target      path of the upload (e.g. "/image_bytes")
+     * @param content
+     * @param contentType content type of the target request
+     * @param retryPolicy
+     * @return {@link Response} of the last chunk, as the response of the target request
+     * @throws IOException if the upload could not be created or completed
+     */
+    public Response uploadResumable(String target, final byte[] content, MediaType contentType,
+                                    RetryPolicy retryPolicy) throws IOException {
+        MediaType octetStream = MediaType.get("application/octet-stream");
+        return uploadResumable(target, content.length, contentType,
+                (offset, length) -> RequestBody.create(content, octetStream, (int) offset, length), retryPolicy);
+    }
+
+    /**
+     * Upload the content in chunks to the server (capability "resumable_upload"), then apply it as a POST request to
+     * the target path: the server creates the upload (POST /uploads with the target, size and content type), receives
+     * the chunks (PATCH /uploads/{id} with the Upload-Offset header, answered with the offset reached), and answers
+     * the last chunk as it would answer the target request. When a chunk fails after its retries, the offset reached
+     * is asked to the server (GET /uploads/{id}) and the upload resumes from there.
+     *
+     * @param target      path of the upload (e.g. "/image_raw")
+     * @param size        length of the content (bytes)
+     * @param contentType content type of the target request
+     * @param chunks      source of the chunks, asked again for the chunks sent again
+     * @param retryPolicy size of the chunks, and maximal number of resumptions without progress
+     * @return {@link Response} of the last chunk, as the response of the target request
+     * @throws IOException if the upload could not be created or completed
+     */
+    public Response uploadResumable(String target, long size, MediaType contentType, ChunkSource chunks,
+                                    RetryPolicy retryPolicy) throws IOException {
+        JsonObject upload = new JsonObject();
+        upload.addProperty("target", target);
+        upload.addProperty("size", size);
+        upload.addProperty("content_type", contentType.toString());
+        String uploadPath;
+        try (Response response = this.post(UPLOADS_PATH, new Gson().toJson(upload))) {
+            if (!response.isSuccessful()) {
+                throw new HttpResponseException(response.code(),
+                        "Could not create the upload on " + apiUrl + ": HTTP " + response.code());
+            }
+            JsonElement id = JsonParser.parseString(response.body().string()).getAsJsonObject().get("upload_id");
+            if (id == null) {
+                throw new IOException("Could not create the upload on " + apiUrl + ": no upload_id");
+            }
+            uploadPath = UPLOADS_PATH + "/" + id.getAsString();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Unexpected response from " + apiUrl, e);
+        }
+
+        long offset = 0;
+        int failures = 0;
+        while (true) {
+            int length = (int) Math.min(retryPolicy.getChunkSize(), size - offset);
+            Request request = new Request.Builder()
+                    .url(new URL(apiUrl + uploadPath))
+                    .header(RetryPolicy.UPLOAD_OFFSET, Long.toString(offset))
+                    .patch(chunks.chunk(offset, length))
+                    .build();
+            Response response = null;
+            try {
+                response = execute(request);
+                if (response.isSuccessful() && offset + length == size) {
+                    return response;
+                }
+                long reached = (response.code() == 409 || response.isSuccessful()) ? readOffset(response) : -1;
+                if (reached < 0 && response.isSuccessful()) {
+                    // Not an HTTP error, but a response that the client cannot follow
+                    throw new IOException("Could not upload the chunk at " + offset + " to " + apiUrl +
+                            ": no " + RetryPolicy.UPLOAD_OFFSET + " in the response");
+                }
+                if (reached < 0) {
+                    throw new HttpResponseException(response.code(),
+                            "Could not upload the chunk at " + offset + " to " + apiUrl + ": HTTP " + response.code());
+                }
+                // The server may have received more than the chunk sent, e.g. when resuming (409 Conflict)
+                failures = (reached > offset) ? 0 : failures + 1;
+                offset = reached;
+            } catch (IOException e) {
+                if (response != null) {
+                    response.close();
+                }
+                if (e instanceof HttpResponseException || !RetryPolicy.isTransportFailure(e) ||
+                        ++failures > retryPolicy.getMaxRetries()) {
+                    throw e;
+                }
+                offset = getUploadOffset(uploadPath, offset);
+                continue;
+            }
+            response.close();
+            if (failures > retryPolicy.getMaxRetries()) {
+                throw new IOException("The upload to " + apiUrl + " does not progress at offset " + offset);
+            }
+        }
+    }
+
+    // Offset reached by the upload on the server, or the given offset if it cannot be read
+    private long getUploadOffset(String uploadPath, long offset) {
+        try (Response response = this.get(uploadPath)) {
+            if (response.isSuccessful()) {
+                long reached = readOffset(response);
+                return (reached < 0) ? offset : reached;
+            }
+        } catch (IOException ignored) {
+            // The same chunk is sent again
+        }
+        return offset;
+    }
+
+    // Read the "offset" field of the JSON body of the response
+    private static long readOffset(Response response) throws IOException {
+        try {
+            JsonElement offset = JsonParser.parseString(response.body().string()).getAsJsonObject().get("offset");
+            return (offset == null) ? -1 : offset.getAsLong();
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException |
+                 NumberFormatException e) {
+            return -1;
+        }
+    }
+
     /**
      * Send a POST request for the algo parameters for the given algoName
      *
@@ -236,6 +785,69 @@ public class PyAlgosHttpClient {
         return this.post("/image/" + algoName + "/parameters", algoParams);
     }
 
+    /**
+     * Send a single multipart POST request with the parameters (part "parameters") and the image (part "image") to
+     * compute the result for the given algoName. The server answers with the resulting image, in one of the accepted
+     * formats.
+     *
+     * @param algoName
+     * @param algoParams Json-formatted parameters, as for {@link #setAlgoParams(String, String)}
+     * @param image      body of the image (raw pixels or TIFF)
+     * @param accept     value of the Accept header for the resulting image
+     * @return
+     * @throws IOException
+     */
+    public Response processImage(String algoName, String algoParams, RequestBody image, String accept)
+            throws IOException {
+        MultipartBody body = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("parameters", null, RequestBody.create(algoParams, JSON))
+                .addFormDataPart("image", "image", image)
+                .build();
+        Request request = new Request.Builder()
+                .url(new URL(apiUrl + "/image/" + algoName + "/process"))
+                .header("Accept", accept)
+                .post(body)
+                .build();
+        return execute(request);
+    }
+
+    /**
+     * Submit a job computing the result for the given algoName, without waiting for its completion. The image data
+     * & the algorithm parameters should already be available on the server.
+     *
+     * @param algoName
+     * @return HTTPResponse with the ID of the job ("job_id")
+     * @throws IOException
+     */
+    public Response submitJob(String algoName) throws IOException {
+        return this.post("/image/" + algoName + "/jobs", "{}");
+    }
+
+    /**
+     * Get the status of a job ("status", "progress", "detail", and "output_endpoints" once done). The server may hold
+     * the request until the status changes or the wait expires (long polling).
+     *
+     * @param jobId
+     * @param wait  maximal time the server may hold the request (seconds)
+     * @return HTTPResponse containing the status of the job
+     * @throws IOException
+     */
+    public Response getJobStatus(String jobId, int wait) throws IOException {
+        return this.get("/jobs/" + jobId + "?wait=" + wait);
+    }
+
+    /**
+     * Send a DELETE request to cancel a job and free its resources on the server
+     *
+     * @param jobId
+     * @return
+     * @throws IOException
+     */
+    public Response cancelJob(String jobId) throws IOException {
+        return this.delete("/jobs/" + jobId);
+    }
+
     /**
      * Get the parameters that were set for the selected algoName
      *
@@ -278,7 +890,7 @@ public class PyAlgosHttpClient {
      * @throws IOException
      */
     public Response getComputedResultImage(String algoName) throws IOException {
-        return this.get("/image" + algoName + "/result/image");
+        return this.get("/image/" + algoName + "/result/image");
     }
 
     /**
@@ -289,7 +901,7 @@ public class PyAlgosHttpClient {
      * @throws IOException
      */
     public Response getComputedResultMask(String algoName) throws IOException {
-        return this.get("/image" + algoName + "/result/mask");
+        return this.get("/image/" + algoName + "/result/mask");
     }
 
     /**
@@ -314,4 +926,17 @@ public class PyAlgosHttpClient {
     public Response getComputedResultEndpoint(String algoName, String endpoint) throws IOException {
         return this.get("/image/" + algoName + "/result/" + endpoint);
     }
+
+    /**
+     * Get the specific endpoint from the result, in one of the accepted formats
+     *
+     * @param algoName
+     * @param endpoint
+     * @param accept   value of the Accept header
+     * @return
+     * @throws IOException
+     */
+    public Response getComputedResultEndpoint(String algoName, String endpoint, String accept) throws IOException {
+        return this.get("/image/" + algoName + "/result/" + endpoint, accept);
+    }
 }
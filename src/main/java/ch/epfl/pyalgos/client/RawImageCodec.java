@@ -0,0 +1,545 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.*;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Raw pixel transport format, used instead of TIFF serialization when the server supports it.
+ * <p>
+ * Layout (all little-endian): the header length as a 4-byte int, the header as a UTF-8 JSON object, then the pixels
+ * in row-major order. The header contains the width, height, number of channels, bit depth, dtype ("uint8",
+ * "uint16" or "float32"), byte order and spatial calibration. RGB images are sent as 3 interleaved uint8 channels.
+ * The same format is used for the upload of the image and for the download of the result image, and for the files
+ * exchanged through shared memory ({@link SharedMemoryTransport}).
+ */
+public final class RawImageCodec {
+
+    public static final MediaType RAW = MediaType.get("application/x-pyalgos-raw");
+
+    // Size of the buffer used to convert the 16/32-bit and RGB pixels to bytes
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // Maximal length of the JSON header, far above the few hundred bytes of a valid header
+    static final int MAX_HEADER_LENGTH = 1 << 16;
+
+    private RawImageCodec() {
+    }
+
+    /**
+     * Build the header describing the pixels of the image's current processor
+     *
+     * @param image
+     * @return
+     */
+    public static JsonObject header(ImagePlus image) {
+        ImageProcessor ip = image.getProcessor();
+        JsonObject header = new JsonObject();
+        header.addProperty("width", ip.getWidth());
+        header.addProperty("height", ip.getHeight());
+        header.addProperty("channels", channels(ip));
+        header.addProperty("bit_depth", ip.getBitDepth());
+        header.addProperty("dtype", dtype(ip));
+        header.addProperty("byte_order", "little");
+
+        Calibration calibration = image.getCalibration();
+        JsonObject calibrationJson = new JsonObject();
+        calibrationJson.addProperty("pixel_width", calibration.pixelWidth);
+        calibrationJson.addProperty("pixel_height", calibration.pixelHeight);
+        calibrationJson.addProperty("pixel_depth", calibration.pixelDepth);
+        calibrationJson.addProperty("unit", calibration.getUnit());
+        header.add("calibration", calibrationJson);
+        return header;
+    }
+
+    /**
+     * Build a {@link RequestBody} writing the header and the pixels of the image's current processor straight into
+     * the request sink, without any intermediate serialized copy
+     *
+     * @param image
+     * @return
+     */
+    public static RequestBody requestBody(ImagePlus image) {
+        final ImageProcessor ip = image.getProcessor();
+        final byte[] header = new Gson().toJson(header(image)).getBytes(StandardCharsets.UTF_8);
+        final long length = 4L + header.length + (long) ip.getPixelCount() * bytesPerPixel(ip);
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return RAW;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                sink.writeIntLe(header.length);
+                sink.write(header);
+                writePixels(ip, sink);
+            }
+        };
+    }
+
+    /**
+     * Get the length of the raw format of the image's current processor, header included
+     *
+     * @param image
+     * @return (bytes)
+     */
+    public static long contentLength(ImagePlus image) {
+        ImageProcessor ip = image.getProcessor();
+        return 4L + new Gson().toJson(header(image)).getBytes(StandardCharsets.UTF_8).length +
+                (long) ip.getPixelCount() * bytesPerPixel(ip);
+    }
+
+    /**
+     * Build a {@link RequestBody} writing a range of the raw format of the image's current processor, e.g. a chunk of
+     * a resumable upload. Only the pixels of the range are encoded.
+     *
+     * @param image
+     * @param offset position of the range in the raw format, header included
+     * @param length
+     * @return
+     */
+    public static RequestBody requestBody(ImagePlus image, final long offset, final long length) {
+        final ImageProcessor ip = image.getProcessor();
+        final byte[] header = new Gson().toJson(header(image)).getBytes(StandardCharsets.UTF_8);
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MediaType.get("application/octet-stream");
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                writeRange(header, ip, offset, offset + length, sink);
+            }
+        };
+    }
+
+    // Write the bytes [start, end) of the raw format: header length, header, then the pixels encoded by chunks
+    private static void writeRange(byte[] header, ImageProcessor ip, long start, long end, BufferedSink sink)
+            throws IOException {
+        byte[] prefix = ByteBuffer.allocate(4 + header.length).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(header.length).put(header).array();
+        if (start < prefix.length) {
+            int n = (int) Math.min(prefix.length, end) - (int) start;
+            sink.write(prefix, (int) start, n);
+            start += n;
+        }
+        long pixelStart = start - prefix.length;
+        long pixelEnd = end - prefix.length;
+        if (pixelStart >= pixelEnd) {
+            return;
+        }
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            sink.write((byte[]) pixels, (int) pixelStart, (int) (pixelEnd - pixelStart));
+            return;
+        }
+        int bytesPerPixel = bytesPerPixel(ip);
+        byte[] chunk = new byte[CHUNK_SIZE / bytesPerPixel * bytesPerPixel];
+        int step = chunk.length / bytesPerPixel;
+        int count = ip.getPixelCount();
+        for (int first = (int) (pixelStart / bytesPerPixel);
+             first < count && (long) first * bytesPerPixel < pixelEnd; first += step) {
+            int n = Math.min(step, count - first);
+            encodePixels(pixels, first, n, chunk);
+            long chunkStart = (long) first * bytesPerPixel;
+            int from = (int) (Math.max(pixelStart, chunkStart) - chunkStart);
+            int to = (int) (Math.min(pixelEnd, chunkStart + (long) n * bytesPerPixel) - chunkStart);
+            sink.write(chunk, from, to - from);
+        }
+    }
+
+    // Encode n 16/32-bit or RGB pixels from the given one, in little-endian order
+    private static void encodePixels(Object pixels, int first, int n, byte[] chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) pixels, first, n);
+        } else if (pixels instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) pixels, first, n);
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            int j = 0;
+            for (int i = first; i < first + n; ++i) {
+                int c = p[i];
+                chunk[j++] = (byte) (c >> 16);
+                chunk[j++] = (byte) (c >> 8);
+                chunk[j++] = (byte) c;
+            }
+        } else {
+            throw new IOException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Write the pixels of the processor in little-endian order
+     *
+     * @param ip
+     * @param sink
+     * @throws IOException
+     */
+    public static void writePixels(ImageProcessor ip, BufferedSink sink) throws IOException {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            sink.write((byte[]) pixels);
+            return;
+        }
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            ShortBuffer shortBuffer = buffer.asShortBuffer();
+            int step = CHUNK_SIZE / 2;
+            for (int offset = 0; offset < p.length; offset += step) {
+                int n = Math.min(step, p.length - offset);
+                shortBuffer.clear();
+                shortBuffer.put(p, offset, n);
+                sink.write(chunk, 0, 2 * n);
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            FloatBuffer floatBuffer = buffer.asFloatBuffer();
+            int step = CHUNK_SIZE / 4;
+            for (int offset = 0; offset < p.length; offset += step) {
+                int n = Math.min(step, p.length - offset);
+                floatBuffer.clear();
+                floatBuffer.put(p, offset, n);
+                sink.write(chunk, 0, 4 * n);
+            }
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            int step = CHUNK_SIZE / 3;
+            for (int offset = 0; offset < p.length; offset += step) {
+                int n = Math.min(step, p.length - offset);
+                int j = 0;
+                for (int i = offset; i < offset + n; ++i) {
+                    int c = p[i];
+                    chunk[j++] = (byte) (c >> 16);
+                    chunk[j++] = (byte) (c >> 8);
+                    chunk[j++] = (byte) c;
+                }
+                sink.write(chunk, 0, j);
+            }
+        } else {
+            throw new IOException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Read an image in the raw format, streaming the pixels from the source straight into the pixel array of a new
+     * {@link ImageProcessor}
+     *
+     * @param source
+     * @param title  title of the returned image
+     * @return
+     * @throws IOException if the header is invalid or the source ends before all the pixels are read
+     */
+    public static ImagePlus read(BufferedSource source, String title) throws IOException {
+        int headerLength = checkHeaderLength(source.readIntLe());
+        ImagePlus image = newImage(parseHeader(source.readUtf8(headerLength)), title);
+        readPixels(source, image.getProcessor());
+        return image;
+    }
+
+    /**
+     * Check the length of the header read before it, so that a corrupted length does not allocate a huge header
+     *
+     * @param headerLength
+     * @return the length of the header
+     * @throws IOException if the length is negative or larger than {@link #MAX_HEADER_LENGTH}
+     */
+    static int checkHeaderLength(int headerLength) throws IOException {
+        if (headerLength < 0 || headerLength > MAX_HEADER_LENGTH) {
+            throw new IOException("Invalid raw image header length: " + headerLength);
+        }
+        return headerLength;
+    }
+
+    /**
+     * Parse the JSON header of an image in the raw format
+     *
+     * @param header
+     * @return
+     * @throws IOException if the header is not a JSON object
+     */
+    static JsonObject parseHeader(String header) throws IOException {
+        try {
+            return JsonParser.parseString(header).getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid raw image header", e);
+        }
+    }
+
+    /**
+     * Create the image described by the header, with its calibration and blank pixels
+     *
+     * @param header
+     * @param title  title of the returned image
+     * @return
+     * @throws IOException if the header is invalid, describes an unsupported pixel type, or too many pixels for an
+     *                     {@link ImageProcessor}
+     */
+    static ImagePlus newImage(JsonObject header, String title) throws IOException {
+        int width;
+        int height;
+        int channels;
+        String dtype;
+        String byteOrder;
+        try {
+            width = header.get("width").getAsInt();
+            height = header.get("height").getAsInt();
+            channels = header.has("channels") ? header.get("channels").getAsInt() : 1;
+            dtype = header.get("dtype").getAsString();
+            byteOrder = header.has("byte_order") ? header.get("byte_order").getAsString() : "little";
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid raw image header", e);
+        }
+        if (!byteOrder.equals("little")) {
+            throw new IOException("Unsupported byte order: " + byteOrder);
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid raw image dimensions: " + width + "x" + height);
+        }
+        // The pixels of a processor are held in a single array
+        if ((long) width * height > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too many pixels for an image: " + width + "x" + height);
+        }
+
+        ImageProcessor ip;
+        if (channels == 3 && dtype.equals("uint8")) {
+            ip = new ColorProcessor(width, height);
+        } else if (channels != 1) {
+            throw new IOException("Unsupported number of channels: " + channels);
+        } else if (dtype.equals("uint8")) {
+            ip = new ByteProcessor(width, height);
+        } else if (dtype.equals("uint16")) {
+            ip = new ShortProcessor(width, height);
+        } else if (dtype.equals("float32")) {
+            ip = new FloatProcessor(width, height);
+        } else {
+            throw new IOException("Unsupported dtype: " + dtype);
+        }
+
+        ImagePlus image = new ImagePlus(title, ip);
+        JsonElement calibrationElement = header.get("calibration");
+        if (calibrationElement != null && calibrationElement.isJsonObject()) {
+            JsonObject calibrationJson = calibrationElement.getAsJsonObject();
+            Calibration calibration = image.getCalibration();
+            try {
+                if (calibrationJson.has("pixel_width")) {
+                    calibration.pixelWidth = calibrationJson.get("pixel_width").getAsDouble();
+                }
+                if (calibrationJson.has("pixel_height")) {
+                    calibration.pixelHeight = calibrationJson.get("pixel_height").getAsDouble();
+                }
+                if (calibrationJson.has("pixel_depth")) {
+                    calibration.pixelDepth = calibrationJson.get("pixel_depth").getAsDouble();
+                }
+                if (calibrationJson.has("unit")) {
+                    calibration.setUnit(calibrationJson.get("unit").getAsString());
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid calibration in the raw image header", e);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Read the little-endian pixels from the source into the pixel array of the processor
+     *
+     * @param source
+     * @param ip
+     * @throws IOException
+     */
+    public static void readPixels(BufferedSource source, ImageProcessor ip) throws IOException {
+        Object pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            source.readFully((byte[]) pixels);
+            return;
+        }
+        byte[] chunk = new byte[CHUNK_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            ShortBuffer shortBuffer = buffer.asShortBuffer();
+            int step = CHUNK_SIZE / 2;
+            for (int offset = 0; offset < p.length; offset += step) {
+                int n = Math.min(step, p.length - offset);
+                readFully(source, chunk, 2 * n);
+                shortBuffer.clear();
+                shortBuffer.get(p, offset, n);
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            FloatBuffer floatBuffer = buffer.asFloatBuffer();
+            int step = CHUNK_SIZE / 4;
+            for (int offset = 0; offset < p.length; offset += step) {
+                int n = Math.min(step, p.length - offset);
+                readFully(source, chunk, 4 * n);
+                floatBuffer.clear();
+                floatBuffer.get(p, offset, n);
+            }
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            int step = CHUNK_SIZE / 3;
+            for (int offset = 0; offset < p.length; offset += step) {
+                int n = Math.min(step, p.length - offset);
+                readFully(source, chunk, 3 * n);
+                int j = 0;
+                for (int i = offset; i < offset + n; ++i) {
+                    p[i] = 0xff000000 | ((chunk[j] & 0xff) << 16) | ((chunk[j + 1] & 0xff) << 8)
+                            | (chunk[j + 2] & 0xff);
+                    j += 3;
+                }
+            }
+        } else {
+            throw new IOException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Write the pixels of the processor at the position of the buffer, e.g. a memory-mapped file, in little-endian
+     * order. The bulk copies of the buffer views are used, without intermediate chunk.
+     *
+     * @param ip
+     * @param buffer buffer with the remaining capacity for the pixels
+     * @throws IOException
+     */
+    public static void writePixels(ImageProcessor ip, ByteBuffer buffer) throws IOException {
+        Object pixels = ip.getPixels();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof byte[]) {
+            buffer.put((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            buffer.asShortBuffer().put(p);
+            buffer.position(buffer.position() + 2 * p.length);
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            buffer.asFloatBuffer().put(p);
+            buffer.position(buffer.position() + 4 * p.length);
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            byte[] chunk = new byte[CHUNK_SIZE / 3 * 3];
+            for (int offset = 0; offset < p.length; offset += chunk.length / 3) {
+                int n = Math.min(chunk.length / 3, p.length - offset);
+                int j = 0;
+                for (int i = offset; i < offset + n; ++i) {
+                    int c = p[i];
+                    chunk[j++] = (byte) (c >> 16);
+                    chunk[j++] = (byte) (c >> 8);
+                    chunk[j++] = (byte) c;
+                }
+                buffer.put(chunk, 0, j);
+            }
+        } else {
+            throw new IOException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Read the little-endian pixels at the position of the buffer, e.g. a memory-mapped file, into the pixel array
+     * of the processor
+     *
+     * @param buffer
+     * @param ip
+     * @throws IOException if the buffer ends before all the pixels are read
+     */
+    public static void readPixels(ByteBuffer buffer, ImageProcessor ip) throws IOException {
+        Object pixels = ip.getPixels();
+        if (buffer.remaining() < (long) ip.getPixelCount() * bytesPerPixel(ip)) {
+            throw new EOFException("Raw image truncated");
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (pixels instanceof byte[]) {
+            buffer.get((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            buffer.asShortBuffer().get(p);
+            buffer.position(buffer.position() + 2 * p.length);
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            buffer.asFloatBuffer().get(p);
+            buffer.position(buffer.position() + 4 * p.length);
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            byte[] chunk = new byte[CHUNK_SIZE / 3 * 3];
+            for (int offset = 0; offset < p.length; offset += chunk.length / 3) {
+                int n = Math.min(chunk.length / 3, p.length - offset);
+                buffer.get(chunk, 0, 3 * n);
+                int j = 0;
+                for (int i = offset; i < offset + n; ++i) {
+                    p[i] = 0xff000000 | ((chunk[j] & 0xff) << 16) | ((chunk[j + 1] & 0xff) << 8)
+                            | (chunk[j + 2] & 0xff);
+                    j += 3;
+                }
+            }
+        } else {
+            throw new IOException("Unsupported pixel type: " + pixels.getClass().getSimpleName());
+        }
+    }
+
+    private static void readFully(BufferedSource source, byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int read = source.read(bytes, offset, length - offset);
+            if (read == -1) throw new EOFException("Raw image truncated");
+            offset += read;
+        }
+    }
+
+    static int channels(ImageProcessor ip) {
+        return ip.getBitDepth() == 24 ? 3 : 1;
+    }
+
+    static String dtype(ImageProcessor ip) {
+        switch (ip.getBitDepth()) {
+            case 16:
+                return "uint16";
+            case 32:
+                return "float32";
+            default:
+                return "uint8";
+        }
+    }
+
+    static int bytesPerPixel(ImageProcessor ip) {
+        switch (ip.getBitDepth()) {
+            case 16:
+                return 2;
+            case 24:
+                return 3;
+            case 32:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ch.epfl.pyalgos.client;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.io.IOException;
+
+/**
+ * Image kept in a session of the server between runs, identified by its calibration and pixel hash, so that the next
+ * runs on the same pixels do not send it again. It is deleted from the server once idle, or explicitly.
+ */
+class ResidentImage {
+
+    // Client of the context, without tag, used to delete the image data
+    private final PyAlgosHttpClient httpClient;
+
+    // Identity of the image on the server, null if there is none
+    private String key;
+    private long lastUsed;
+
+    ResidentImage(PyAlgosHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Get the identity of the image: size and bit depth (included in the pixel hash), calibration and pixel hash
+     *
+     * @param image
+     * @return
+     */
+    static String key(ImagePlus image) {
+        Calibration calibration = image.getCalibration();
+        return calibration.pixelWidth + "," + calibration.pixelHeight + "," + calibration.getUnit() + "|" +
+                PixelHash.toHex(PixelHash.hash(image.getProcessor()));
+    }
+
+    /**
+     * Check whether the image is on the server
+     *
+     * @param key identity of the image, from {@link #key(ImagePlus)}
+     * @return
+     */
+    synchronized boolean isResident(String key) {
+        return key.equals(this.key);
+    }
+
+    /**
+     * Check whether there is an image on the server
+     *
+     * @return
+     */
+    synchronized boolean hasImage() {
+        return key != null;
+    }
+
+    /**
+     * Record the image as on the server, used now
+     *
+     * @param key identity of the image
+     */
+    synchronized void set(String key) {
+        this.key = key;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget the image, e.g. when it is replaced or deleted on the server
+     */
+    synchronized void clear() {
+        key = null;
+    }
+
+    /**
+     * Check whether there is an image that has not been used since the given time
+     *
+     * @param idleSince (milliseconds since the epoch)
+     * @return
+     */
+    synchronized boolean isIdle(long idleSince) {
+        return key != null && lastUsed <= idleSince;
+    }
+
+    /**
+     * Delete the image data from the server if the image has not been used since the given time. The server may be
+     * unreachable: the failure is ignored, the image being forgotten anyway.
+     *
+     * @param idleSince (milliseconds since the epoch)
+     * @return true if the image was deleted
+     */
+    synchronized boolean deleteIfIdle(long idleSince) {
+        if (!isIdle(idleSince)) {
+            return false;
+        }
+        key = null;
+        try {
+            httpClient.deleteImageData().close();
+        } catch (IOException ignored) {
+            // Left to the server
+        }
+        return true;
+    }
+}
@@ -0,0 +1,401 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.Gson;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.measure.Calibration;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Cache of the resulting images, keyed by the server and its version, the content of the input image, the algorithm
+ * and its parameters, so that running the same algorithm with the same parameters on the same pixels returns the
+ * stored result without any request to the server. The cache is disabled by default: the key costs a hash of the
+ * pixels at each run.
+ * <p>
+ * The results are stored as serialized TIFF in a memory tier (least recently used first out), and the results
+ * evicted from memory are written to an optional disk tier, itself limited in size, if a folder is set. The files
+ * start with the full key of their result, checked when they are read. The results of the servers that do not
+ * advertise a version, or of a pool whose servers have different versions, are only kept in memory, and removed when
+ * the client connects to the server again, since the server may have been updated meanwhile.
+ */
+public class ResultCache {
+
+    static final long DEFAULT_MEMORY_SIZE = 256L << 20;
+    static final long DEFAULT_DISK_SIZE = 2L << 30;
+
+    // Extension of the files of the disk tier: the key then the serialized TIFF
+    private static final String DISK_EXTENSION = ".result";
+
+    private volatile boolean enabled = false;
+
+    // Maximal size of the memory and disk tiers (bytes)
+    private long maxMemorySize = DEFAULT_MEMORY_SIZE;
+    private long maxDiskSize = DEFAULT_DISK_SIZE;
+
+    // Memory tier, in access order
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memorySize = 0;
+
+    // Folder of the disk tier, null to disable it. The disk is accessed under its own lock, not the memory's.
+    private final Object diskLock = new Object();
+    private File directory;
+
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    private static class Entry {
+        final byte[] serialized;
+        // Whether the result can be written to disk, its server advertising a version
+        final boolean persistent;
+
+        Entry(byte[] serialized, boolean persistent) {
+            this.serialized = serialized;
+            this.persistent = persistent;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the cache
+     *
+     * @param enabled false by default
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public synchronized long getMaxMemorySize() {
+        return maxMemorySize;
+    }
+
+    /**
+     * Set the maximal size of the results kept in memory
+     *
+     * @param maxMemorySize (bytes)
+     */
+    public void setMaxMemorySize(long maxMemorySize) {
+        List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            this.maxMemorySize = Math.max(0, maxMemorySize);
+            evicted = evictMemory();
+        }
+        writeToDisk(evicted);
+    }
+
+    public long getMaxDiskSize() {
+        synchronized (diskLock) {
+            return maxDiskSize;
+        }
+    }
+
+    /**
+     * Set the maximal size of the results stored on disk
+     *
+     * @param maxDiskSize (bytes)
+     */
+    public void setMaxDiskSize(long maxDiskSize) {
+        synchronized (diskLock) {
+            this.maxDiskSize = Math.max(0, maxDiskSize);
+            evictDisk();
+        }
+    }
+
+    public File getDirectory() {
+        synchronized (diskLock) {
+            return directory;
+        }
+    }
+
+    /**
+     * Set the folder of the disk tier, disabled by default. The results stored in it are found again after a restart,
+     * if their server advertises the same version.
+     *
+     * @param directory null to keep the results in memory only
+     */
+    public void setDirectory(File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            directory = null;
+        }
+        synchronized (diskLock) {
+            this.directory = directory;
+            evictDisk();
+        }
+    }
+
+    /**
+     * Get the key of the result of the algorithm with the given parameters on the image
+     *
+     * @param serverURL        URL of the server computing the result, or of the primary server of the pool
+     * @param serverVersion    version advertised by the server, or by all the servers of the pool, null if none
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param image            input {@link ImagePlus} (current processor)
+     * @return
+     */
+    public static String key(URL serverURL, String serverVersion, String algoName,
+                             Map<String, Object> parametersValues, ImagePlus image) {
+        // Sort the parameters by name so that the key does not depend on the order of the map
+        String parameters = new Gson().toJson(new TreeMap<>(parametersValues));
+        Calibration calibration = image.getCalibration();
+        return serverURL + "|" + ((serverVersion == null) ? "" : serverVersion) + "|" + algoName + "|" +
+                parameters + "|" + calibration.pixelWidth + "," + calibration.pixelHeight + "," +
+                calibration.getUnit() + "|" + PixelHash.toHex(PixelHash.hash(image.getProcessor()));
+    }
+
+    /**
+     * Get the stored result for the key
+     *
+     * @param key
+     * @param title title of the returned image
+     * @return a new {@link ImagePlus}, or null if there is no result stored for the key
+     */
+    public ImagePlus get(String key, String title) {
+        byte[] serialized;
+        synchronized (this) {
+            Entry entry = memory.get(key);
+            serialized = (entry == null) ? null : entry.serialized;
+            if (serialized != null) {
+                ++memoryHits;
+            }
+        }
+        if (serialized == null) {
+            serialized = readFromDisk(key);
+            List<Map.Entry<String, Entry>> evicted;
+            synchronized (this) {
+                if (serialized == null) {
+                    ++misses;
+                    return null;
+                }
+                ++diskHits;
+                evicted = putInMemory(key, new Entry(serialized, true));
+            }
+            writeToDisk(evicted);
+        }
+        ImagePlus image = new Opener().deserialize(serialized);
+        if (image != null) {
+            image.setTitle(title);
+        }
+        return image;
+    }
+
+    /**
+     * Store the result for the key
+     *
+     * @param key
+     * @param result     resulting {@link ImagePlus}
+     * @param persistent whether the result can be written to disk, its server advertising a version
+     */
+    public void put(String key, ImagePlus result, boolean persistent) {
+        byte[] serialized = new FileSaver(result).serialize();
+        if (serialized == null) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> evicted;
+        synchronized (this) {
+            evicted = putInMemory(key, new Entry(serialized, persistent));
+        }
+        writeToDisk(evicted);
+    }
+
+    /**
+     * Remove from memory the results of the server that are not written to disk, when the client connects to it
+     * again
+     *
+     * @param serverURL
+     */
+    public synchronized void invalidate(URL serverURL) {
+        String prefix = serverURL + "|";
+        Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (!entry.getValue().persistent && entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                memorySize -= entry.getValue().serialized.length;
+            }
+        }
+    }
+
+    /**
+     * Remove all the results from memory and disk
+     */
+    public void clear() {
+        synchronized (this) {
+            memory.clear();
+            memorySize = 0;
+        }
+        synchronized (diskLock) {
+            for (File file : getDiskFiles()) {
+                file.delete();
+            }
+        }
+    }
+
+    public synchronized long getMemoryHits() {
+        return memoryHits;
+    }
+
+    public synchronized long getDiskHits() {
+        return diskHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    public long getDiskSize() {
+        synchronized (diskLock) {
+            long size = 0;
+            for (File file : getDiskFiles()) {
+                size += file.length();
+            }
+            return size;
+        }
+    }
+
+    public synchronized void resetStatistics() {
+        memoryHits = 0;
+        diskHits = 0;
+        misses = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Result cache: " + memoryHits + " memory hits, " + diskHits + " disk hits, " + misses + " misses, " +
+                memory.size() + " results in memory (" + memorySize / (1 << 20) + " MB)";
+    }
+
+    private List<Map.Entry<String, Entry>> putInMemory(String key, Entry entry) {
+        Entry previous = memory.put(key, entry);
+        if (previous != null) {
+            memorySize -= previous.serialized.length;
+        }
+        memorySize += entry.serialized.length;
+        return evictMemory();
+    }
+
+    // Remove the least recently used results from memory, returning the ones to move to disk
+    private List<Map.Entry<String, Entry>> evictMemory() {
+        List<Map.Entry<String, Entry>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry>> iterator = memory.entrySet().iterator();
+        while (memorySize > maxMemorySize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            memorySize -= eldest.getValue().serialized.length;
+            if (eldest.getValue().persistent) {
+                evicted.add(new AbstractMap.SimpleEntry<>(eldest));
+            }
+        }
+        return evicted;
+    }
+
+    private File getDiskFile(String key) {
+        return new File(directory, PixelHash.toHex(PixelHash.hash(key)) + DISK_EXTENSION);
+    }
+
+    private File[] getDiskFiles() {
+        File[] files = (directory == null) ? null :
+                directory.listFiles((dir, name) -> name.endsWith(DISK_EXTENSION));
+        return (files == null) ? new File[0] : files;
+    }
+
+    // Read the serialized result of the file named after the key, if it starts with the same key
+    private byte[] readFromDisk(String key) {
+        synchronized (diskLock) {
+            if (directory == null) {
+                return null;
+            }
+            File file = getDiskFile(key);
+            if (!file.isFile()) {
+                return null;
+            }
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                byte[] storedKey = readBytes(input, file.length());
+                if (storedKey == null || !key.equals(new String(storedKey, StandardCharsets.UTF_8))) {
+                    return null;
+                }
+                byte[] serialized = readBytes(input, file.length());
+                if (serialized == null) {
+                    return null;
+                }
+                file.setLastModified(System.currentTimeMillis());
+                return serialized;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    // Read a field written as its length then its bytes, null if the length is invalid
+    private static byte[] readBytes(DataInputStream input, long fileLength) throws IOException {
+        int length = input.readInt();
+        if (length < 0 || length > fileLength) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private void writeToDisk(List<Map.Entry<String, Entry>> evicted) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+        synchronized (diskLock) {
+            if (directory == null) {
+                return;
+            }
+            for (Map.Entry<String, Entry> entry : evicted) {
+                byte[] serialized = entry.getValue().serialized;
+                File file = getDiskFile(entry.getKey());
+                if (serialized.length > maxDiskSize || file.isFile()) {
+                    continue;
+                }
+                try (DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)))) {
+                    byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(key.length);
+                    output.write(key);
+                    output.writeInt(serialized.length);
+                    output.write(serialized);
+                } catch (IOException e) {
+                    // The result is only lost from the cache
+                    file.delete();
+                }
+            }
+            evictDisk();
+        }
+    }
+
+    // Delete the least recently used results until the disk tier fits in its maximal size
+    private void evictDisk() {
+        File[] files = getDiskFiles();
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxDiskSize) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (size <= maxDiskSize) {
+                break;
+            }
+            size -= file.length();
+            file.delete();
+        }
+    }
+}
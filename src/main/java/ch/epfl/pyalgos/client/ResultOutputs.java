@@ -0,0 +1,170 @@
+package ch.epfl.pyalgos.client;
+
+import ij.ImagePlus;
+import ij.gui.ImageRoi;
+import ij.gui.Overlay;
+import ij.measure.ResultsTable;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outputs of a result besides its image, each routed to its ImageJ sink: the "features" to the ROI Manager (through a
+ * {@link RoiImporter}), the "mask" to the overlay of the processed image, the other images to their own windows, and
+ * the tables to {@link ResultsTable}s. The outputs are fetched concurrently, so that they are added from several
+ * threads; the windows are only shown by {@link #show()}, once the run is done.
+ */
+public class ResultOutputs {
+
+    private static final double MASK_OPACITY = 0.5;
+
+    private final ImagePlus image;
+    private final RoiImporter roiImporter;
+
+    private final List<ImageRoi> masks = new ArrayList<>();
+    private final Map<String, ImagePlus> images = new LinkedHashMap<>();
+    private final Map<String, ResultsTable> tables = new LinkedHashMap<>();
+
+    /**
+     * @param image   processed image
+     * @param originX offset of the processed region in the image (pixels)
+     * @param originY
+     */
+    public ResultOutputs(ImagePlus image, int originX, int originY) {
+        this.image = image;
+        this.roiImporter = new RoiImporter(image, originX, originY);
+    }
+
+    /**
+     * Get the importer of the features into the ROI Manager, with the number of ROIs imported
+     *
+     * @return
+     */
+    public RoiImporter getRoiImporter() {
+        return roiImporter;
+    }
+
+    /**
+     * Add a mask, shown semi-transparent over the processed region, its zero pixels being transparent
+     *
+     * @param mask
+     */
+    public synchronized void addMask(ImagePlus mask) {
+        ImageRoi roi = new ImageRoi(roiImporter.getOriginX(), roiImporter.getOriginY(), mask.getProcessor());
+        roi.setName(mask.getTitle());
+        roi.setOpacity(MASK_OPACITY);
+        roi.setZeroTransparent(true);
+        if (image.getStackSize() > 1) {
+            if (image.isHyperStack()) {
+                roi.setPosition(image.getChannel(), image.getSlice(), image.getFrame());
+            } else {
+                roi.setPosition(image.getCurrentSlice());
+            }
+        }
+        masks.add(roi);
+    }
+
+    /**
+     * Add an image output, other than the main image and the mask
+     *
+     * @param endpoint
+     * @param output
+     */
+    public synchronized void addImage(String endpoint, ImagePlus output) {
+        images.put(endpoint, output);
+    }
+
+    /**
+     * Add a table output
+     *
+     * @param endpoint
+     * @param table
+     */
+    public synchronized void addTable(String endpoint, ResultsTable table) {
+        tables.put(endpoint, table);
+    }
+
+    /**
+     * Check whether any output was added, e.g. ROIs already in the ROI Manager, which a run processed again would add
+     * twice
+     *
+     * @return
+     */
+    public synchronized boolean isEmpty() {
+        return roiImporter.getCount() == 0 && masks.isEmpty() && images.isEmpty() && tables.isEmpty();
+    }
+
+    /**
+     * Get the image outputs, by endpoint
+     *
+     * @return
+     */
+    public synchronized Map<String, ImagePlus> getImages() {
+        return new LinkedHashMap<>(images);
+    }
+
+    /**
+     * Get the table outputs, by endpoint
+     *
+     * @return
+     */
+    public synchronized Map<String, ResultsTable> getTables() {
+        return new LinkedHashMap<>(tables);
+    }
+
+    /**
+     * Show the ROIs and masks on the processed image, once all the outputs are fetched
+     */
+    public synchronized void finish() {
+        roiImporter.finish();
+        if (!masks.isEmpty()) {
+            Overlay overlay = (image.getOverlay() != null) ? image.getOverlay() : new Overlay();
+            for (ImageRoi mask : masks) {
+                overlay.add(mask);
+            }
+            image.setOverlay(overlay);
+        }
+    }
+
+    /**
+     * Show the image outputs and the tables in their windows. Nothing is shown in headless mode, the outputs are
+     * available with {@link #getImages()} and {@link #getTables()}.
+     */
+    public void show() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return;
+        }
+        final Map<String, ImagePlus> images = getImages();
+        final Map<String, ResultsTable> tables = getTables();
+        EventQueue.invokeLater(() -> {
+            for (ImagePlus output : images.values()) {
+                output.show();
+            }
+            for (Map.Entry<String, ResultsTable> table : tables.entrySet()) {
+                table.getValue().show(image.getTitle() + " - " + table.getKey());
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        List<String> outputs = new ArrayList<>();
+        if (roiImporter.getCount() > 0) {
+            outputs.add(roiImporter.toString());
+        }
+        synchronized (this) {
+            if (!masks.isEmpty()) {
+                outputs.add(masks.size() + " mask(s)");
+            }
+            outputs.addAll(images.keySet());
+            for (Map.Entry<String, ResultsTable> table : tables.entrySet()) {
+                outputs.add(table.getKey() + " (" + table.getValue().size() + " rows)");
+            }
+        }
+        return String.join(", ", outputs);
+    }
+}
@@ -0,0 +1,349 @@
+package ch.epfl.pyalgos.client;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries of the requests failing because of a transient error, as an OkHttp interceptor of the
+ * {@link PyAlgosHttpClient}: connection errors and timeouts, and the responses 429 (Too Many Requests), 502, 503 and
+ * 504. The retries are spaced by an exponential backoff with full jitter, or by the delay of the Retry-After header.
+ * <p>
+ * Only the idempotent requests are retried: GET, HEAD, PUT and DELETE, and the chunks of the resumable uploads (PATCH
+ * with an Upload-Offset header), idempotent by their offset. The POST requests are only retried on the servers
+ * advertising the "idempotency_key" capability: they get an Idempotency-Key header, the same for all the attempts, so
+ * that the server answers a retried request without processing it twice. A request whose body was sent is never
+ * retried after a timeout, since the server may still be processing it (e.g. a long computation), nor a GET of the
+ * result or of its endpoints after a read timeout, since another attempt would wait for the same computation.
+ * <p>
+ * The images larger than the resumable threshold are sent to the servers supporting it ("resumable_upload") in
+ * chunks, see
+ * {@link PyAlgosHttpClient#uploadResumable(String, long, MediaType, PyAlgosHttpClient.ChunkSource, RetryPolicy)}: an
+ * upload interrupted after the retries resumes from the last chunk acknowledged by the server.
+ */
+public class RetryPolicy implements Interceptor {
+
+    static final int DEFAULT_MAX_RETRIES = 3;
+    static final long DEFAULT_INITIAL_BACKOFF = 200;
+    static final long DEFAULT_MAX_BACKOFF = TimeUnit.SECONDS.toMillis(10);
+    static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+    static final long DEFAULT_RESUMABLE_THRESHOLD = 32L << 20;
+
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    public static final String UPLOAD_OFFSET = "Upload-Offset";
+
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    // Backoff before the first retry, doubled at each retry up to the maximal backoff (milliseconds)
+    private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    // Size of the chunks of the resumable uploads, and minimal size of the images sent in chunks (bytes)
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long resumableThreshold = DEFAULT_RESUMABLE_THRESHOLD;
+
+    private final AtomicLong retries = new AtomicLong();
+
+    // Servers (host:port) advertising the idempotency keys of the POST requests
+    private final Set<String> idempotencyServers = ConcurrentHashMap.newKeySet();
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Set the maximal number of retries of a request
+     *
+     * @param maxRetries 0 to disable the retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    /**
+     * Set the backoff before the first retry, doubled at each retry
+     *
+     * @param initialBackoff (milliseconds)
+     */
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = Math.max(0, initialBackoff);
+    }
+
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    /**
+     * Set the maximal backoff between two attempts, also applied to the delays of the Retry-After headers
+     *
+     * @param maxBackoff (milliseconds)
+     */
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = Math.max(0, maxBackoff);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the size of the chunks of the resumable uploads
+     *
+     * @param chunkSize (bytes)
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(64 << 10, chunkSize);
+    }
+
+    public long getResumableThreshold() {
+        return resumableThreshold;
+    }
+
+    /**
+     * Set the minimal size of the images sent in chunks to the servers supporting the resumable uploads
+     *
+     * @param resumableThreshold (bytes), {@link Long#MAX_VALUE} to disable the resumable uploads
+     */
+    public void setResumableThreshold(long resumableThreshold) {
+        this.resumableThreshold = Math.max(0, resumableThreshold);
+    }
+
+    /**
+     * Check whether the POST requests to the server get an Idempotency-Key header, and are retried
+     *
+     * @param serverURL
+     * @return
+     */
+    public boolean isIdempotencySupported(URL serverURL) {
+        String server = serverKey(serverURL.getHost(), serverURL.getPort(), serverURL.getProtocol());
+        return idempotencyServers.contains(server);
+    }
+
+    /**
+     * Set whether the server supports the Idempotency-Key header, so that its POST requests can be retried
+     *
+     * @param serverURL
+     * @param supported
+     */
+    public void setIdempotencySupported(URL serverURL, boolean supported) {
+        String server = serverKey(serverURL.getHost(), serverURL.getPort(), serverURL.getProtocol());
+        if (supported) {
+            idempotencyServers.add(server);
+        } else {
+            idempotencyServers.remove(server);
+        }
+    }
+
+    private static String serverKey(String host, int port, String scheme) {
+        if (port < 0) {
+            port = HttpUrl.defaultPort(scheme);
+        }
+        return host + ":" + port;
+    }
+
+    /**
+     * Get the number of requests retried since the start
+     *
+     * @return
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.method().equals("POST") && request.header(IDEMPOTENCY_KEY) == null &&
+                idempotencyServers.contains(serverKey(request.url().host(), request.url().port(), ""))) {
+            request = request.newBuilder().header(IDEMPOTENCY_KEY, UUID.randomUUID().toString()).build();
+        }
+        boolean retriable = isIdempotent(request);
+        // Set once the body of an attempt is written, after which a timeout is not retried
+        final AtomicBoolean bodySent = new AtomicBoolean();
+        if (retriable && request.body() != null) {
+            request = request.newBuilder().method(request.method(), new SentBody(request.body(), bodySent)).build();
+        }
+        for (int attempt = 0; ; ++attempt) {
+            bodySent.set(false);
+            long delay;
+            try {
+                Response response = chain.proceed(request);
+                if (!retriable || attempt >= maxRetries || !isTransient(response.code()) ||
+                        chain.call().isCanceled()) {
+                    return response;
+                }
+                delay = getRetryAfter(response, attempt);
+                response.close();
+            } catch (IOException e) {
+                if (!retriable || attempt >= maxRetries || !isTransportFailure(e) || chain.call().isCanceled() ||
+                        (bodySent.get() && isTimeout(e)) ||
+                        (isResultRequest(request) && isTimeout(e) && !isConnectTimeout(e))) {
+                    throw e;
+                }
+                delay = getBackoff(attempt);
+            }
+            retries.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted before retrying " + request.url());
+            }
+            if (chain.call().isCanceled()) {
+                throw new IOException("Canceled");
+            }
+        }
+    }
+
+    /**
+     * Get the backoff before the given retry: a random delay up to the exponential backoff (full jitter), so that the
+     * clients failing at the same time do not retry at the same time
+     *
+     * @param attempt number of the failed attempt, from 0
+     * @return (milliseconds)
+     */
+    long getBackoff(int attempt) {
+        long backoff = Math.min(maxBackoff, initialBackoff << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    // Delay of the Retry-After header in seconds (the HTTP-date form is not used by the servers), or the backoff
+    private long getRetryAfter(Response response, int attempt) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Math.min(maxBackoff, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+            } catch (NumberFormatException ignored) {
+                // Backoff instead
+            }
+        }
+        return getBackoff(attempt);
+    }
+
+    /**
+     * Check whether the request can be sent again: idempotent method, POST with an Idempotency-Key header, or chunk of
+     * a resumable upload
+     *
+     * @param request
+     * @return
+     */
+    static boolean isIdempotent(Request request) {
+        String method = request.method();
+        return method.equals("GET") || method.equals("HEAD") || method.equals("DELETE") || method.equals("PUT") ||
+                (method.equals("POST") && request.header(IDEMPOTENCY_KEY) != null) ||
+                (method.equals("PATCH") && request.header(UPLOAD_OFFSET) != null);
+    }
+
+    // The connect timeouts are SocketTimeoutExceptions too, but are thrown before the body is written
+    static boolean isTimeout(IOException failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException ||
+                    (cause instanceof InterruptedIOException && "timeout".equals(cause.getMessage()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The connect timeouts are thrown before the request is sent, so that the server did not receive it
+    static boolean isConnectTimeout(IOException failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException && cause.getMessage() != null &&
+                    cause.getMessage().toLowerCase().startsWith("connect timed out")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the request gets the result of a computation or one of its endpoints, which may wait for the
+     * computation on the server (/image/{algo}/result and /image/{algo}/result/{endpoint})
+     *
+     * @param request
+     * @return
+     */
+    static boolean isResultRequest(Request request) {
+        return request.method().equals("GET") && request.url().pathSegments().contains("result");
+    }
+
+    // Body recording that it was written to the connection
+    private static class SentBody extends RequestBody {
+
+        private final RequestBody body;
+        private final AtomicBoolean sent;
+
+        SentBody(RequestBody body, AtomicBoolean sent) {
+            this.body = body;
+            this.sent = sent;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return body.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            body.writeTo(sink);
+            sent.set(true);
+        }
+    }
+
+    private static boolean isTransient(int code) {
+        return code == 429 || code == 502 || code == 503 || code == 504;
+    }
+
+    /**
+     * Check whether the failure comes from the network or an unreachable server (connection refused or reset,
+     * timeout, unexpected end of the stream, TLS error), rather than from the request itself
+     *
+     * @param failure
+     * @return
+     */
+    static boolean isTransportFailure(IOException failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException ||
+                    cause instanceof UnknownHostException || cause instanceof EOFException ||
+                    cause instanceof SSLException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "Retries: " + retries.get() + " requests retried (at most " + maxRetries + " times, backoff from " +
+                initialBackoff + " to " + maxBackoff + " ms), resumable uploads from " + (resumableThreshold >> 20) +
+                " MB in chunks of " + (chunkSize >> 10) + " KB";
+    }
+}
@@ -0,0 +1,135 @@
+package ch.epfl.pyalgos.client;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Adds the ROIs of the features of a result to the ROI Manager, in batches: the "Show All" display of the manager is
+ * turned off while the batches are added, and turned on once all are added, as ImageJ does for bulk additions. In
+ * headless mode, where the ROI Manager is not available, the ROIs are added to the overlay of the image.
+ * <p>
+ * The ROIs are set at the current plane of the image if it is a stack.
+ */
+public class RoiImporter {
+
+    private final ImagePlus image;
+
+    // Offset of the processed region in the image (pixels)
+    private final int originX;
+    private final int originY;
+
+    private RoiManager manager;
+    private Overlay overlay;
+    private int count = 0;
+
+    /**
+     * @param image   image the ROIs belong to
+     * @param originX offset of the processed region in the image (pixels)
+     * @param originY
+     */
+    public RoiImporter(ImagePlus image, int originX, int originY) {
+        this.image = image;
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginY() {
+        return originY;
+    }
+
+    /**
+     * Get the number of ROIs added
+     *
+     * @return
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Add a batch of ROIs
+     *
+     * @param batch
+     */
+    public synchronized void add(final Roi[] batch) {
+        if (batch.length == 0) {
+            return;
+        }
+        for (Roi roi : batch) {
+            setPosition(roi);
+        }
+        if (GraphicsEnvironment.isHeadless()) {
+            if (overlay == null) {
+                overlay = (image.getOverlay() != null) ? image.getOverlay() : new Overlay();
+            }
+            for (Roi roi : batch) {
+                overlay.add(roi);
+            }
+        } else {
+            runOnEventQueue(() -> {
+                if (manager == null) {
+                    manager = RoiManager.getRoiManager();
+                    manager.setEditMode(image, false);
+                }
+                for (int i = 0; i < batch.length; i++) {
+                    manager.add(image, batch[i], count + i + 1);
+                }
+            });
+        }
+        count += batch.length;
+    }
+
+    /**
+     * Show the ROIs added on the image, once all the batches are added
+     */
+    public synchronized void finish() {
+        if (overlay != null) {
+            image.setOverlay(overlay);
+        } else if (manager != null) {
+            runOnEventQueue(() -> manager.setEditMode(image, true));
+        }
+    }
+
+    private void setPosition(Roi roi) {
+        if (image.getStackSize() == 1) {
+            return;
+        }
+        if (image.isHyperStack()) {
+            roi.setPosition(image.getChannel(), image.getSlice(), image.getFrame());
+        } else {
+            roi.setPosition(image.getCurrentSlice());
+        }
+    }
+
+    // The list of the ROI Manager is a Swing component, only updated on the Event Dispatch Thread
+    private static void runOnEventQueue(Runnable runnable) {
+        if (EventQueue.isDispatchThread()) {
+            runnable.run();
+            return;
+        }
+        try {
+            EventQueue.invokeAndWait(runnable);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof RuntimeException) ? (RuntimeException) cause : new RuntimeException(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return count + " ROIs added to " + ((overlay != null) ? "the overlay of " : "the ROI Manager for ") +
+                image.getTitle();
+    }
+}
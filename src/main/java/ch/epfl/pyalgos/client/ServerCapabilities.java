@@ -0,0 +1,106 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Optional features advertised by the Python server in the "capabilities" list of its root ("/") response, and its
+ * optional "version". Servers that do not advertise anything only support the original protocol (TIFF upload, JSON
+ * results).
+ */
+public class ServerCapabilities {
+
+    // Upload of the raw pixels with a small header, see RawImageCodec
+    public static final String RAW_IMAGE = "raw_image";
+
+    // Single multipart request carrying the parameters and the image, answered with the resulting image
+    public static final String PROCESS = "process";
+
+    // Sessions with their own image, parameters and result, under /sessions/{id}
+    public static final String SESSIONS = "sessions";
+
+    // Asynchronous jobs with progress, submitted to /image/{algo}/jobs and polled at /jobs/{id}
+    public static final String JOBS = "jobs";
+
+    // Request bodies compressed with gzip or deflate (Content-Encoding header)
+    public static final String COMPRESSED_UPLOAD = "compressed_upload";
+
+    // Uploads in chunks under /uploads, resumed from the last acknowledged chunk after a failure
+    public static final String RESUMABLE_UPLOAD = "resumable_upload";
+
+    // Idempotency-Key header of the POST requests, so that they can be retried without being processed twice
+    public static final String IDEMPOTENCY_KEY = "idempotency_key";
+
+    // Images exchanged through files of the shared memory (/dev/shm) with a server on the same host, see
+    // SharedMemoryTransport
+    public static final String SHARED_MEMORY = "shared_memory";
+
+    private final Set<String> capabilities;
+    private final String version;
+
+    public static final ServerCapabilities NONE = new ServerCapabilities(Collections.<String>emptySet());
+
+    public ServerCapabilities(Set<String> capabilities) {
+        this(capabilities, null);
+    }
+
+    /**
+     * @param capabilities
+     * @param version      version of the server, null if it does not advertise it
+     */
+    public ServerCapabilities(Set<String> capabilities, String version) {
+        this.capabilities = Collections.unmodifiableSet(new LinkedHashSet<>(capabilities));
+        this.version = version;
+    }
+
+    /**
+     * Parse the capabilities from the JSON body of the root response
+     *
+     * @param root JSON body of GET "/"
+     * @return
+     */
+    public static ServerCapabilities fromJson(JsonObject root) {
+        JsonElement version = root.get("version");
+        JsonElement element = root.get("capabilities");
+        Set<String> capabilities = new LinkedHashSet<>();
+        if (element != null && element.isJsonArray()) {
+            for (JsonElement capability : element.getAsJsonArray()) {
+                capabilities.add(capability.getAsString());
+            }
+        }
+        return new ServerCapabilities(capabilities,
+                (version != null && version.isJsonPrimitive()) ? version.getAsString() : null);
+    }
+
+    /**
+     * Check whether the server advertises the given capability
+     *
+     * @param capability
+     * @return
+     */
+    public boolean supports(String capability) {
+        return capabilities.contains(capability);
+    }
+
+    public Set<String> getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Get the version advertised by the server, changing when its algorithms may compute other results
+     *
+     * @return null if the server does not advertise it
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return capabilities.toString();
+    }
+}
@@ -0,0 +1,472 @@
+package ch.epfl.pyalgos.client;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of the servers processing the work units (images, tiles, planes): the server set with
+ * {@link PyAlgosClient#setServerURL(String)}, and the servers added with {@link #addServer(String, int)}, all
+ * expected to provide the same algorithms.
+ * <p>
+ * Each work unit is sent to the available server with the fewest work units in progress relative to its weight
+ * ({@link Routing#LEAST_OUTSTANDING}), or with the shortest expected time given its recent processing times
+ * ({@link Routing#LATENCY}). A server failing several times in a row (connection errors, timeouts, HTTP 5xx) is
+ * ejected by its circuit breaker for a while, then given a single trial work unit before receiving others again.
+ * A work unit that failed because of its server is processed again from the start on another server.
+ */
+public class ServerPool {
+
+    public enum Routing {
+        LEAST_OUTSTANDING, LATENCY
+    }
+
+    /**
+     * State of the circuit breaker of a server: closed while the server works, open while it is ejected, half-open
+     * while a trial work unit is in progress
+     */
+    public enum BreakerState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    static final long DEFAULT_OPEN_DURATION = TimeUnit.SECONDS.toMillis(30);
+    static final int DEFAULT_MAX_ATTEMPTS = 3;
+    // Weight of the last processing time in the average processing time of a server
+    static final double LATENCY_SMOOTHING = 0.2;
+
+    /**
+     * A server of the pool, with its sessions, its work units in progress and its circuit breaker
+     */
+    public static class Server {
+
+        private final URL url;
+        private final int weight;
+        private final PyAlgosHttpClient httpClient;
+        private final SessionPool sessionPool;
+
+        // Capabilities advertised by the server, null until they are read
+        private volatile ServerCapabilities capabilities;
+
+        // Held while using the global image and result of a server without sessions
+        final Object globalStateLock = new Object();
+
+        private int outstanding = 0;
+        // Average processing time of a work unit (milliseconds), 0 until a work unit is processed
+        private double latency = 0;
+        private long processed = 0;
+        private long failures = 0;
+
+        private BreakerState state = BreakerState.CLOSED;
+        private int consecutiveFailures = 0;
+        private long openedAt = 0;
+
+        Server(URL url, int weight, PyAlgosHttpClient httpClient, ServerCapabilities capabilities) {
+            this.url = url;
+            this.weight = weight;
+            this.httpClient = httpClient;
+            this.sessionPool = new SessionPool(httpClient);
+            this.capabilities = capabilities;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * Get the capabilities of the server
+         *
+         * @return null if the server could not be reached yet
+         */
+        public ServerCapabilities getCapabilities() {
+            return capabilities;
+        }
+
+        public synchronized int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Get the average processing time of a work unit on the server
+         *
+         * @return (milliseconds)
+         */
+        public synchronized double getLatency() {
+            return latency;
+        }
+
+        public synchronized long getProcessed() {
+            return processed;
+        }
+
+        public synchronized long getFailures() {
+            return failures;
+        }
+
+        public synchronized BreakerState getState() {
+            return state;
+        }
+
+        PyAlgosHttpClient getHttpClient() {
+            return httpClient;
+        }
+
+        SessionPool getSessionPool() {
+            return sessionPool;
+        }
+
+        /**
+         * Get the capabilities of the server, reading them if they are not known yet
+         *
+         * @return
+         * @throws IOException if the server cannot be reached
+         */
+        ServerCapabilities readCapabilities() throws IOException {
+            ServerCapabilities read = capabilities;
+            if (read == null) {
+                read = httpClient.getCapabilities();
+                httpClient.getCompression().setUploadSupported(url,
+                        read.supports(ServerCapabilities.COMPRESSED_UPLOAD));
+                httpClient.getSharedMemory().setSupported(url, read.supports(ServerCapabilities.SHARED_MEMORY));
+                httpClient.getRetryPolicy().setIdempotencySupported(url,
+                        read.supports(ServerCapabilities.IDEMPOTENCY_KEY));
+                capabilities = read;
+            }
+            return read;
+        }
+
+        /**
+         * Get the number of work units the server can process at the same time
+         *
+         * @param maxInFlight maximal number of work units in flight
+         * @return
+         */
+        int getConcurrency(int maxInFlight) {
+            ServerCapabilities known = capabilities;
+            return (known != null && known.supports(ServerCapabilities.SESSIONS)) ? maxInFlight : 1;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return url + " (weight " + weight + "): " + state + ", " + outstanding + " in progress, " + processed +
+                    " processed in " + String.format("%.1f", latency) + " ms on average, " + failures + " failures";
+        }
+    }
+
+    private final PyAlgosHttpClient httpClient;
+    private final List<Server> servers = new CopyOnWriteArrayList<>();
+    // Server set with PyAlgosClient.setServerURL(), null if not set
+    private volatile Server primary;
+
+    private volatile Routing routing = Routing.LEAST_OUTSTANDING;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openDuration = DEFAULT_OPEN_DURATION;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * @param httpClient client whose connections are shared by the clients of all the servers
+     */
+    ServerPool(PyAlgosHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public Routing getRouting() {
+        return routing;
+    }
+
+    public void setRouting(Routing routing) {
+        this.routing = routing;
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * Set the number of failures in a row after which a server is ejected
+     *
+     * @param failureThreshold (at least 1)
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+    }
+
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Set how long an ejected server receives no work unit, before a trial work unit
+     *
+     * @param openDuration (milliseconds)
+     */
+    public void setOpenDuration(long openDuration) {
+        this.openDuration = Math.max(0, openDuration);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Set the maximal number of servers on which a work unit is tried, when its server fails
+     *
+     * @param maxAttempts (at least 1)
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Add a server to the pool. Its capabilities are read when it receives its first work unit; if it cannot be
+     * reached then, it is ejected like a failing server.
+     *
+     * @param serverURL (e.g. "http://192.168.1.12:8000")
+     * @param weight    share of the work units relative to the other servers (e.g. 2 for a server twice as fast)
+     * @return the added {@link Server}
+     * @throws MalformedURLException
+     */
+    public Server addServer(String serverURL, int weight) throws MalformedURLException {
+        URL url = new URL(PyAlgosClient.normalizeServerURL(serverURL));
+        removeServer(url.toString());
+        Server server = new Server(url, Math.max(1, weight), httpClient.forServer(url), null);
+        servers.add(server);
+        return server;
+    }
+
+    /**
+     * Remove a server from the pool, and delete its sessions. The work units in progress on it complete.
+     *
+     * @param serverURL
+     * @return false if the server is not in the pool
+     */
+    public boolean removeServer(String serverURL) {
+        String normalized = PyAlgosClient.normalizeServerURL(serverURL);
+        for (Server server : servers) {
+            if (server.url.toString().equals(normalized)) {
+                servers.remove(server);
+                if (server == primary) {
+                    primary = null;
+                }
+                server.sessionPool.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the servers of the pool, with their state and statistics
+     *
+     * @return
+     */
+    public List<Server> getServers() {
+        return new ArrayList<>(servers);
+    }
+
+    /**
+     * Get the number of work units the servers of the pool can process at the same time
+     *
+     * @param maxInFlight maximal number of work units in flight
+     * @return at most maxInFlight
+     */
+    public int getConcurrency(int maxInFlight) {
+        int concurrency = 0;
+        for (Server server : servers) {
+            if (isAvailable(server, System.currentTimeMillis())) {
+                concurrency += server.getConcurrency(maxInFlight);
+            }
+        }
+        return Math.max(1, Math.min(maxInFlight, concurrency));
+    }
+
+    /**
+     * Get the version advertised by all the servers of the pool, which compute the same results
+     *
+     * @return null if a server advertises no version or another version, or if its capabilities are not known yet
+     */
+    public String getVersion() {
+        String version = null;
+        for (Server server : servers) {
+            ServerCapabilities known = server.capabilities;
+            String serverVersion = (known == null) ? null : known.getVersion();
+            if (serverVersion == null || (version != null && !version.equals(serverVersion))) {
+                return null;
+            }
+            version = serverVersion;
+        }
+        return version;
+    }
+
+    /**
+     * Replace the server set with {@link PyAlgosClient#setServerURL(String)}
+     *
+     * @param serverURL
+     * @param capabilities capabilities read when connecting
+     */
+    void setPrimary(URL serverURL, ServerCapabilities capabilities) {
+        Server previous = primary;
+        if (previous != null) {
+            servers.remove(previous);
+            previous.sessionPool.close();
+        }
+        removeServer(serverURL.toString());
+        Server server = new Server(serverURL, 1, httpClient, capabilities);
+        primary = server;
+        servers.add(0, server);
+    }
+
+    /**
+     * Select the server of the next work unit, and count the work unit as in progress on it
+     *
+     * @param tried servers on which the work unit already failed
+     * @return the selected {@link Server}, to be given back with {@link #release(Server, long, IOException)}
+     * @throws IOException if no server is available
+     */
+    synchronized Server acquire(Collection<Server> tried) throws IOException {
+        long now = System.currentTimeMillis();
+        Server selected = null;
+        double selectedScore = Double.MAX_VALUE;
+        for (Server server : servers) {
+            if (tried.contains(server)) {
+                continue;
+            }
+            double score;
+            synchronized (server) {
+                if (!isAvailable(server, now)) {
+                    continue;
+                }
+                score = score(server);
+            }
+            if (score < selectedScore) {
+                selected = server;
+                selectedScore = score;
+            }
+        }
+        if (selected == null) {
+            throw new IOException("No server available: " + servers.size() + " server(s) in the pool, " +
+                    tried.size() + " tried");
+        }
+        synchronized (selected) {
+            if (selected.state == BreakerState.OPEN) {
+                selected.state = BreakerState.HALF_OPEN;
+            }
+            ++selected.outstanding;
+        }
+        return selected;
+    }
+
+    // A server is available when its breaker is closed, or open for longer than the open duration (trial work unit)
+    private boolean isAvailable(Server server, long now) {
+        synchronized (server) {
+            return server.state == BreakerState.CLOSED ||
+                    (server.state == BreakerState.OPEN && now - server.openedAt >= openDuration);
+        }
+    }
+
+    // Expected cost of one more work unit on the server, the lowest is selected
+    private double score(Server server) {
+        double load = (server.outstanding + 1.0) / server.weight;
+        if (routing == Routing.LATENCY) {
+            // Servers without any processing time yet are tried first, so that their latency gets known
+            return load * (server.latency + 1.0);
+        }
+        // Ties between equally loaded servers go to the fastest one
+        return load + server.latency * 1e-9;
+    }
+
+    /**
+     * Give back the server once the work unit is done with it
+     *
+     * @param server   server returned by {@link #acquire(Collection)}
+     * @param duration processing time of the work unit (nanoseconds)
+     * @param failure  failure of the work unit, null if it succeeded
+     * @return true if the work unit failed because of the server, and can be processed on another server
+     */
+    boolean release(Server server, long duration, IOException failure) {
+        boolean serverFailure = failure != null && isServerFailure(failure);
+        boolean ejected = false;
+        synchronized (server) {
+            --server.outstanding;
+            if (serverFailure) {
+                ++server.failures;
+                ++server.consecutiveFailures;
+                if (server.state == BreakerState.HALF_OPEN || server.consecutiveFailures >= failureThreshold) {
+                    ejected = server.state != BreakerState.OPEN;
+                    server.state = BreakerState.OPEN;
+                    server.openedAt = System.currentTimeMillis();
+                }
+            } else {
+                if (failure == null) {
+                    ++server.processed;
+                    double millis = duration / 1e6;
+                    server.latency = (server.latency == 0) ? millis :
+                            (1 - LATENCY_SMOOTHING) * server.latency + LATENCY_SMOOTHING * millis;
+                }
+                server.consecutiveFailures = 0;
+                server.state = BreakerState.CLOSED;
+            }
+        }
+        if (ejected) {
+            // The sessions may not exist anymore when the server comes back, new ones are created then
+            server.sessionPool.discard();
+        }
+        return serverFailure;
+    }
+
+    /**
+     * Delete from the servers the images kept by the sessions since their last work unit ({@link ResidentImage}) that
+     * have not been used since the given time. The images of the sessions in use by a work unit are kept.
+     *
+     * @param idleSince (milliseconds since the epoch), {@link Long#MAX_VALUE} to delete all the images not in use
+     * @return number of images deleted
+     */
+    int deleteResidentImages(long idleSince) {
+        int deleted = 0;
+        for (Server server : servers) {
+            deleted += server.sessionPool.deleteResidentImages(idleSince);
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete the sessions opened on all the servers
+     */
+    void closeSessions() {
+        for (Server server : servers) {
+            server.sessionPool.close();
+        }
+    }
+
+    /**
+     * Check whether the failure comes from the server or the network (the server cannot be reached, the connection
+     * failed or timed out, or the server answered with an internal error), rather than from the request itself
+     *
+     * @param failure
+     * @return
+     */
+    static boolean isServerFailure(IOException failure) {
+        if (failure instanceof HttpResponseException) {
+            return ((HttpResponseException) failure).isServerError();
+        }
+        return RetryPolicy.isTransportFailure(failure);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Server pool (" + routing + "):");
+        for (Server server : servers) {
+            builder.append("\n  ").append(server);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,204 @@
+package ch.epfl.pyalgos.client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sessions opened on a server supporting them ("sessions" capability). Each session has its own image, parameters and
+ * result on the server, under /sessions/{id}, so that the work units processed at the same time, and the other
+ * clients of the server, do not overwrite each other's data. The sessions are reused from one work unit to the next,
+ * and deleted from the server when the pool is closed, once their work unit is done for those in use.
+ * <p>
+ * Each session may keep the image of its last work unit ({@link ResidentImage}): the work units on the same image get
+ * the session keeping it, if idle, so that the image is not sent again.
+ */
+class SessionPool {
+
+    private final PyAlgosHttpClient httpClient;
+
+    // Sessions not used by any work unit
+    private final Deque<PyAlgosHttpClient> idle = new ArrayDeque<>();
+    // All the sessions opened on the server
+    private final List<PyAlgosHttpClient> sessions = new ArrayList<>();
+    // Image kept by each session
+    private final Map<PyAlgosHttpClient, ResidentImage> residentImages = new IdentityHashMap<>();
+    // Sessions in use when the pool was closed, deleted once released
+    private final Set<PyAlgosHttpClient> closing = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    SessionPool(PyAlgosHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Get an idle session, or open a new one on the server
+     *
+     * @return {@link PyAlgosHttpClient} sending its requests to the session
+     * @throws IOException if the session could not be created
+     */
+    PyAlgosHttpClient acquire() throws IOException {
+        return acquire(null);
+    }
+
+    /**
+     * Get an idle session, preferably the one keeping the image, or open a new one on the server
+     *
+     * @param imageKey identity of the image of the work unit ({@link ResidentImage#key}), null if not known
+     * @return {@link PyAlgosHttpClient} sending its requests to the session
+     * @throws IOException if the session could not be created
+     */
+    PyAlgosHttpClient acquire(String imageKey) throws IOException {
+        synchronized (this) {
+            if (imageKey != null) {
+                for (Iterator<PyAlgosHttpClient> it = idle.iterator(); it.hasNext(); ) {
+                    PyAlgosHttpClient session = it.next();
+                    if (residentImages.get(session).isResident(imageKey)) {
+                        it.remove();
+                        return session;
+                    }
+                }
+            }
+            PyAlgosHttpClient session = idle.poll();
+            if (session != null) {
+                return session;
+            }
+        }
+        PyAlgosHttpClient session = httpClient.forSession(httpClient.createSession());
+        synchronized (this) {
+            sessions.add(session);
+            residentImages.put(session, new ResidentImage(session));
+        }
+        return session;
+    }
+
+    /**
+     * Check whether an idle session keeps an image, which the next work unit may use
+     *
+     * @return
+     */
+    synchronized boolean hasResidentImages() {
+        for (PyAlgosHttpClient session : idle) {
+            if (residentImages.get(session).hasImage()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the image kept by the session
+     *
+     * @param session session returned by {@link #acquire(String)}
+     * @return null if the session was discarded
+     */
+    synchronized ResidentImage getResidentImage(PyAlgosHttpClient session) {
+        return residentImages.get(session);
+    }
+
+    /**
+     * Give back a session once the work unit is done with it, or delete it from the server if the pool was closed
+     * meanwhile
+     *
+     * @param session
+     */
+    void release(PyAlgosHttpClient session) {
+        synchronized (this) {
+            if (!closing.remove(session)) {
+                if (sessions.contains(session)) {
+                    idle.push(session);
+                }
+                return;
+            }
+            sessions.remove(session);
+            residentImages.remove(session);
+        }
+        delete(session);
+    }
+
+    /**
+     * Get the number of sessions opened on the server
+     *
+     * @return
+     */
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Forget all the sessions without deleting them, e.g. when the server failed and may have lost them. The server is
+     * expected to expire the sessions left behind.
+     */
+    synchronized void discard() {
+        sessions.clear();
+        idle.clear();
+        residentImages.clear();
+        closing.clear();
+    }
+
+    /**
+     * Delete from the server the images kept by the idle sessions that have not been used since the given time. The
+     * sessions remain open.
+     *
+     * @param idleSince (milliseconds since the epoch)
+     * @return number of images deleted
+     */
+    int deleteResidentImages(long idleSince) {
+        // The sessions are taken out of the idle ones while their image is deleted, so that no work unit uses them
+        List<PyAlgosHttpClient> cleaned = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<PyAlgosHttpClient> it = idle.iterator(); it.hasNext(); ) {
+                PyAlgosHttpClient session = it.next();
+                if (residentImages.get(session).isIdle(idleSince)) {
+                    it.remove();
+                    cleaned.add(session);
+                }
+            }
+        }
+        int deleted = 0;
+        for (PyAlgosHttpClient session : cleaned) {
+            ResidentImage residentImage = getResidentImage(session);
+            if (residentImage != null && residentImage.deleteIfIdle(idleSince)) {
+                ++deleted;
+            }
+            release(session);
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete all the sessions from the server: the idle ones now, and the ones in use once their work unit releases
+     * them, so that the requests of the unit do not fail. The server may be unreachable already: the failures are
+     * ignored, and the server is expected to expire the sessions left behind. New sessions are opened by the next
+     * work units.
+     */
+    void close() {
+        List<PyAlgosHttpClient> closed;
+        synchronized (this) {
+            closed = new ArrayList<>(idle);
+            for (PyAlgosHttpClient session : closed) {
+                sessions.remove(session);
+                residentImages.remove(session);
+            }
+            idle.clear();
+            closing.addAll(sessions);
+        }
+        for (PyAlgosHttpClient session : closed) {
+            delete(session);
+        }
+    }
+
+    private void delete(PyAlgosHttpClient session) {
+        try {
+            httpClient.deleteSession(session.getSessionId()).close();
+        } catch (IOException ignored) {
+            // Left to the server
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer of the images through shared memory with a server running on the same host ("shared_memory" capability):
+ * the image is written in the raw format ({@link RawImageCodec}) into a memory-mapped file of the shared memory
+ * directory ("/dev/shm"), and only a reference to the file is sent over HTTP, as a JSON body
+ * ({"path": "/dev/shm/pyalgos-....raw", "size": ...}) with the {@link #SHM} content type. The server answers the
+ * result images with a reference to a file it wrote the same way, when the Accept header lists {@link #SHM}.
+ * <p>
+ * The shared memory is only used with the servers advertising it at a loopback address. A server that cannot read
+ * the files (e.g. in a container with its own shared memory) is marked as not supporting it, and the images are
+ * transferred over the network again. The files larger than {@link #MAX_REGION_SIZE} are mapped in several regions.
+ * <p>
+ * The files are deleted by the client once the server has read them, and once the client has read the files written
+ * by the server.
+ */
+public class SharedMemoryTransport {
+
+    public static final MediaType SHM = MediaType.get("application/x-pyalgos-shm");
+
+    public static final File DEFAULT_DIRECTORY = new File("/dev/shm");
+
+    // Prefix of the files exchanged with the servers, the only ones the client deletes
+    static final String FILE_PREFIX = "pyalgos-";
+
+    // Maximal size of a mapped region of a file, the larger files being mapped in several regions (bytes)
+    static final long MAX_REGION_SIZE = 1L << 30;
+
+    private volatile boolean enabled = true;
+    private volatile File directory = DEFAULT_DIRECTORY;
+
+    // Servers (host:port) advertising the shared memory at a loopback address
+    private final Set<String> servers = ConcurrentHashMap.newKeySet();
+    private final Map<String, Boolean> loopbackHosts = new ConcurrentHashMap<>();
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the transfers through shared memory. When disabled, the images are always transferred over
+     * the network.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the directory of the files exchanged with the servers, a memory file system shared with them
+     *
+     * @param directory "/dev/shm" by default
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Set whether the server advertises the shared memory; it is only used if the server is at a loopback address
+     *
+     * @param serverURL
+     * @param supported
+     */
+    public void setSupported(URL serverURL, boolean supported) {
+        String server = serverKey(serverURL);
+        if (supported && isLoopback(serverURL.getHost())) {
+            servers.add(server);
+        } else {
+            servers.remove(server);
+        }
+    }
+
+    /**
+     * Check whether the images can be transferred through shared memory with the server
+     *
+     * @param serverURL URL of the server or of one of its sessions
+     * @return
+     */
+    public boolean isAvailable(URL serverURL) {
+        File directory = this.directory;
+        return enabled && servers.contains(serverKey(serverURL)) && directory.isDirectory() && directory.canWrite();
+    }
+
+    /**
+     * Mark the server as not able to use the shared memory, after a failed transfer, so that the images are
+     * transferred over the network until it advertises it again
+     *
+     * @param serverURL URL of the server or of one of its sessions
+     */
+    public void markFailed(URL serverURL) {
+        servers.remove(serverKey(serverURL));
+        fallbacks.incrementAndGet();
+    }
+
+    private static String serverKey(URL serverURL) {
+        int port = serverURL.getPort();
+        if (port < 0) {
+            port = HttpUrl.defaultPort(serverURL.getProtocol());
+        }
+        return serverURL.getHost() + ":" + port;
+    }
+
+    private boolean isLoopback(String host) {
+        Boolean loopback = loopbackHosts.get(host);
+        if (loopback == null) {
+            try {
+                loopback = InetAddress.getByName(host).isLoopbackAddress();
+            } catch (UnknownHostException e) {
+                loopback = false;
+            }
+            loopbackHosts.put(host, loopback);
+        }
+        return loopback;
+    }
+
+    /**
+     * Write the image's current processor in the raw format into a new memory-mapped file of the shared memory
+     * directory, readable by the user only
+     *
+     * @param image
+     * @return the file, to delete once the server has read it
+     * @throws IOException if the file cannot be created or written, e.g. when the shared memory is full
+     */
+    public File write(ImagePlus image) throws IOException {
+        ImageProcessor ip = image.getProcessor();
+        byte[] header = new Gson().toJson(RawImageCodec.header(image)).getBytes(StandardCharsets.UTF_8);
+        long length = 4L + header.length + (long) ip.getPixelCount() * RawImageCodec.bytesPerPixel(ip);
+        Path path = Files.createTempFile(directory.toPath(), FILE_PREFIX, ".raw");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (length <= MAX_REGION_SIZE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(header.length);
+                buffer.put(header);
+                RawImageCodec.writePixels(ip, buffer);
+            } else {
+                // Each region is filled with its range of the raw format, encoded from the processor
+                for (long offset = 0; offset < length; offset += MAX_REGION_SIZE) {
+                    long size = Math.min(MAX_REGION_SIZE, length - offset);
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+                    try (BufferedSink sink = Okio.buffer(new RegionSink(region))) {
+                        RawImageCodec.requestBody(image, offset, size).writeTo(sink);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            delete(path.toFile());
+            throw e;
+        }
+        uploads.incrementAndGet();
+        bytes.addAndGet(length);
+        return path.toFile();
+    }
+
+    // Sink writing into a mapped region of a file
+    private static class RegionSink implements Sink {
+
+        private final MappedByteBuffer region;
+        private final byte[] chunk = new byte[1 << 16];
+
+        RegionSink(MappedByteBuffer region) {
+            this.region = region;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                int n = source.read(chunk, 0, (int) Math.min(chunk.length, byteCount));
+                region.put(chunk, 0, n);
+                byteCount -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Build the body referring to a file of the shared memory
+     *
+     * @param file
+     * @return
+     */
+    public static RequestBody referenceBody(File file) {
+        JsonObject reference = new JsonObject();
+        reference.addProperty("path", file.getAbsolutePath());
+        reference.addProperty("size", file.length());
+        return RequestBody.create(new Gson().toJson(reference), SHM);
+    }
+
+    /**
+     * Failure of a transfer through the shared memory, after which the image can be transferred over the network
+     */
+    public static class TransferException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TransferException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Read the image from the file referred to by the body of a response, then delete the file
+     *
+     * @param reference JSON body of the response, with the path of the file
+     * @param title     title of the returned image
+     * @return
+     * @throws TransferException if the reference is invalid, or the file cannot be read
+     */
+    public ImagePlus read(String reference, String title) throws TransferException {
+        File file;
+        try {
+            JsonElement path = JsonParser.parseString(reference).getAsJsonObject().get("path");
+            file = new File(path.getAsString());
+        } catch (RuntimeException e) {
+            throw new TransferException("Invalid shared memory reference", e);
+        }
+        try {
+            // The client only deletes the files exchanged with the servers, in the shared memory directory
+            if (!file.getName().startsWith(FILE_PREFIX) ||
+                    !directory.getCanonicalFile().equals(file.getCanonicalFile().getParentFile())) {
+                throw new IOException("Invalid shared memory file: " + file);
+            }
+        } catch (IOException e) {
+            throw new TransferException(e.getMessage(), e);
+        }
+        try {
+            return read(file, title);
+        } catch (IOException e) {
+            throw new TransferException("Could not read the shared memory file " + file, e);
+        } finally {
+            delete(file);
+        }
+    }
+
+    private ImagePlus read(File file, String title) throws IOException {
+        if (file.length() > MAX_REGION_SIZE) {
+            // Too large for a single mapped region, read as a stream from the memory file system
+            try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+                ImagePlus image = RawImageCodec.read(source, title);
+                downloads.incrementAndGet();
+                bytes.addAndGet(file.length());
+                return image;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed, and is released with the buffer
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int headerLength = RawImageCodec.checkHeaderLength(buffer.getInt());
+            if (headerLength > buffer.remaining()) {
+                throw new IOException("Invalid raw image header length: " + headerLength);
+            }
+            byte[] header = new byte[headerLength];
+            buffer.get(header);
+            ImagePlus image = RawImageCodec.newImage(
+                    RawImageCodec.parseHeader(new String(header, StandardCharsets.UTF_8)), title);
+            RawImageCodec.readPixels(buffer, image.getProcessor());
+            downloads.incrementAndGet();
+            bytes.addAndGet(channel.size());
+            return image;
+        } catch (RuntimeException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Delete a file of the shared memory. On Linux, the pages stay mapped until the buffers are released.
+     *
+     * @param file
+     */
+    static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException ignored) {
+            // Left in the shared memory, freed at the next reboot
+        }
+    }
+
+    /**
+     * Get the number of images written to the shared memory
+     *
+     * @return
+     */
+    public long getUploads() {
+        return uploads.get();
+    }
+
+    /**
+     * Get the number of images read from the shared memory
+     *
+     * @return
+     */
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    /**
+     * Get the number of bytes transferred through the shared memory, instead of the network
+     *
+     * @return
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Get the number of transfers that failed and fell back to the network
+     *
+     * @return
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Shared memory (" + directory + "): " + uploads.get() + " uploads, " + downloads.get() +
+                " downloads, " + bytes.get() + " bytes, " + fallbacks.get() + " fallbacks";
+    }
+}
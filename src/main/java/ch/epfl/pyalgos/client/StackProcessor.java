@@ -0,0 +1,164 @@
+package ch.epfl.pyalgos.client;
+
+import ij.CompositeImage;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Process all the planes of a stack or hyperstack within the selected ranges of channels, slices and frames. Each
+ * plane is a work unit dispatched to the server in the window of the run, as are the tiles of the large planes, and
+ * its result is written straight into the preallocated output {@link ImageStack}, which keeps the dimensions and
+ * calibration of the input.
+ */
+public class StackProcessor {
+
+    // Selected ranges {first, last} (1-based, inclusive), null for all the planes of the dimension
+    private int[] channels = null;
+    private int[] slices = null;
+    private int[] frames = null;
+
+    /**
+     * Select the range of channels to process
+     *
+     * @param first (1-based)
+     * @param last  (1-based, inclusive)
+     */
+    public void setChannels(int first, int last) {
+        this.channels = checkRange(first, last);
+    }
+
+    /**
+     * Select the range of slices (Z) to process
+     *
+     * @param first (1-based)
+     * @param last  (1-based, inclusive)
+     */
+    public void setSlices(int first, int last) {
+        this.slices = checkRange(first, last);
+    }
+
+    /**
+     * Select the range of frames (T) to process
+     *
+     * @param first (1-based)
+     * @param last  (1-based, inclusive)
+     */
+    public void setFrames(int first, int last) {
+        this.frames = checkRange(first, last);
+    }
+
+    /**
+     * Select all the planes of the image
+     */
+    public void resetRanges() {
+        this.channels = null;
+        this.slices = null;
+        this.frames = null;
+    }
+
+    /**
+     * Process the selected ROI of all the planes in the selected ranges, and assemble the results in a stack with
+     * the same dimensions
+     *
+     * @param client           {@link PyAlgosClient} connected to the server
+     * @param image            {@link ImagePlus} to process (stack or hyperstack, and ROI)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, for the progress and cancellation
+     * @return resulting {@link ImagePlus}
+     * @throws IOException if the processing of a plane failed, or if the results of the planes do not match
+     */
+    public ImagePlus process(final PyAlgosClient client, ImagePlus image, final String algoName,
+                             final Map<String, Object> parametersValues, final String title, final Job job)
+            throws IOException {
+        int[] c = getRange(channels, image.getNChannels(), "channels");
+        int[] z = getRange(slices, image.getNSlices(), "slices");
+        int[] t = getRange(frames, image.getNFrames(), "frames");
+        final int nChannels = c[1] - c[0] + 1;
+        final int nSlices = z[1] - z[0] + 1;
+        final int nFrames = t[1] - t[0] + 1;
+        final int nPlanes = nChannels * nSlices * nFrames;
+
+        final ImageStack input = image.getStack();
+        final Roi roi = image.getRoi();
+        final Calibration calibration = image.getCalibration();
+        final Rectangle region = TiledProcessor.getRegion(image.getProcessor(), roi);
+        final ImageStack output = new ImageStack(region.width, region.height, nPlanes);
+        final int[] bitDepth = new int[1];
+        // The image counts as one unit of the job already
+        job.addUnits(nPlanes - 1);
+
+        // The planes, and their tiles if they are tiled, are flattened into the window of the run
+        for (int frame = t[0]; frame <= t[1]; ++frame) {
+            for (int slice = z[0]; slice <= z[1]; ++slice) {
+                for (int channel = c[0]; channel <= c[1]; ++channel) {
+                    final int inputIndex = image.getStackIndex(channel, slice, frame);
+                    final int outputIndex = ((frame - t[0]) * nSlices + (slice - z[0])) * nChannels
+                            + (channel - c[0]) + 1;
+                    client.submitPlane(input.getProcessor(inputIndex), roi, calibration, algoName, parametersValues,
+                            title, job, (resultImage, duration) -> {
+                                if (resultImage == null) {
+                                    throw new IOException("The processing of a stack requires an image result from "
+                                            + algoName);
+                                }
+                                ImageProcessor result = resultImage.getProcessor();
+                                if (result.getWidth() != region.width || result.getHeight() != region.height) {
+                                    throw new IOException("The processing of a stack requires a result with the " +
+                                            "same size as the input:\nplane of " + region.width + "x" +
+                                            region.height + " gave a result of " + result.getWidth() + "x" +
+                                            result.getHeight());
+                                }
+                                synchronized (output) {
+                                    if (bitDepth[0] == 0) {
+                                        bitDepth[0] = result.getBitDepth();
+                                        output.setColorModel(result.getColorModel());
+                                    } else if (bitDepth[0] != result.getBitDepth()) {
+                                        throw new IOException("The results of the planes have different bit depths");
+                                    }
+                                    output.setPixels(result.getPixels(), outputIndex);
+                                    output.setSliceLabel(input.getSliceLabel(inputIndex), outputIndex);
+                                }
+                            });
+                }
+            }
+        }
+        job.getExecutor().await();
+
+        ImagePlus result = new ImagePlus(title, output);
+        result.setDimensions(nChannels, nSlices, nFrames);
+        result.setCalibration(ImageUtils.crop(calibration, region));
+        if (image.isHyperStack()) {
+            result.setOpenAsHyperStack(true);
+        }
+        if (image.isComposite() && nChannels > 1 && bitDepth[0] != 24) {
+            result = new CompositeImage(result, ((CompositeImage) image).getMode());
+        }
+        return result;
+    }
+
+    private static int[] checkRange(int first, int last) {
+        if (first < 1 || last < first) {
+            throw new IllegalArgumentException("Invalid range: " + first + "-" + last);
+        }
+        return new int[]{first, last};
+    }
+
+    private static int[] getRange(int[] range, int size, String dimension) throws IOException {
+        if (range == null) {
+            return new int[]{1, size};
+        }
+        if (range[1] > size) {
+            throw new IOException("The range of " + dimension + " " + range[0] + "-" + range[1] +
+                    " exceeds the image dimension (" + size + ")");
+        }
+        return range;
+    }
+}
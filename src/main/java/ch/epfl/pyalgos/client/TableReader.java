@@ -0,0 +1,209 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import ij.measure.ResultsTable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the tables of the results into {@link ResultsTable}s, streaming their body. The JSON tables can be a list of
+ * rows ([{"area": 12, "label": "a"}, ...]), an object of columns ({"area": [12, ...], "label": ["a", ...]}), the
+ * "columns" orientation of pandas, its default ({"area": {"0": 12, ...}, "label": {"0": "a", ...}}), or its "split"
+ * orientation ({"columns": [...], "data": [[...], ...]}). The CSV tables have a header line.
+ */
+public class TableReader {
+
+    private TableReader() {
+    }
+
+    /**
+     * Read a JSON table
+     *
+     * @param reader
+     * @return
+     * @throws IOException if the body cannot be read or is not a table
+     */
+    public static ResultsTable readJson(JsonReader reader) throws IOException {
+        ResultsTable table = new ResultsTable();
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readRows(reader, table);
+            } else {
+                readColumns(reader, table);
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Invalid table: " + e.getMessage(), e);
+        }
+        return table;
+    }
+
+    // [{"column": value, ...}, ...]
+    private static void readRows(JsonReader reader, ResultsTable table) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            table.incrementCounter();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                addValue(table, reader.nextName(), reader);
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    // {"column": [values], ...}, {"column": {index: value, ...}, ...}, or
+    // {"columns": [names], "data": [[values], ...], "index": [...]}
+    private static void readColumns(JsonReader reader, ResultsTable table) throws IOException {
+        List<String> names = null;
+        // Rows of the index labels of the columns as objects, in the order of their first appearance
+        Map<String, Integer> rows = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("columns") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                names = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    names.add(reader.nextString());
+                }
+                reader.endArray();
+            } else if (name.equals("data") && names != null && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    table.incrementCounter();
+                    reader.beginArray();
+                    for (int column = 0; reader.hasNext(); column++) {
+                        if (column < names.size()) {
+                            addValue(table, names.get(column), reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endArray();
+                }
+                reader.endArray();
+            } else if (name.equals("index") && names != null) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                for (int row = 0; reader.hasNext(); row++) {
+                    while (table.size() <= row) {
+                        table.incrementCounter();
+                    }
+                    setValue(table, name, row, reader);
+                }
+                reader.endArray();
+            } else if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String index = reader.nextName();
+                    Integer row = rows.get(index);
+                    if (row == null) {
+                        row = rows.size();
+                        rows.put(index, row);
+                    }
+                    while (table.size() <= row) {
+                        table.incrementCounter();
+                    }
+                    setValue(table, name, row, reader);
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void addValue(ResultsTable table, String column, JsonReader reader) throws IOException {
+        setValue(table, column, table.size() - 1, reader);
+    }
+
+    private static void setValue(ResultsTable table, String column, int row, JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case NUMBER:
+                table.setValue(column, row, reader.nextDouble());
+                break;
+            case BOOLEAN:
+                table.setValue(column, row, reader.nextBoolean() ? 1 : 0);
+                break;
+            case STRING:
+                table.setValue(column, row, reader.nextString());
+                break;
+            case NULL:
+                reader.nextNull();
+                table.setValue(column, row, Double.NaN);
+                break;
+            default:
+                // Nested values are not displayed
+                reader.skipValue();
+        }
+    }
+
+    /**
+     * Read a CSV table, whose first line is the header
+     *
+     * @param reader
+     * @return
+     * @throws IOException if the body cannot be read
+     */
+    public static ResultsTable readCsv(BufferedReader reader) throws IOException {
+        ResultsTable table = new ResultsTable();
+        String line = reader.readLine();
+        if (line == null) {
+            return table;
+        }
+        String[] names = splitCsv(line);
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] values = splitCsv(line);
+            table.incrementCounter();
+            int row = table.size() - 1;
+            for (int column = 0; column < Math.min(names.length, values.length); column++) {
+                try {
+                    table.setValue(names[column], row, Double.parseDouble(values[column]));
+                } catch (NumberFormatException e) {
+                    table.setValue(names[column], row, values[column]);
+                }
+            }
+        }
+        return table;
+    }
+
+    // Fields separated by commas, possibly quoted with double quotes ("" for a quote in a quoted field)
+    private static String[] splitCsv(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+}
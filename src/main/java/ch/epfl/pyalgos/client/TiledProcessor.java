@@ -0,0 +1,329 @@
+package ch.epfl.pyalgos.client;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process images too large for the memory of the server tile by tile. Each tile is extended by a halo overlapping
+ * the neighbouring tiles, processed with the usual flow of requests, and its core (without the halo) is copied into
+ * the preallocated resulting image. The algorithm must return an image with the same size as its input.
+ * The tiles are dispatched concurrently in the window of the run, shared with its other levels (planes, combinations).
+ * <p>
+ * By default, the tile size is chosen from a memory budget of a quarter of the memory available to ImageJ, the
+ * server usually running on the same computer, so that only the images too large for it are tiled, and the halo is
+ * {@link #DEFAULT_HALO} pixels wide.
+ */
+public class TiledProcessor {
+
+    // Estimated bytes per pixel and channel on the server side (float64 conversion of the image)
+    private static final int SERVER_BYTES_PER_SAMPLE = 8;
+
+    // Estimated number of copies of each tile held in memory on the server (input, intermediate results and output)
+    private static final int SERVER_COPIES = 4;
+
+    // Minimal size of the core of a tile (pixels)
+    static final int MIN_TILE_SIZE = 64;
+
+    // Fraction of the memory available to ImageJ taken as default memory budget
+    private static final int DEFAULT_BUDGET_DIVISOR = 4;
+
+    // Memory budget for the processing of one tile on the server (bytes), 0 to disable the automatic tiling
+    private long memoryBudget = getDefaultMemoryBudget();
+
+    // Size of the core of the tiles (pixels), 0 to compute it from the memory budget
+    private int tileSize = 0;
+
+    // Default width of the halo, enough for the usual filters (e.g. a Gaussian blur up to a sigma of about 10)
+    public static final int DEFAULT_HALO = 32;
+
+    // Width of the halo added around each tile (pixels)
+    private int halo = DEFAULT_HALO;
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Get the default memory budget for the processing of one tile: a quarter of the memory available to ImageJ
+     *
+     * @return (bytes)
+     */
+    public static long getDefaultMemoryBudget() {
+        return Math.max(0, IJ.maxMemory() / DEFAULT_BUDGET_DIVISOR);
+    }
+
+    /**
+     * Set the memory budget for the processing of one tile on the server, 0 to disable the automatic tiling
+     *
+     * @param memoryBudget (bytes), {@link #getDefaultMemoryBudget()} by default
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(0, memoryBudget);
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Set the size of the core of the tiles, 0 to compute it from the memory budget
+     *
+     * @param tileSize (pixels)
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(0, tileSize);
+    }
+
+    public int getHalo() {
+        return halo;
+    }
+
+    /**
+     * Set the width of the halo added around each tile. It should be at least the radius of the neighbourhood
+     * used by the algorithm to avoid seams between the tiles.
+     *
+     * @param halo (pixels), {@link #DEFAULT_HALO} by default, 0 for the algorithms processing each pixel alone
+     */
+    public void setHalo(int halo) {
+        this.halo = Math.max(0, halo);
+    }
+
+    /**
+     * Check whether the tiling is enabled, either with a fixed tile size or with a memory budget
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+        return tileSize > 0 || memoryBudget > 0;
+    }
+
+    /**
+     * Get the size of the core of the tiles for the given bit depth: the fixed tile size if set, or the largest size
+     * for which a tile and its halo fit in the memory budget
+     *
+     * @param bitDepth bit depth of the image (8, 16, 24 or 32)
+     * @return tile size (pixels), or Integer.MAX_VALUE if the tiling is disabled
+     */
+    public int getTileSize(int bitDepth) {
+        if (tileSize > 0) {
+            return tileSize;
+        }
+        if (memoryBudget <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        long bytesPerPixel = (long) SERVER_BYTES_PER_SAMPLE * SERVER_COPIES * (bitDepth == 24 ? 3 : 1);
+        long side = (long) Math.sqrt((double) memoryBudget / bytesPerPixel);
+        return (int) Math.max(MIN_TILE_SIZE, Math.min(Integer.MAX_VALUE, side - 2L * halo));
+    }
+
+    /**
+     * Check whether the selected region of the image is larger than a single tile
+     *
+     * @param image
+     * @return
+     */
+    public boolean needsTiling(ImagePlus image) {
+        return needsTiling(getRegion(image.getProcessor(), image.getRoi()), image.getBitDepth());
+    }
+
+    /**
+     * Check whether the region is larger than a single tile
+     *
+     * @param region   selected region of the image
+     * @param bitDepth bit depth of the image
+     * @return
+     */
+    public boolean needsTiling(Rectangle region, int bitDepth) {
+        if (!isEnabled()) {
+            return false;
+        }
+        int size = getTileSize(bitDepth);
+        return region.width > size || region.height > size;
+    }
+
+    /**
+     * Get the cores of the tiles covering the region (without halo)
+     *
+     * @param region
+     * @param tileSize
+     * @return
+     */
+    public static List<Rectangle> getTiles(Rectangle region, int tileSize) {
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = region.y; y < region.y + region.height; y += tileSize) {
+            for (int x = region.x; x < region.x + region.width; x += tileSize) {
+                tiles.add(new Rectangle(x, y,
+                        Math.min(tileSize, region.x + region.width - x),
+                        Math.min(tileSize, region.y + region.height - y)));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Get the tile extended by the halo, clipped to the region
+     *
+     * @param core
+     * @param region
+     * @return
+     */
+    public Rectangle withHalo(Rectangle core, Rectangle region) {
+        Rectangle tile = new Rectangle(core);
+        tile.grow(halo, halo);
+        return tile.intersection(region);
+    }
+
+    /**
+     * Process the selected slice/channel at the selected ROI of the image tile by tile, and stitch the results
+     *
+     * @param client           {@link PyAlgosClient} connected to the server
+     * @param image            {@link ImagePlus} to process (current processor and ROI)
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, for the progress and cancellation
+     * @return resulting {@link ImagePlus}, with the size of the selected region
+     * @throws IOException if the processing of a tile failed, or if its result does not match the tile
+     */
+    public ImagePlus process(PyAlgosClient client, ImagePlus image, String algoName,
+                             Map<String, Object> parametersValues, String title, Job job) throws IOException {
+        return process(client, image.getProcessor(), image.getRoi(), image.getCalibration(), algoName,
+                parametersValues, title, job);
+    }
+
+    /**
+     * Process the selected region of the processor tile by tile, and stitch the results
+     *
+     * @param client           {@link PyAlgosClient} connected to the server
+     * @param ip               {@link ImageProcessor} of the slice/channel to process
+     * @param roi              {@link Roi} of the selection, can be null
+     * @param calibration      {@link Calibration} of the image
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, for the progress and cancellation
+     * @return resulting {@link ImagePlus}, with the size of the selected region
+     * @throws IOException if the processing of a tile failed, or if its result does not match the tile
+     */
+    public ImagePlus process(final PyAlgosClient client, final ImageProcessor ip, final Roi roi,
+                             final Calibration calibration, final String algoName,
+                             final Map<String, Object> parametersValues, final String title, final Job job)
+            throws IOException {
+        final ImagePlus[] stitched = new ImagePlus[1];
+        submit(client, ip, roi, calibration, algoName, parametersValues, title, job,
+                (result, duration) -> stitched[0] = result);
+        job.getExecutor().await();
+        return stitched[0];
+    }
+
+    /**
+     * Submit the tiles of the selected region of the processor to the window of the run, and pass the stitched result
+     * to the consumer once the last tile is processed
+     *
+     * @param client           {@link PyAlgosClient} connected to the server
+     * @param ip               {@link ImageProcessor} of the slice/channel to process
+     * @param roi              {@link Roi} of the selection, can be null
+     * @param calibration      {@link Calibration} of the image
+     * @param algoName         Name of the algorithm
+     * @param parametersValues Values of the algorithm's parameters
+     * @param title            Title of the resulting image
+     * @param job              {@link Job} of the run, with the window of its work units
+     * @param consumer         receives the resulting {@link ImagePlus}, with the size of the selected region, and the
+     *                         time from the start of the first tile
+     * @throws IOException if a previous unit of the run failed
+     */
+    void submit(final PyAlgosClient client, final ImageProcessor ip, final Roi roi, final Calibration calibration,
+                final String algoName, final Map<String, Object> parametersValues, final String title, final Job job,
+                final PyAlgosClient.PlaneConsumer consumer) throws IOException {
+        final Rectangle region = getRegion(ip, roi);
+        List<Rectangle> cores = getTiles(region, getTileSize(ip.getBitDepth()));
+        // The region counts as one unit of the job already
+        job.addUnits(cores.size() - 1);
+
+        final ImageProcessor[] output = new ImageProcessor[1];
+        final AtomicInteger remaining = new AtomicInteger(cores.size());
+        final AtomicLong firstStart = new AtomicLong(Long.MIN_VALUE);
+        for (int i = 0; i < cores.size(); ++i) {
+            final Rectangle core = cores.get(i);
+            final String tileTitle = "Tile " + (i + 1);
+            job.getExecutor().submit(() -> {
+                Rectangle tile = withHalo(core, region);
+                long start = System.nanoTime();
+                firstStart.compareAndSet(Long.MIN_VALUE, start);
+                ImagePlus tileImage = new ImagePlus(tileTitle, ImageUtils.extract(ip, roi, tile));
+                tileImage.setCalibration(ImageUtils.crop(calibration, tile));
+                job.getMetrics().recordSince("select", start);
+                ImagePlus tileResult = client.processImage(tileImage, algoName, parametersValues, title, job);
+                if (tileResult == null) {
+                    throw new IOException("The tiled processing requires an image result from " + algoName);
+                }
+                ImageProcessor result = tileResult.getProcessor();
+
+                if (result.getWidth() != tile.width || result.getHeight() != tile.height) {
+                    throw new IOException("The tiled processing requires a result with the same size as the input:\n" +
+                            "tile of " + tile.width + "x" + tile.height + " gave a result of " +
+                            result.getWidth() + "x" + result.getHeight());
+                }
+                // The tiles are disjoint, only the allocation of the output needs to be synchronized
+                ImageProcessor stitched;
+                synchronized (output) {
+                    if (output[0] == null) {
+                        output[0] = result.createProcessor(region.width, region.height);
+                    } else if (output[0].getBitDepth() != result.getBitDepth()) {
+                        throw new IOException("The results of the tiles have different bit depths");
+                    }
+                    stitched = output[0];
+                }
+                start = System.nanoTime();
+                stitch(result, core, tile, region, stitched);
+                job.getMetrics().recordSince("stitch", start);
+
+                // The last tile to complete passes on the stitched result, all the other tiles being inserted already
+                if (remaining.decrementAndGet() == 0) {
+                    ImagePlus image = new ImagePlus(title, stitched);
+                    image.setCalibration(ImageUtils.crop(calibration, region));
+                    consumer.accept(image, System.nanoTime() - firstStart.get());
+                }
+            });
+        }
+    }
+
+    /**
+     * Copy the core of the result of a tile, without its halo, into the result of the region
+     *
+     * @param result   result of the tile, with the size of the tile
+     * @param core     core of the tile, in the coordinates of the image
+     * @param tile     tile extended by the halo, in the coordinates of the image
+     * @param region   selected region of the image
+     * @param stitched result of the region, with the size of the region
+     */
+    static void stitch(ImageProcessor result, Rectangle core, Rectangle tile, Rectangle region,
+                       ImageProcessor stitched) {
+        Rectangle coreInTile = new Rectangle(core.x - tile.x, core.y - tile.y, core.width, core.height);
+        ImageUtils.insert(result, coreInTile, stitched, core.x - region.x, core.y - region.y);
+    }
+
+    /**
+     * Get the region of the processor selected by the ROI: its bounding box, or the full processor if there is none
+     * or if it is not an area (see {@link ImageUtils#getAreaRoi(Roi)})
+     *
+     * @param ip
+     * @param roi can be null
+     * @return
+     */
+    public static Rectangle getRegion(ImageProcessor ip, Roi roi) {
+        roi = ImageUtils.getAreaRoi(roi);
+        return (roi == null) ? new Rectangle(0, 0, ip.getWidth(), ip.getHeight()) : roi.getBounds();
+    }
+}
@@ -0,0 +1,506 @@
+package ch.epfl.pyalgos.client;
+
+import okhttp3.*;
+import okio.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the uploads and downloads, as an OkHttp interceptor of the {@link PyAlgosHttpClient}. The responses
+ * are negotiated with the Accept-Encoding header (gzip or deflate), and the request bodies are compressed if the
+ * server supports it ("compressed_upload"). In the automatic mode, the transfers with a loopback address and the
+ * bodies that compress poorly are sent as they are.
+ */
+public class TransferCompression implements Interceptor {
+
+    public enum Mode {
+        // Compress the transfers with remote servers, and the request bodies that compress well
+        AUTO,
+        // Compress all the transfers
+        ALWAYS,
+        // Never compress
+        NEVER
+    }
+
+    public enum Codec {
+        GZIP("gzip"), DEFLATE("deflate");
+
+        private final String encoding;
+
+        Codec(String encoding) {
+            this.encoding = encoding;
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+    }
+
+    /**
+     * Statistics of a compressed transfer
+     */
+    public static class Transfer {
+        public final boolean upload;
+        public final String path;
+        public final String encoding;
+        // Size of the content, and size actually transferred (bytes)
+        public final long contentBytes;
+        public final long transferredBytes;
+        // CPU time spent compressing or decompressing (nanoseconds)
+        public final long cpuNanos;
+
+        Transfer(boolean upload, String path, String encoding, long contentBytes, long transferredBytes,
+                 long cpuNanos) {
+            this.upload = upload;
+            this.path = path;
+            this.encoding = encoding;
+            this.contentBytes = contentBytes;
+            this.transferredBytes = transferredBytes;
+            this.cpuNanos = cpuNanos;
+        }
+
+        public long getSavedBytes() {
+            return contentBytes - transferredBytes;
+        }
+
+        @Override
+        public String toString() {
+            return (upload ? "Upload " : "Download ") + path + " (" + encoding + "): " + contentBytes + " -> " +
+                    transferredBytes + " bytes, " + String.format("%.1f", cpuNanos / 1e6) + " ms CPU";
+        }
+    }
+
+    /**
+     * Listener of the compressed transfers
+     */
+    public interface Listener {
+        void transferCompleted(Transfer transfer);
+    }
+
+    // Request bodies smaller than this are not worth compressing (bytes)
+    static final long MIN_SIZE = 4096;
+    // Size of the sample compressed to estimate the compression ratio (bytes)
+    static final int SAMPLE_SIZE = 64 << 10;
+    // Maximal ratio (compressed / original) of the sample for the body to be compressed
+    static final double MAX_RATIO = 0.9;
+
+    private static final String RAW_ENCODING = "identity";
+
+    private volatile Mode mode = Mode.AUTO;
+    private volatile Codec codec = Codec.GZIP;
+    private volatile int level = Deflater.BEST_SPEED;
+    // Servers (host:port) accepting compressed request bodies
+    private final Set<String> uploadServers = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, Boolean> loopbackHosts = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong uploadContentBytes = new AtomicLong();
+    private final AtomicLong uploadTransferredBytes = new AtomicLong();
+    private final AtomicLong uploadCpuNanos = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong downloadContentBytes = new AtomicLong();
+    private final AtomicLong downloadTransferredBytes = new AtomicLong();
+    private final AtomicLong downloadCpuNanos = new AtomicLong();
+    private final AtomicLong incompressible = new AtomicLong();
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the codec of the request bodies. Both codecs are accepted for the responses.
+     *
+     * @param codec
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the compression level of the request bodies
+     *
+     * @param level from {@link Deflater#BEST_SPEED} (1) to {@link Deflater#BEST_COMPRESSION} (9)
+     */
+    public void setLevel(int level) {
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+    }
+
+    public boolean isUploadSupported(URL serverURL) {
+        return uploadServers.contains(serverKey(serverURL.getHost(), serverURL.getPort(), serverURL.getProtocol()));
+    }
+
+    /**
+     * Set whether the server accepts compressed request bodies
+     *
+     * @param serverURL
+     * @param uploadSupported
+     */
+    public void setUploadSupported(URL serverURL, boolean uploadSupported) {
+        String server = serverKey(serverURL.getHost(), serverURL.getPort(), serverURL.getProtocol());
+        if (uploadSupported) {
+            uploadServers.add(server);
+        } else {
+            uploadServers.remove(server);
+        }
+    }
+
+    private static String serverKey(String host, int port, String scheme) {
+        if (port < 0) {
+            port = HttpUrl.defaultPort(scheme);
+        }
+        return host + ":" + port;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        boolean compress = mode == Mode.ALWAYS || (mode == Mode.AUTO && !isLoopback(request.url().host()));
+        if (!compress) {
+            return chain.proceed(request.newBuilder().header("Accept-Encoding", RAW_ENCODING).build());
+        }
+
+        Request.Builder builder = request.newBuilder().header("Accept-Encoding", "gzip, deflate");
+        RequestBody body = request.body();
+        if (body != null && uploadServers.contains(serverKey(request.url().host(), request.url().port(), "")) &&
+                request.header("Content-Encoding") == null &&
+                (body.contentLength() < 0 || body.contentLength() >= MIN_SIZE)) {
+            Codec codec = this.codec;
+            RequestBody compressed = compress(request.url().encodedPath(), body, codec);
+            if (compressed != null) {
+                builder.header("Content-Encoding", codec.getEncoding()).method(request.method(), compressed);
+            }
+        }
+        return decompress(chain.proceed(builder.build()));
+    }
+
+    /**
+     * Compress the request body while it is sent, unless it does not compress well on a sample of its first bytes
+     *
+     * @param path  path of the request, for the statistics
+     * @param body
+     * @param codec
+     * @return the compressed body, or null to send the body as it is
+     * @throws IOException
+     */
+    private RequestBody compress(final String path, final RequestBody body, final Codec codec) throws IOException {
+        if (body.isOneShot() || body.isDuplex()) {
+            return null;
+        }
+        byte[] sample = sample(body);
+        if (sample.length < MIN_SIZE || !isCompressible(sample)) {
+            incompressible.incrementAndGet();
+            return null;
+        }
+        final int level = this.level;
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public long contentLength() {
+                // Sent in chunks, the compressed size being unknown
+                return -1;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                CountingSink transferred = new CountingSink(sink);
+                Sink compressing;
+                if (codec == Codec.GZIP) {
+                    GzipSink gzipSink = new GzipSink(transferred);
+                    gzipSink.deflater().setLevel(level);
+                    compressing = gzipSink;
+                } else {
+                    compressing = new DeflaterSink(transferred, new Deflater(level));
+                }
+                // Only the time spent in the deflater is recorded, not the encoding of the body
+                TimedSink timed = new TimedSink(compressing);
+                // Closing the sink ends the deflater, and flushes the compressed bytes to the request sink
+                try (BufferedSink content = Okio.buffer(timed)) {
+                    body.writeTo(content);
+                }
+                record(new Transfer(true, path, codec.getEncoding(), timed.count, transferred.count,
+                        timed.cpuNanos));
+            }
+        };
+    }
+
+    /**
+     * Get the first bytes of the body, up to the sample size, without writing the rest of it
+     *
+     * @param body
+     * @return
+     * @throws IOException
+     */
+    private static byte[] sample(RequestBody body) throws IOException {
+        final Buffer sample = new Buffer();
+        Sink sampling = new ForwardingSink(sample) {
+            @Override
+            public void write(Buffer source, long byteCount) throws IOException {
+                long remaining = SAMPLE_SIZE - sample.size();
+                super.write(source, Math.min(byteCount, remaining));
+                if (byteCount >= remaining) {
+                    throw new SampleComplete();
+                }
+            }
+        };
+        try (BufferedSink sink = Okio.buffer(sampling)) {
+            body.writeTo(sink);
+        } catch (SampleComplete ignored) {
+            // The rest of the body is not needed
+        }
+        return sample.readByteArray();
+    }
+
+    // Interruption of the writing of a body once the sample is complete
+    private static class SampleComplete extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Estimate whether the content compresses well, from the compression of a sample at the fastest level
+     *
+     * @param sample
+     * @return
+     */
+    private static boolean isCompressible(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] output = new byte[sample.length];
+            long compressedSize = 0;
+            while (!deflater.finished()) {
+                compressedSize += deflater.deflate(output);
+            }
+            return compressedSize < MAX_RATIO * sample.length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress the response body while it is read, according to its Content-Encoding
+     *
+     * @param response
+     * @return
+     */
+    private Response decompress(Response response) {
+        String encoding = response.header("Content-Encoding");
+        ResponseBody body = response.body();
+        if (encoding == null || body == null || encoding.equalsIgnoreCase(RAW_ENCODING)) {
+            return response;
+        }
+        final boolean gzip = encoding.equalsIgnoreCase(Codec.GZIP.getEncoding());
+        if (!gzip && !encoding.equalsIgnoreCase(Codec.DEFLATE.getEncoding())) {
+            return response;
+        }
+
+        final String path = response.request().url().encodedPath();
+        final CountingSource transferred = new CountingSource(body.source());
+        final Source inflating = gzip ? new GzipSource(transferred) :
+                new InflaterSource(Okio.buffer(transferred), new Inflater());
+        Source decompressed = new ForwardingSource(inflating) {
+            private long contentBytes = 0;
+            private long cpuNanos = 0;
+            private boolean recorded = false;
+
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long start = cpuTime();
+                long read = super.read(sink, byteCount);
+                cpuNanos += cpuTime() - start;
+                if (read == -1) {
+                    recordOnce();
+                } else {
+                    contentBytes += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                recordOnce();
+                super.close();
+            }
+
+            private void recordOnce() {
+                if (!recorded) {
+                    recorded = true;
+                    record(new Transfer(false, path, encoding, contentBytes, transferred.count, cpuNanos));
+                }
+            }
+        };
+        return response.newBuilder()
+                .removeHeader("Content-Encoding")
+                .removeHeader("Content-Length")
+                .body(ResponseBody.create(Okio.buffer(decompressed), body.contentType(), -1))
+                .build();
+    }
+
+    private static class CountingSource extends ForwardingSource {
+        long count = 0;
+
+        CountingSource(Source delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private static class CountingSink extends ForwardingSink {
+        long count = 0;
+
+        CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            count += byteCount;
+        }
+    }
+
+    // Sink counting the bytes written to it, and the CPU time spent writing them
+    private static class TimedSink extends ForwardingSink {
+        long count = 0;
+        long cpuNanos = 0;
+
+        TimedSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            long start = cpuTime();
+            super.write(source, byteCount);
+            cpuNanos += cpuTime() - start;
+            count += byteCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = cpuTime();
+            super.close();
+            cpuNanos += cpuTime() - start;
+        }
+    }
+
+    private boolean isLoopback(String host) {
+        Boolean loopback = loopbackHosts.get(host);
+        if (loopback == null) {
+            try {
+                loopback = InetAddress.getByName(host).isLoopbackAddress();
+            } catch (UnknownHostException e) {
+                loopback = false;
+            }
+            loopbackHosts.put(host, loopback);
+        }
+        return loopback;
+    }
+
+    private static long cpuTime() {
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() :
+                System.nanoTime();
+    }
+
+    private void record(Transfer transfer) {
+        if (transfer.upload) {
+            uploads.incrementAndGet();
+            uploadContentBytes.addAndGet(transfer.contentBytes);
+            uploadTransferredBytes.addAndGet(transfer.transferredBytes);
+            uploadCpuNanos.addAndGet(transfer.cpuNanos);
+        } else {
+            downloads.incrementAndGet();
+            downloadContentBytes.addAndGet(transfer.contentBytes);
+            downloadTransferredBytes.addAndGet(transfer.transferredBytes);
+            downloadCpuNanos.addAndGet(transfer.cpuNanos);
+        }
+        for (Listener listener : listeners) {
+            listener.transferCompleted(transfer);
+        }
+    }
+
+    /**
+     * Get the number of bytes saved by the compression of the uploads and downloads
+     *
+     * @return
+     */
+    public long getSavedBytes() {
+        return uploadContentBytes.get() - uploadTransferredBytes.get() +
+                downloadContentBytes.get() - downloadTransferredBytes.get();
+    }
+
+    /**
+     * Get the CPU time spent compressing the uploads and decompressing the downloads
+     *
+     * @return (nanoseconds)
+     */
+    public long getCpuNanos() {
+        return uploadCpuNanos.get() + downloadCpuNanos.get();
+    }
+
+    public void resetStatistics() {
+        for (AtomicLong counter : new AtomicLong[]{uploads, uploadContentBytes, uploadTransferredBytes,
+                uploadCpuNanos, downloads, downloadContentBytes, downloadTransferredBytes, downloadCpuNanos,
+                incompressible}) {
+            counter.set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Compression: " + uploads.get() + " uploads (" + uploadContentBytes.get() + " -> " +
+                uploadTransferredBytes.get() + " bytes, " + uploadCpuNanos.get() / 1000000 + " ms CPU), " +
+                downloads.get() + " downloads (" + downloadContentBytes.get() + " -> " +
+                downloadTransferredBytes.get() + " bytes, " + downloadCpuNanos.get() / 1000000 + " ms CPU), " +
+                incompressible.get() + " uploads sent uncompressed";
+    }
+}
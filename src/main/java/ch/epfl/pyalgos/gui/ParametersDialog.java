@@ -18,6 +18,26 @@ public abstract class ParametersDialog extends JDialog {
     protected final JButton btnRun = new JButton("Run");
     protected final JButton btnCancel = new JButton("Cancel");
 
+    // Stop button & progress of the runs in progress
+    protected final JButton btnStop = new JButton("Stop");
+    protected final JProgressBar progressBar = new JProgressBar(0, 100);
+
+    // Process all the planes of the stack/hyperstack instead of the selected one only
+    protected final JCheckBox checkBoxAllPlanes = new JCheckBox("Process all planes (stacks/hyperstacks)");
+
+    // Fetch all the outputs of the result: features to the ROI Manager, mask to the overlay, tables
+    protected final JCheckBox checkBoxOutputs = new JCheckBox("Fetch all outputs (features, mask, tables)");
+
+    /**
+     * @deprecated the features are imported with the other outputs, use {@link #checkBoxOutputs}
+     */
+    @Deprecated
+    protected final JCheckBox checkBoxFeatures = checkBoxOutputs;
+
+    // Sweep the numeric parameters over ranges (start:stop:step) or lists (a, b, c), and show the results as a montage
+    protected final JCheckBox checkBoxSweep = new JCheckBox("Sweep numeric parameters (start:stop:step or a, b, c)");
+    protected final JCheckBox checkBoxMontage = new JCheckBox("Show the sweep as a montage");
+
     // Algorithm and parameters fields
     protected String algoName;
     protected Map<String, JComponent> parameterComponentMap = new HashMap<>();
@@ -40,7 +60,7 @@ public abstract class ParametersDialog extends JDialog {
         GridLayout gridLayout = new GridLayout();
         btnPanel.setLayout(gridLayout);
 
-        btnPanel.setLayout(new GridLayout(1, 2));
+        btnPanel.setLayout(new GridLayout(1, 3));
         btnRun.addPropertyChangeListener("enabled", evt -> {
             if (evt.getSource() == btnRun) {
                 if (btnRun.isEnabled()) {
@@ -51,9 +71,28 @@ public abstract class ParametersDialog extends JDialog {
             }
         });
         btnPanel.add(btnCancel);
+        btnPanel.add(btnStop);
         btnPanel.add(btnRun);
-
-        mainPanel.add(btnPanel, BorderLayout.SOUTH);
+        btnStop.setEnabled(false);
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+
+        JPanel southPanel = new JPanel(new BorderLayout());
+        JPanel optionsPanel = new JPanel(new GridLayout(4, 1));
+        optionsPanel.add(checkBoxAllPlanes);
+        optionsPanel.add(checkBoxOutputs);
+        optionsPanel.add(checkBoxSweep);
+        optionsPanel.add(checkBoxMontage);
+        checkBoxMontage.setEnabled(false);
+        checkBoxSweep.addItemListener(e -> {
+            checkBoxMontage.setEnabled(checkBoxSweep.isSelected());
+            checkBoxAllPlanes.setEnabled(!checkBoxSweep.isSelected());
+            checkBoxOutputs.setEnabled(!checkBoxSweep.isSelected());
+        });
+        southPanel.add(optionsPanel, BorderLayout.NORTH);
+        southPanel.add(progressBar, BorderLayout.CENTER);
+        southPanel.add(btnPanel, BorderLayout.SOUTH);
+        mainPanel.add(southPanel, BorderLayout.SOUTH);
 
         pack();
         setResizable(true);
@@ -130,29 +169,32 @@ public abstract class ParametersDialog extends JDialog {
 
     protected Map<String, Object> readValues() {
         Map<String, Object> parametersValues = new HashMap<>();
-        for (Map.Entry<String, JComponent> entry : parameterComponentMap.entrySet()) {
-            String key = entry.getKey();
-            JComponent component = entry.getValue();
-            Object value = null;
-            if (component instanceof JTextField) {
-                switch (parameterTypeMap.get(key)) {
-                    case "int":
-                        value = Integer.parseInt(((JTextField) component).getText());
-                        break;
-                    case "float":
-                        value = Float.parseFloat(((JTextField) component).getText());
-                        break;
-                    case "string":
-                        value = ((JTextField) component).getText();
-                }
-            } else if (component instanceof JComboBox) {
-                // Getting the selected item as a string
-                value = ((JComboBox<String>) component).getSelectedItem().toString();
-            } else if (component instanceof JCheckBox) {
-                value = ((JCheckBox) component).isSelected();
-            }
-            parametersValues.put(key, value);
+        for (String key : parameterComponentMap.keySet()) {
+            parametersValues.put(key, readValue(key));
         }
         return parametersValues;
     }
+
+    protected Object readValue(String key) {
+        JComponent component = parameterComponentMap.get(key);
+        Object value = null;
+        if (component instanceof JTextField) {
+            switch (parameterTypeMap.get(key)) {
+                case "int":
+                    value = Integer.parseInt(((JTextField) component).getText());
+                    break;
+                case "float":
+                    value = Float.parseFloat(((JTextField) component).getText());
+                    break;
+                case "string":
+                    value = ((JTextField) component).getText();
+            }
+        } else if (component instanceof JComboBox) {
+            // Getting the selected item as a string
+            value = ((JComboBox<String>) component).getSelectedItem().toString();
+        } else if (component instanceof JCheckBox) {
+            value = ((JCheckBox) component).isSelected();
+        }
+        return value;
+    }
 }
@@ -0,0 +1,163 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.stream.JsonReader;
+import ij.gui.PointRoi;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeatureReaderTest {
+
+    private static final String SQUARE = "[[0, 0], [10, 0], [10, 10], [0, 10], [0, 0]]";
+    private static final String HOLE = "[[4, 4], [6, 4], [6, 6], [4, 6], [4, 4]]";
+    private static final String OTHER_SQUARE = "[[20, 0], [30, 0], [30, 10], [20, 10], [20, 0]]";
+
+    private final List<Roi[]> batches = new ArrayList<>();
+
+    private List<Roi> read(String json, int batchSize) throws IOException {
+        FeatureReader reader = new FeatureReader(0, 0, batchSize, batches::add);
+        int count = reader.read(new JsonReader(new StringReader(json)));
+        List<Roi> rois = new ArrayList<>();
+        for (Roi[] batch : batches) {
+            rois.addAll(Arrays.asList(batch));
+        }
+        assertEquals(count, rois.size());
+        return rois;
+    }
+
+    private List<Roi> read(String json) throws IOException {
+        return read(json, FeatureReader.DEFAULT_BATCH_SIZE);
+    }
+
+    private static String collection(String... geometries) {
+        StringBuilder json = new StringBuilder("{\"type\": \"FeatureCollection\", \"features\": [");
+        for (int i = 0; i < geometries.length; i++) {
+            json.append((i > 0) ? ", " : "").append("{\"type\": \"Feature\", \"geometry\": ")
+                    .append(geometries[i]).append(", \"properties\": {}}");
+        }
+        return json.append("]}").toString();
+    }
+
+    @Test
+    void polygonWithoutHoleIsPolygonRoi() throws IOException {
+        List<Roi> rois = read(collection("{\"type\": \"Polygon\", \"coordinates\": [" + SQUARE + "]}"));
+        assertEquals(1, rois.size());
+        assertTrue(rois.get(0) instanceof PolygonRoi);
+        // The closing position repeating the first one is dropped
+        assertEquals(4, ((PolygonRoi) rois.get(0)).getNCoordinates());
+        assertEquals(Roi.POLYGON, rois.get(0).getType());
+    }
+
+    @Test
+    void polygonHolesAreSubtracted() throws IOException {
+        List<Roi> rois = read(collection("{\"type\": \"Polygon\", \"coordinates\": [" + SQUARE + ", " + HOLE + "]}"));
+        assertEquals(1, rois.size());
+        Roi roi = rois.get(0);
+        assertTrue(roi instanceof ShapeRoi);
+        assertTrue(roi.contains(2, 2));
+        assertFalse(roi.contains(5, 5));
+    }
+
+    @Test
+    void multiPolygonPartsAreJoined() throws IOException {
+        List<Roi> rois = read(collection("{\"type\": \"MultiPolygon\", \"coordinates\": [[" + SQUARE + "], [" +
+                OTHER_SQUARE + "]]}"));
+        assertEquals(1, rois.size());
+        Roi roi = rois.get(0);
+        assertTrue(roi instanceof ShapeRoi);
+        assertTrue(roi.contains(5, 5));
+        assertTrue(roi.contains(25, 5));
+        assertFalse(roi.contains(15, 5));
+    }
+
+    @Test
+    void multiPolygonHolesOnlyApplyToTheirPart() throws IOException {
+        List<Roi> rois = read(collection("{\"type\": \"MultiPolygon\", \"coordinates\": [[" + SQUARE + ", " + HOLE +
+                "], [" + OTHER_SQUARE + "]]}"));
+        Roi roi = rois.get(0);
+        assertTrue(roi.contains(2, 2));
+        assertFalse(roi.contains(5, 5));
+        assertTrue(roi.contains(25, 5));
+    }
+
+    @Test
+    void pointsAndLines() throws IOException {
+        List<Roi> rois = read(collection(
+                "{\"type\": \"Point\", \"coordinates\": [1, 2, 3]}",
+                "{\"type\": \"MultiPoint\", \"coordinates\": [[1, 2], [3, 4]]}",
+                "{\"type\": \"LineString\", \"coordinates\": [[0, 0], [5, 5], [10, 0]]}",
+                "{\"type\": \"MultiLineString\", \"coordinates\": [[[0, 0], [5, 5]], [[1, 1], [2, 2]]]}"));
+        assertEquals(5, rois.size());
+        assertTrue(rois.get(0) instanceof PointRoi);
+        assertEquals(1, ((PointRoi) rois.get(0)).getNCoordinates());
+        assertEquals(2, ((PointRoi) rois.get(1)).getNCoordinates());
+        for (int i = 2; i < 5; i++) {
+            assertEquals(Roi.POLYLINE, rois.get(i).getType());
+        }
+        assertEquals(3, ((PolygonRoi) rois.get(2)).getNCoordinates());
+    }
+
+    @Test
+    void offsetIsAdded() throws IOException {
+        FeatureReader reader = new FeatureReader(100, 50, 10, batches::add);
+        reader.read(new JsonReader(new StringReader(
+                collection("{\"type\": \"Point\", \"coordinates\": [1, 2]}"))));
+        Roi roi = batches.get(0)[0];
+        assertEquals(101, roi.getFloatPolygon().xpoints[0], 1e-6);
+        assertEquals(52, roi.getFloatPolygon().ypoints[0], 1e-6);
+    }
+
+    @Test
+    void namesFromPropertiesOrId() throws IOException {
+        String point = "{\"type\": \"Point\", \"coordinates\": [1, 2]}";
+        List<Roi> rois = read("[" +
+                "{\"geometry\": " + point + ", \"properties\": {\"name\": \"cell\"}}, " +
+                "{\"geometry\": " + point + ", \"properties\": {\"classification\": {\"name\": \"tumor\"}}}, " +
+                "{\"id\": 7, \"geometry\": " + point + "}]");
+        assertEquals("cell", rois.get(0).getName());
+        assertEquals("tumor", rois.get(1).getName());
+        assertEquals("7", rois.get(2).getName());
+    }
+
+    @Test
+    void featuresNestedInResponse() throws IOException {
+        List<Roi> rois = read("{\"status\": \"ok\", \"result\": " +
+                collection("{\"type\": \"Point\", \"coordinates\": [1, 2]}") + "}");
+        assertEquals(1, rois.size());
+    }
+
+    @Test
+    void unsupportedGeometriesAreSkipped() throws IOException {
+        FeatureReader reader = new FeatureReader(0, 0, 10, batches::add);
+        int count = reader.read(new JsonReader(new StringReader("[" +
+                "{\"geometry\": {\"type\": \"GeometryCollection\", \"geometries\": []}}, " +
+                "{\"geometry\": null}, " +
+                "{\"geometry\": {\"type\": \"Point\", \"coordinates\": [1, 2]}}]")));
+        assertEquals(1, count);
+        assertEquals(2, reader.getSkipped());
+    }
+
+    @Test
+    void roisAreDeliveredInBatches() throws IOException {
+        String point = "{\"type\": \"Point\", \"coordinates\": [1, 2]}";
+        List<Roi> rois = read(collection(point, point, point, point, point), 2);
+        assertEquals(5, rois.size());
+        assertEquals(3, batches.size());
+        assertEquals(2, batches.get(0).length);
+        assertEquals(1, batches.get(2).length);
+    }
+
+    @Test
+    void invalidJsonThrowsIOException() {
+        assertThrows(IOException.class, () -> read("{\"features\": [{\"geometry\": {\"coordinates\": [1, \"a\"]}}]}"));
+    }
+}
@@ -0,0 +1,128 @@
+package ch.epfl.pyalgos.client;
+
+import ij.gui.Line;
+import ij.gui.OvalRoi;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageUtilsTest {
+
+    private static final int WIDTH = 20;
+    private static final int HEIGHT = 10;
+
+    // Pixel value from its coordinates, so that a copied pixel shows where it comes from
+    private static int value(int x, int y) {
+        return y * WIDTH + x + 1;
+    }
+
+    private static ImageProcessor[] processors() {
+        ImageProcessor[] processors = {new ByteProcessor(WIDTH, HEIGHT), new ShortProcessor(WIDTH, HEIGHT),
+                new FloatProcessor(WIDTH, HEIGHT), new ColorProcessor(WIDTH, HEIGHT)};
+        for (ImageProcessor ip : processors) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    ip.putPixelValue(x, y, value(x, y));
+                }
+            }
+        }
+        return processors;
+    }
+
+    @Test
+    void cropCopiesTheRectangle() {
+        for (ImageProcessor ip : processors()) {
+            ImageProcessor cropped = ImageUtils.crop(ip, new Rectangle(3, 2, 5, 4));
+            assertEquals(ip.getBitDepth(), cropped.getBitDepth());
+            assertEquals(5, cropped.getWidth());
+            assertEquals(4, cropped.getHeight());
+            assertEquals(ip.getPixelValue(3, 2), cropped.getPixelValue(0, 0));
+            assertEquals(ip.getPixelValue(7, 5), cropped.getPixelValue(4, 3));
+        }
+    }
+
+    @Test
+    void cropOutsideTheProcessorIsZero() {
+        for (ImageProcessor ip : processors()) {
+            ImageProcessor cropped = ImageUtils.crop(ip, new Rectangle(-2, -1, 4, 3));
+            assertEquals(0, cropped.getPixelValue(0, 0));
+            assertEquals(0, cropped.getPixelValue(1, 2));
+            assertEquals(ip.getPixelValue(0, 0), cropped.getPixelValue(2, 1));
+            assertEquals(ip.getPixelValue(1, 1), cropped.getPixelValue(3, 2));
+        }
+    }
+
+    @Test
+    void insertCopiesTheRectangleAtTheLocation() {
+        for (ImageProcessor ip : processors()) {
+            ImageProcessor dst = ip.createProcessor(WIDTH, HEIGHT);
+            ImageUtils.insert(ip, new Rectangle(2, 3, 4, 2), dst, 10, 5);
+            assertEquals(ip.getPixelValue(2, 3), dst.getPixelValue(10, 5));
+            assertEquals(ip.getPixelValue(5, 4), dst.getPixelValue(13, 6));
+            assertEquals(0, dst.getPixelValue(9, 5));
+            assertEquals(0, dst.getPixelValue(14, 5));
+            assertEquals(0, dst.getPixelValue(10, 7));
+        }
+    }
+
+    @Test
+    void extractClearsOutsideNonRectangularRois() {
+        for (ImageProcessor ip : processors()) {
+            ImageProcessor extracted = ImageUtils.extract(ip, new OvalRoi(4, 2, 8, 6));
+            assertEquals(8, extracted.getWidth());
+            assertEquals(6, extracted.getHeight());
+            assertEquals(0, extracted.getPixelValue(0, 0));
+            assertEquals(ip.getPixelValue(8, 5), extracted.getPixelValue(4, 3));
+        }
+    }
+
+    @Test
+    void extractWithoutRoiCopiesTheProcessor() {
+        for (ImageProcessor ip : processors()) {
+            ImageProcessor extracted = ImageUtils.extract(ip, null);
+            assertNotSame(ip.getPixels(), extracted.getPixels());
+            assertEquals(WIDTH, extracted.getWidth());
+            assertEquals(ip.getPixelValue(WIDTH - 1, HEIGHT - 1), extracted.getPixelValue(WIDTH - 1, HEIGHT - 1));
+        }
+    }
+
+    @Test
+    void lineAndPointRoisSelectTheFullProcessor() {
+        ImageProcessor ip = processors()[0];
+        for (Roi roi : new Roi[]{new Line(2, 2, 2, 8), new Line(1, 3, 9, 3), new PointRoi(5, 5)}) {
+            assertNull(ImageUtils.getAreaRoi(roi));
+            assertEquals(new Rectangle(0, 0, WIDTH, HEIGHT), TiledProcessor.getRegion(ip, roi));
+            ImageProcessor extracted = ImageUtils.extract(ip, roi);
+            assertEquals(WIDTH, extracted.getWidth());
+            assertEquals(HEIGHT, extracted.getHeight());
+            assertEquals(ip.getPixelValue(0, 0), extracted.getPixelValue(0, 0));
+        }
+        Roi rectangle = new Roi(1, 2, 3, 4);
+        assertSame(rectangle, ImageUtils.getAreaRoi(rectangle));
+    }
+
+    @Test
+    void cropShiftsTheCalibrationOrigin() {
+        Calibration calibration = new Calibration();
+        calibration.pixelWidth = 0.5;
+        calibration.xOrigin = 10;
+        calibration.yOrigin = 4;
+        Calibration cropped = ImageUtils.crop(calibration, new Rectangle(3, 2, 5, 4));
+        assertEquals(7, cropped.xOrigin);
+        assertEquals(2, cropped.yOrigin);
+        assertEquals(0.5, cropped.pixelWidth);
+        // The calibrated position of a pixel is kept
+        assertEquals(calibration.getX(8), cropped.getX(5));
+        assertEquals(10, calibration.xOrigin);
+    }
+}
@@ -0,0 +1,85 @@
+package ch.epfl.pyalgos.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ParameterSweepTest {
+
+    @Test
+    void floatRangeIncludesTheStop() {
+        assertEquals(Arrays.asList(0.1f, 0.2f, 0.3f), ParameterSweep.parseValues("0.1:0.3:0.1", "float"));
+        assertEquals(Arrays.asList(0.5f, 1.0f, 1.5f, 2.0f), ParameterSweep.parseValues(" 0.5 : 2 : 0.5 ", "float"));
+    }
+
+    @Test
+    void intRangeWithDefaultStep() {
+        assertEquals(Arrays.asList(1, 2, 3, 4), ParameterSweep.parseValues("1:4", "int"));
+        assertEquals(Arrays.asList(0, 5, 10), ParameterSweep.parseValues("0:12:5", "int"));
+    }
+
+    @Test
+    void listAndSingleValue() {
+        assertEquals(Arrays.asList(3, 1, 2), ParameterSweep.parseValues("3, 1,2,", "int"));
+        assertEquals(Collections.singletonList(2.5f), ParameterSweep.parseValues("2.5", "float"));
+    }
+
+    @Test
+    void invalidValues() {
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("", "int"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("a, b", "float"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("0.5", "int"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("3:1", "int"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("1:3:0", "int"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("1:3:-1", "int"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("1:2:3:4", "int"));
+        assertThrows(NumberFormatException.class, () -> ParameterSweep.parseValues("0:1:0.00001", "float"));
+    }
+
+    @Test
+    void combinationsVaryTheFirstParameterTheSlowest() throws IOException {
+        Map<String, List<Object>> values = new LinkedHashMap<>();
+        values.put("sigma", Arrays.asList(1, 2));
+        values.put("mode", Collections.singletonList("reflect"));
+        values.put("level", Arrays.asList(0.1f, 0.2f, 0.3f));
+        List<Map<String, Object>> combinations = ParameterSweep.getCombinations(values);
+        assertEquals(6, combinations.size());
+        assertEquals(Arrays.asList("sigma", "mode", "level"), Arrays.asList(
+                combinations.get(0).keySet().toArray()));
+        assertEquals(1, combinations.get(0).get("sigma"));
+        assertEquals(0.1f, combinations.get(0).get("level"));
+        assertEquals(1, combinations.get(2).get("sigma"));
+        assertEquals(0.3f, combinations.get(2).get("level"));
+        assertEquals(2, combinations.get(3).get("sigma"));
+        assertEquals(0.1f, combinations.get(3).get("level"));
+        for (Map<String, Object> combination : combinations) {
+            assertEquals("reflect", combination.get("mode"));
+        }
+    }
+
+    @Test
+    void noParameterIsASingleCombination() throws IOException {
+        List<Map<String, Object>> combinations = ParameterSweep.getCombinations(new LinkedHashMap<>());
+        assertEquals(1, combinations.size());
+        assertTrue(combinations.get(0).isEmpty());
+    }
+
+    @Test
+    void invalidCombinations() {
+        Map<String, List<Object>> empty = new LinkedHashMap<>();
+        empty.put("sigma", Collections.emptyList());
+        assertThrows(IOException.class, () -> ParameterSweep.getCombinations(empty));
+
+        Map<String, List<Object>> tooMany = new LinkedHashMap<>();
+        tooMany.put("a", ParameterSweep.parseValues("1:200", "int"));
+        tooMany.put("b", ParameterSweep.parseValues("1:200", "int"));
+        assertThrows(IOException.class, () -> ParameterSweep.getCombinations(tooMany));
+    }
+}
@@ -0,0 +1,174 @@
+package ch.epfl.pyalgos.client;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RawImageCodecTest {
+
+    // Large enough for the 16/32-bit and RGB pixels to span several encoding chunks
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 127;
+
+    private static ImagePlus image(int bitDepth) {
+        ImageProcessor ip;
+        switch (bitDepth) {
+            case 8:
+                ip = new ByteProcessor(WIDTH, HEIGHT);
+                break;
+            case 16:
+                ip = new ShortProcessor(WIDTH, HEIGHT);
+                break;
+            case 32:
+                ip = new FloatProcessor(WIDTH, HEIGHT);
+                break;
+            default:
+                ip = new ColorProcessor(WIDTH, HEIGHT);
+        }
+        Random random = new Random(bitDepth);
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            if (bitDepth == 32) {
+                ip.setf(i, random.nextFloat() * 1000 - 500);
+            } else if (bitDepth == 24) {
+                // The alpha channel is not sent
+                ip.set(i, 0xff000000 | random.nextInt(1 << 24));
+            } else {
+                ip.set(i, random.nextInt(1 << bitDepth));
+            }
+        }
+        ImagePlus image = new ImagePlus("image", ip);
+        Calibration calibration = image.getCalibration();
+        calibration.pixelWidth = 0.5;
+        calibration.pixelHeight = 0.25;
+        calibration.setUnit("mm");
+        return image;
+    }
+
+    private static ByteString encode(ImagePlus image) throws IOException {
+        Buffer buffer = new Buffer();
+        RawImageCodec.requestBody(image).writeTo(buffer);
+        return buffer.readByteString();
+    }
+
+    private static void assertSamePixels(ImageProcessor expected, ImageProcessor actual) {
+        assertEquals(expected.getBitDepth(), actual.getBitDepth());
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        Object pixels = expected.getPixels();
+        if (pixels instanceof byte[]) {
+            assertArrayEquals((byte[]) pixels, (byte[]) actual.getPixels());
+        } else if (pixels instanceof short[]) {
+            assertArrayEquals((short[]) pixels, (short[]) actual.getPixels());
+        } else if (pixels instanceof float[]) {
+            assertArrayEquals((float[]) pixels, (float[]) actual.getPixels());
+        } else {
+            assertArrayEquals((int[]) pixels, (int[]) actual.getPixels());
+        }
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        for (int bitDepth : new int[]{8, 16, 24, 32}) {
+            ImagePlus image = image(bitDepth);
+            ByteString bytes = encode(image);
+            assertEquals(RawImageCodec.contentLength(image), bytes.size());
+            assertEquals(RawImageCodec.requestBody(image).contentLength(), bytes.size());
+
+            ImagePlus read = RawImageCodec.read(new Buffer().write(bytes), "read");
+            assertSamePixels(image.getProcessor(), read.getProcessor());
+            assertEquals("read", read.getTitle());
+            assertEquals(0.5, read.getCalibration().pixelWidth);
+            assertEquals(0.25, read.getCalibration().pixelHeight);
+            assertEquals("mm", read.getCalibration().getUnit());
+        }
+    }
+
+    @Test
+    void rangesMatchTheFullBody() throws IOException {
+        for (int bitDepth : new int[]{8, 16, 24, 32}) {
+            ImagePlus image = image(bitDepth);
+            ByteString bytes = encode(image);
+            long length = RawImageCodec.contentLength(image);
+            // Chunk sizes splitting the header, and the pixels in the middle of a pixel and of an encoding chunk
+            for (int chunkSize : new int[]{7, 1000, 65537, (int) length}) {
+                Buffer chunks = new Buffer();
+                for (long offset = 0; offset < length; offset += chunkSize) {
+                    long size = Math.min(chunkSize, length - offset);
+                    Buffer chunk = new Buffer();
+                    RawImageCodec.requestBody(image, offset, size).writeTo(chunk);
+                    assertEquals(size, chunk.size());
+                    chunks.writeAll(chunk);
+                }
+                assertEquals(bytes, chunks.readByteString(), bitDepth + "-bit, chunks of " + chunkSize);
+            }
+        }
+    }
+
+    @Test
+    void byteBufferRoundTrip() throws IOException {
+        for (int bitDepth : new int[]{8, 16, 24, 32}) {
+            ImageProcessor ip = image(bitDepth).getProcessor();
+            ByteBuffer buffer = ByteBuffer.allocate(ip.getPixelCount() * RawImageCodec.bytesPerPixel(ip));
+            RawImageCodec.writePixels(ip, buffer);
+            assertEquals(buffer.capacity(), buffer.position());
+            buffer.flip();
+            ImageProcessor read = ip.createProcessor(WIDTH, HEIGHT);
+            RawImageCodec.readPixels(buffer, read);
+            assertSamePixels(ip, read);
+        }
+    }
+
+    private static Buffer raw(int headerLength, String header) {
+        return new Buffer().writeIntLe(headerLength).write(header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Buffer raw(String header) {
+        return raw(header.getBytes(StandardCharsets.UTF_8).length, header);
+    }
+
+    @Test
+    void invalidHeaderLengths() {
+        assertThrows(IOException.class, () -> RawImageCodec.read(raw(-1, "{}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(raw(RawImageCodec.MAX_HEADER_LENGTH + 1, "{}"),
+                "read"));
+    }
+
+    @Test
+    void invalidHeaders() {
+        assertThrows(IOException.class, () -> RawImageCodec.read(raw("[1, 2]"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(raw("{\"width\": 2, \"height\": 2}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(
+                raw("{\"width\": 0, \"height\": 2, \"dtype\": \"uint8\"}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(
+                raw("{\"width\": 2, \"height\": -2, \"dtype\": \"uint8\"}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(
+                raw("{\"width\": 100000, \"height\": 100000, \"dtype\": \"uint8\"}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(
+                raw("{\"width\": 2, \"height\": 2, \"dtype\": \"int64\"}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(
+                raw("{\"width\": 2, \"height\": 2, \"dtype\": \"uint8\", \"byte_order\": \"big\"}"), "read"));
+        assertThrows(IOException.class, () -> RawImageCodec.read(
+                raw("{\"width\": 2, \"height\": 2, \"dtype\": \"uint8\", \"calibration\": {\"pixel_width\": \"a\"}}"),
+                "read"));
+    }
+
+    @Test
+    void truncatedPixels() {
+        Buffer buffer = raw("{\"width\": 2, \"height\": 2, \"dtype\": \"uint16\"}").write(new byte[6]);
+        assertThrows(IOException.class, () -> RawImageCodec.read(buffer, "read"));
+    }
+}
@@ -0,0 +1,296 @@
+package ch.epfl.pyalgos.client;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    private static final String SERVER = "http://localhost:8000";
+
+    private final RetryPolicy policy = new RetryPolicy();
+
+    @BeforeEach
+    void setUp() {
+        policy.setInitialBackoff(1);
+        policy.setMaxBackoff(1);
+    }
+
+    private static Request request(String method, String path) {
+        RequestBody body = (method.equals("GET") || method.equals("HEAD")) ? null :
+                RequestBody.create(new byte[]{1, 2, 3}, MediaType.get("application/octet-stream"));
+        return new Request.Builder().url(SERVER + path).method(method, body).build();
+    }
+
+    @Test
+    void idempotentRequests() {
+        assertTrue(RetryPolicy.isIdempotent(request("GET", "/")));
+        assertTrue(RetryPolicy.isIdempotent(request("HEAD", "/")));
+        assertTrue(RetryPolicy.isIdempotent(request("PUT", "/")));
+        assertTrue(RetryPolicy.isIdempotent(request("DELETE", "/")));
+        assertFalse(RetryPolicy.isIdempotent(request("POST", "/")));
+        assertTrue(RetryPolicy.isIdempotent(request("POST", "/").newBuilder()
+                .header(RetryPolicy.IDEMPOTENCY_KEY, "key").build()));
+        assertFalse(RetryPolicy.isIdempotent(request("PATCH", "/")));
+        assertTrue(RetryPolicy.isIdempotent(request("PATCH", "/").newBuilder()
+                .header(RetryPolicy.UPLOAD_OFFSET, "0").build()));
+    }
+
+    @Test
+    void timeouts() {
+        assertTrue(RetryPolicy.isTimeout(new SocketTimeoutException("Read timed out")));
+        assertTrue(RetryPolicy.isTimeout(new IOException("Failed", new SocketTimeoutException())));
+        assertTrue(RetryPolicy.isTimeout(new InterruptedIOException("timeout")));
+        assertFalse(RetryPolicy.isTimeout(new InterruptedIOException("Interrupted")));
+        assertFalse(RetryPolicy.isTimeout(new ConnectException("Connection refused")));
+    }
+
+    @Test
+    void connectTimeouts() {
+        assertTrue(RetryPolicy.isConnectTimeout(new SocketTimeoutException("connect timed out")));
+        assertTrue(RetryPolicy.isConnectTimeout(new SocketTimeoutException("Connect timed out")));
+        assertFalse(RetryPolicy.isConnectTimeout(new SocketTimeoutException("Read timed out")));
+        assertFalse(RetryPolicy.isConnectTimeout(new SocketTimeoutException("timeout")));
+    }
+
+    @Test
+    void resultRequests() {
+        assertTrue(RetryPolicy.isResultRequest(request("GET", "/image/algo/result")));
+        assertTrue(RetryPolicy.isResultRequest(request("GET", "/image/algo/result/image")));
+        assertFalse(RetryPolicy.isResultRequest(request("POST", "/image/algo/result")));
+        assertFalse(RetryPolicy.isResultRequest(request("GET", "/availability")));
+    }
+
+    @Test
+    void transportFailures() {
+        assertTrue(RetryPolicy.isTransportFailure(new ConnectException("Connection refused")));
+        assertTrue(RetryPolicy.isTransportFailure(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isTransportFailure(new IOException("unexpected end of stream", new EOFException())));
+        assertFalse(RetryPolicy.isTransportFailure(new IOException("Invalid response")));
+    }
+
+    @Test
+    void backoffIsBounded() {
+        RetryPolicy policy = new RetryPolicy();
+        policy.setInitialBackoff(100);
+        policy.setMaxBackoff(1000);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.getBackoff(0) <= 100);
+            assertTrue(policy.getBackoff(2) <= 400);
+            assertTrue(policy.getBackoff(30) <= 1000);
+            assertTrue(policy.getBackoff(30) >= 0);
+        }
+    }
+
+    @Test
+    void getIsRetriedOnTransientResponses() throws IOException {
+        FakeChain chain = new FakeChain(request("GET", "/availability"), 503, 503, 200);
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(3, chain.requests.size());
+        assertEquals(2, policy.getRetries());
+    }
+
+    @Test
+    void retriesAreLimited() throws IOException {
+        policy.setMaxRetries(1);
+        FakeChain chain = new FakeChain(request("GET", "/availability"), 503, 503, 200);
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(2, chain.requests.size());
+    }
+
+    @Test
+    void clientErrorsAreNotRetried() throws IOException {
+        FakeChain chain = new FakeChain(request("GET", "/image"), 404, 200);
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(404, response.code());
+        }
+        assertEquals(1, chain.requests.size());
+    }
+
+    @Test
+    void postIsNotRetriedWithoutIdempotencySupport() throws IOException {
+        FakeChain chain = new FakeChain(request("POST", "/process"), 503, 200);
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(503, response.code());
+        }
+        assertEquals(1, chain.requests.size());
+        assertNull(chain.requests.get(0).header(RetryPolicy.IDEMPOTENCY_KEY));
+    }
+
+    @Test
+    void postIsRetriedWithTheSameIdempotencyKey() throws IOException {
+        policy.setIdempotencySupported(new URL(SERVER), true);
+        assertTrue(policy.isIdempotencySupported(new URL(SERVER + "/session")));
+        FakeChain chain = new FakeChain(request("POST", "/process"), 503, 200);
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, chain.requests.size());
+        String key = chain.requests.get(0).header(RetryPolicy.IDEMPOTENCY_KEY);
+        assertNotNull(key);
+        assertEquals(key, chain.requests.get(1).header(RetryPolicy.IDEMPOTENCY_KEY));
+
+        policy.setIdempotencySupported(new URL(SERVER), false);
+        assertFalse(policy.isIdempotencySupported(new URL(SERVER)));
+    }
+
+    @Test
+    void connectionFailuresAreRetried() throws IOException {
+        FakeChain chain = new FakeChain(request("PUT", "/image"), 200);
+        chain.failures.add(new ConnectException("Connection refused"));
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, chain.requests.size());
+    }
+
+    @Test
+    void timeoutAfterTheBodyIsSentIsNotRetried() {
+        FakeChain chain = new FakeChain(request("PUT", "/image"), 200);
+        chain.failures.add(new SocketTimeoutException("timeout"));
+        chain.writeBodies = true;
+        assertThrows(SocketTimeoutException.class, () -> policy.intercept(chain));
+        assertEquals(1, chain.requests.size());
+    }
+
+    @Test
+    void timeoutBeforeTheBodyIsSentIsRetried() throws IOException {
+        FakeChain chain = new FakeChain(request("PUT", "/image"), 200);
+        chain.failures.add(new SocketTimeoutException("connect timed out"));
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, chain.requests.size());
+    }
+
+    @Test
+    void readTimeoutOfTheResultIsNotRetried() {
+        FakeChain chain = new FakeChain(request("GET", "/image/algo/result"), 200);
+        chain.failures.add(new SocketTimeoutException("timeout"));
+        assertThrows(SocketTimeoutException.class, () -> policy.intercept(chain));
+        assertEquals(1, chain.requests.size());
+    }
+
+    @Test
+    void connectTimeoutOfTheResultIsRetried() throws IOException {
+        FakeChain chain = new FakeChain(request("GET", "/image/algo/result/image"), 200);
+        chain.failures.add(new SocketTimeoutException("connect timed out"));
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, chain.requests.size());
+    }
+
+    @Test
+    void readTimeoutOfOtherGetIsRetried() throws IOException {
+        FakeChain chain = new FakeChain(request("GET", "/availability"), 200);
+        chain.failures.add(new SocketTimeoutException("timeout"));
+        try (Response response = policy.intercept(chain)) {
+            assertEquals(200, response.code());
+        }
+        assertEquals(2, chain.requests.size());
+    }
+
+    // Chain answering the given codes in turn, after throwing the given failures
+    private static class FakeChain implements Interceptor.Chain {
+
+        private final Request request;
+        private final List<Integer> codes = new ArrayList<>();
+        private final Call call;
+        final List<IOException> failures = new ArrayList<>();
+        final List<Request> requests = new ArrayList<>();
+        boolean writeBodies;
+
+        FakeChain(Request request, Integer... codes) {
+            this.request = request;
+            for (Integer code : codes) {
+                this.codes.add(code);
+            }
+            this.call = new OkHttpClient().newCall(request);
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public Response proceed(Request request) throws IOException {
+            requests.add(request);
+            if (writeBodies && request.body() != null) {
+                request.body().writeTo(new Buffer());
+            }
+            if (!failures.isEmpty()) {
+                throw failures.remove(0);
+            }
+            return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(codes.remove(0))
+                    .message("").body(ResponseBody.create("", null)).build();
+        }
+
+        @Override
+        public Connection connection() {
+            return null;
+        }
+
+        @Override
+        public Call call() {
+            return call;
+        }
+
+        @Override
+        public int connectTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withConnectTimeout(int timeout, TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public int readTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withReadTimeout(int timeout, TimeUnit unit) {
+            return this;
+        }
+
+        @Override
+        public int writeTimeoutMillis() {
+            return 0;
+        }
+
+        @Override
+        public Interceptor.Chain withWriteTimeout(int timeout, TimeUnit unit) {
+            return this;
+        }
+    }
+}
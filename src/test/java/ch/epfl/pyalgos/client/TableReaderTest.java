@@ -0,0 +1,104 @@
+package ch.epfl.pyalgos.client;
+
+import com.google.gson.stream.JsonReader;
+import ij.measure.ResultsTable;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TableReaderTest {
+
+    private static ResultsTable readJson(String json) throws IOException {
+        return TableReader.readJson(new JsonReader(new StringReader(json)));
+    }
+
+    private static ResultsTable readCsv(String csv) throws IOException {
+        return TableReader.readCsv(new BufferedReader(new StringReader(csv)));
+    }
+
+    private static void assertAreasAndLabels(ResultsTable table) {
+        assertEquals(2, table.size());
+        assertEquals(12, table.getValue("area", 0));
+        assertEquals(30, table.getValue("area", 1));
+        assertEquals("a", table.getStringValue("label", 0));
+        assertEquals("b", table.getStringValue("label", 1));
+    }
+
+    @Test
+    void rows() throws IOException {
+        assertAreasAndLabels(readJson("[{\"area\": 12, \"label\": \"a\"}, {\"area\": 30, \"label\": \"b\"}]"));
+    }
+
+    @Test
+    void columnArrays() throws IOException {
+        assertAreasAndLabels(readJson("{\"area\": [12, 30], \"label\": [\"a\", \"b\"]}"));
+    }
+
+    @Test
+    void pandasColumns() throws IOException {
+        ResultsTable table = readJson("{\"area\": {\"3\": 12, \"7\": 30}, \"label\": {\"3\": \"a\", \"7\": \"b\"}}");
+        assertAreasAndLabels(table);
+    }
+
+    @Test
+    void pandasColumnsRowsFollowTheIndexLabels() throws IOException {
+        // The rows are matched by index label, not by position in each column
+        ResultsTable table = readJson("{\"area\": {\"3\": 12, \"7\": 30}, \"label\": {\"7\": \"b\", \"3\": \"a\"}}");
+        assertAreasAndLabels(table);
+    }
+
+    @Test
+    void pandasSplit() throws IOException {
+        assertAreasAndLabels(readJson("{\"columns\": [\"area\", \"label\"], \"index\": [3, 7], " +
+                "\"data\": [[12, \"a\"], [30, \"b\"]]}"));
+    }
+
+    @Test
+    void pandasSplitExtraValuesAreSkipped() throws IOException {
+        ResultsTable table = readJson("{\"columns\": [\"area\"], \"data\": [[12, 1], [30, 2]]}");
+        assertEquals(2, table.size());
+        assertEquals(30, table.getValue("area", 1));
+        assertFalse(table.columnExists("1"));
+    }
+
+    @Test
+    void nullsAndBooleans() throws IOException {
+        ResultsTable table = readJson("[{\"area\": null, \"valid\": true}, {\"area\": 3, \"valid\": false}]");
+        assertTrue(Double.isNaN(table.getValue("area", 0)));
+        assertEquals(1, table.getValue("valid", 0));
+        assertEquals(0, table.getValue("valid", 1));
+    }
+
+    @Test
+    void invalidJsonThrowsIOException() {
+        assertThrows(IOException.class, () -> readJson("\"table\""));
+        assertThrows(IOException.class, () -> readJson("[1, 2]"));
+    }
+
+    @Test
+    void csv() throws IOException {
+        assertAreasAndLabels(readCsv("area,label\n12,a\n30,b\n"));
+    }
+
+    @Test
+    void csvQuotedFields() throws IOException {
+        ResultsTable table = readCsv("area,\"label, name\"\n12,\"a, \"\"first\"\"\"\n");
+        assertEquals(1, table.size());
+        assertEquals(12, table.getValue("area", 0));
+        assertEquals("a, \"first\"", table.getStringValue("label, name", 0));
+    }
+
+    @Test
+    void csvEmptyLinesAreSkipped() throws IOException {
+        assertAreasAndLabels(readCsv("area,label\n\n12,a\n\n30,b\n\n"));
+    }
+
+    @Test
+    void csvWithoutLines() throws IOException {
+        assertEquals(0, readCsv("").size());
+    }
+}
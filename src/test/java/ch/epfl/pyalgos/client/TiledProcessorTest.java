@@ -0,0 +1,98 @@
+package ch.epfl.pyalgos.client;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TiledProcessorTest {
+
+    private static final Rectangle REGION = new Rectangle(5, 3, 80, 60);
+
+    private static ImageProcessor image() {
+        FloatProcessor ip = new FloatProcessor(100, 70);
+        Random random = new Random(1);
+        for (int i = 0; i < ip.getPixelCount(); i++) {
+            ip.setf(i, random.nextFloat());
+        }
+        return ip;
+    }
+
+    // Process the region tile by tile with a 3x3 mean filter, as the server would, and stitch the results
+    private static ImageProcessor processInTiles(ImageProcessor ip, TiledProcessor tiledProcessor, int tileSize) {
+        ImageProcessor stitched = ip.createProcessor(REGION.width, REGION.height);
+        for (Rectangle core : TiledProcessor.getTiles(REGION, tileSize)) {
+            Rectangle tile = tiledProcessor.withHalo(core, REGION);
+            ImageProcessor result = ImageUtils.extract(ip, null, tile);
+            result.smooth();
+            TiledProcessor.stitch(result, core, tile, REGION, stitched);
+        }
+        return stitched;
+    }
+
+    @Test
+    void tilesCoverTheRegionWithoutOverlap() {
+        List<Rectangle> tiles = TiledProcessor.getTiles(REGION, 32);
+        assertEquals(6, tiles.size());
+        long area = 0;
+        for (int i = 0; i < tiles.size(); i++) {
+            Rectangle tile = tiles.get(i);
+            assertTrue(REGION.contains(tile));
+            area += (long) tile.width * tile.height;
+            for (int j = i + 1; j < tiles.size(); j++) {
+                assertFalse(tile.intersects(tiles.get(j)));
+            }
+        }
+        assertEquals((long) REGION.width * REGION.height, area);
+    }
+
+    @Test
+    void haloIsClippedToTheRegion() {
+        TiledProcessor tiledProcessor = new TiledProcessor();
+        assertEquals(TiledProcessor.DEFAULT_HALO, tiledProcessor.getHalo());
+        tiledProcessor.setHalo(4);
+        assertEquals(new Rectangle(5, 3, 36, 36), tiledProcessor.withHalo(new Rectangle(5, 3, 32, 32), REGION));
+        assertEquals(new Rectangle(33, 31, 40, 32), tiledProcessor.withHalo(new Rectangle(37, 35, 32, 28), REGION));
+    }
+
+    @Test
+    void tileSizeLeavesRoomForTheHalo() {
+        TiledProcessor tiledProcessor = new TiledProcessor();
+        tiledProcessor.setMemoryBudget(1L << 30);
+        tiledProcessor.setHalo(0);
+        int withoutHalo = tiledProcessor.getTileSize(8);
+        tiledProcessor.setHalo(32);
+        assertEquals(withoutHalo - 64, tiledProcessor.getTileSize(8));
+        tiledProcessor.setTileSize(100);
+        assertEquals(100, tiledProcessor.getTileSize(8));
+    }
+
+    @Test
+    void stitchingWithHaloMatchesTheWholeRegion() {
+        ImageProcessor ip = image();
+        ImageProcessor expected = ImageUtils.crop(ip, REGION);
+        expected.smooth();
+        TiledProcessor tiledProcessor = new TiledProcessor();
+        tiledProcessor.setHalo(1);
+        ImageProcessor stitched = processInTiles(ip, tiledProcessor, 16);
+        assertArrayEquals((float[]) expected.getPixels(), (float[]) stitched.getPixels());
+    }
+
+    @Test
+    void stitchingWithoutHaloHasSeams() {
+        ImageProcessor ip = image();
+        ImageProcessor expected = ImageUtils.crop(ip, REGION);
+        expected.smooth();
+        TiledProcessor tiledProcessor = new TiledProcessor();
+        tiledProcessor.setHalo(0);
+        ImageProcessor stitched = processInTiles(ip, tiledProcessor, 16);
+        // The pixels along the edges of the tiles miss their neighbours of the other tiles
+        assertNotEquals(expected.getPixelValue(15, 5), stitched.getPixelValue(15, 5));
+        assertEquals(expected.getPixelValue(8, 5), stitched.getPixelValue(8, 5));
+    }
+}